@@ -0,0 +1,128 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import kr.ac.kaist.ir.urae.Parameters;
+import kr.ac.kaist.ir.urae.PhraseEncoder;
+
+import org.ejml.simple.SimpleMatrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * <p>
+ * Compares URAE composition of {@link PhraseEncoder} (single pass over fused
+ * [W1 W2 b1]) with the former SimpleMatrix implementation of calculateBFS.
+ * </p>
+ * <p>
+ * Each invocation encodes the first 256 trees of appendix/parsed.txt.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class CompositionBenchmark {
+	/** Trained parameters **/
+	private Parameters param;
+	/** Encoder under test **/
+	private PhraseEncoder encoder;
+	/** Input trees **/
+	private List<Tree> trees;
+
+	/**
+	 * Load parameters and trees.
+	 *
+	 * @throws IOException
+	 *             when failed to read trees.
+	 */
+	@Setup
+	public void setup() throws IOException {
+		this.param = Parameters.getInstance();
+		this.encoder = new PhraseEncoder(this.param);
+		this.trees = Inputs.readTrees(256);
+	}
+
+	/**
+	 * Encode with PhraseEncoder.
+	 *
+	 * @param hole
+	 *            to consume results
+	 */
+	@Benchmark
+	public void fused(Blackhole hole) {
+		for (final Tree tree : this.trees) {
+			hole.consume(this.encoder.encode(tree));
+		}
+	}
+
+	/**
+	 * Encode with former SimpleMatrix implementation.
+	 *
+	 * @param hole
+	 *            to consume results
+	 */
+	@Benchmark
+	public void simpleMatrix(Blackhole hole) {
+		for (final Tree tree : this.trees) {
+			hole.consume(this.reference(tree));
+		}
+	}
+
+	/**
+	 * Former implementation of calculateBFS, which allocates several matrices
+	 * per node.
+	 *
+	 * @param subtree
+	 *            for compute phrase vector.
+	 * @return SimpleMatrix of phrase vector.
+	 */
+	private SimpleMatrix reference(Tree subtree) {
+		if (!subtree.isPreTerminal() && (subtree.numChildren() > 1)) {
+			final Tree[] children = subtree.children();
+			SimpleMatrix prev = null;
+			for (int i = children.length - 1; i >= 0; i--) {
+				final SimpleMatrix curr = this.reference(children[i]);
+				if (prev != null) {
+					final SimpleMatrix W1c1 = this.param.getW1().mult(curr);
+					final SimpleMatrix W2c2 = this.param.getW2().mult(prev);
+					prev = W1c1.plus(W2c2).plus(this.param.getb1());
+					for (int j = prev.getNumElements() - 1; j >= 0; j--) {
+						prev.set(j, Math.tanh(prev.get(j)));
+					}
+				} else {
+					prev = curr;
+				}
+			}
+
+			return prev;
+		} else if (subtree.isPreTerminal()) {
+			return this.param.getWordVectorOf(subtree.getChild(0).value());
+		} else if (subtree.numChildren() == 1) {
+			return this.reference(subtree.getChild(0));
+		} else {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import kr.ac.kaist.ir.urae.StanfordWrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * <p>
+ * Encoding of parsed trees, without parsing: phrase vector by
+ * {@link StanfordWrapper#getPhraseVectorOf(Tree)} (calculateBFS), and NPN
+ * structures by {@link StanfordWrapper#findNPNStructure(Tree)}.
+ * </p>
+ * <p>
+ * Trees of appendix/parsed.txt are grouped by depth, from depth to depth + 3,
+ * and each invocation encodes at most 64 trees of the group. Caches should be
+ * off (default), or this measures the caches.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class EncodeBenchmark {
+	/** Minimum depth of trees **/
+	@Param({ "6", "10", "14", "18" })
+	public int depth;
+
+	/** StanfordWrapper under test **/
+	private StanfordWrapper instance;
+	/** Input trees **/
+	private List<Tree> trees;
+
+	/**
+	 * Load parameters, and select trees of the depth.
+	 *
+	 * @throws IOException
+	 *             when failed to read trees.
+	 */
+	@Setup
+	public void setup() throws IOException {
+		this.instance = StanfordWrapper.getInstance();
+		this.trees = new ArrayList<Tree>();
+		for (final Tree tree : Inputs.readTrees(Integer.MAX_VALUE)) {
+			final int d = tree.depth();
+			if (d >= this.depth && d < this.depth + 4 && this.trees.size() < 64) {
+				this.trees.add(tree);
+			}
+		}
+	}
+
+	/**
+	 * Find NPN structures of each tree.
+	 *
+	 * @param hole
+	 *            to consume results
+	 */
+	@Benchmark
+	public void findNPNStructure(Blackhole hole) {
+		for (final Tree tree : this.trees) {
+			hole.consume(this.instance.findNPNStructure(tree));
+		}
+	}
+
+	/**
+	 * Encode phrase vector of each tree.
+	 *
+	 * @param hole
+	 *            to consume results
+	 */
+	@Benchmark
+	public void phraseVector(Blackhole hole) {
+		for (final Tree tree : this.trees) {
+			hole.consume(this.instance.getPhraseVectorOf(tree));
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.benchmark;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.stanford.nlp.trees.PennTreeReader;
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * Realistic inputs of benchmarks, read from appendix files.
+ *
+ * @author 김부근
+ *
+ */
+final class Inputs {
+	/**
+	 * System property for Penn treebank file. Default is appendix/parsed.txt,
+	 * relative to /NeuralPhraseEmbedding directory.
+	 **/
+	static final String TREES_PROPERTY = "npe.bench.trees";
+	/**
+	 * System property for sentence file, one sentence per line. Default is
+	 * appendix/input.txt, relative to /NeuralPhraseEmbedding directory.
+	 **/
+	static final String SENTENCES_PROPERTY = "npe.bench.sentences";
+
+	/**
+	 * Read sentences from sentence file. Empty lines are skipped.
+	 *
+	 * @param limit
+	 *            maximum number of sentences
+	 * @return List of sentences
+	 * @throws IOException
+	 *             when failed to read the file.
+	 */
+	static List<String> readSentences(int limit) throws IOException {
+		final String path = System.getProperty(Inputs.SENTENCES_PROPERTY,
+				"appendix/input.txt");
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(path), "UTF-8"));
+		final List<String> sentences = new ArrayList<String>();
+		try {
+			String line;
+			while (sentences.size() < limit
+					&& (line = reader.readLine()) != null) {
+				if (!line.trim().isEmpty()) {
+					sentences.add(line.trim());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return sentences;
+	}
+
+	/**
+	 * Read parse trees from treebank file.
+	 *
+	 * @param limit
+	 *            maximum number of trees
+	 * @return List of trees
+	 * @throws IOException
+	 *             when failed to read the file.
+	 */
+	static List<Tree> readTrees(int limit) throws IOException {
+		final String path = System.getProperty(Inputs.TREES_PROPERTY,
+				"appendix/parsed.txt");
+		final PennTreeReader reader = new PennTreeReader(new InputStreamReader(
+				new FileInputStream(path), "UTF-8"));
+		final List<Tree> trees = new ArrayList<Tree>();
+		try {
+			Tree tree;
+			while (trees.size() < limit && (tree = reader.readTree()) != null) {
+				trees.add(tree);
+			}
+		} finally {
+			reader.close();
+		}
+		return trees;
+	}
+
+	/**
+	 * Static only.
+	 */
+	private Inputs() {
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import kr.ac.kaist.ir.urae.Parameters;
+
+import org.ejml.simple.SimpleMatrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * <p>
+ * Word embedding lookup by {@link Parameters#getWordVectorOf(String)}, for
+ * words in the vocabulary (hit) and words not in it (miss), which fall back
+ * to the UNKNOWN word.
+ * </p>
+ * <p>
+ * Words are leaves of appendix/parsed.txt; misses are the same words with a
+ * suffix, so that both have the same lengths. Each invocation looks up one
+ * word, in turn.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class LookupBenchmark {
+	/** Number of words of each kind; a power of 2 **/
+	private static final int WORDS = 1024;
+
+	/** Trained parameters **/
+	private Parameters param;
+	/** Words in the vocabulary **/
+	private String[] hits;
+	/** Words not in the vocabulary **/
+	private String[] misses;
+	/** Index of next word **/
+	private int next;
+
+	/**
+	 * Collect words from trees.
+	 *
+	 * @throws IOException
+	 *             when failed to read trees.
+	 */
+	@Setup
+	public void setup() throws IOException {
+		this.param = Parameters.getInstance();
+		final Set<String> words = new LinkedHashSet<String>();
+		for (final Tree tree : Inputs.readTrees(Integer.MAX_VALUE)) {
+			for (final Tree leaf : tree.getLeaves()) {
+				final String word = leaf.value();
+				if (this.param.getEmbeddingTable().indexOf(word.toLowerCase()) >= 0) {
+					words.add(word);
+				}
+			}
+		}
+
+		final List<String> found = new ArrayList<String>(words);
+		this.hits = new String[LookupBenchmark.WORDS];
+		this.misses = new String[LookupBenchmark.WORDS];
+		for (int i = 0; i < LookupBenchmark.WORDS; i++) {
+			this.hits[i] = found.get(i % found.size());
+			this.misses[i] = this.hits[i] + "_npe";
+		}
+	}
+
+	/**
+	 * Look up a word in the vocabulary.
+	 *
+	 * @return word vector
+	 */
+	@Benchmark
+	public SimpleMatrix hit() {
+		return this.param.getWordVectorOf(this.hits[this.next++
+				& (LookupBenchmark.WORDS - 1)]);
+	}
+
+	/**
+	 * Look up a word not in the vocabulary.
+	 *
+	 * @return vector of UNKNOWN word
+	 */
+	@Benchmark
+	public SimpleMatrix miss() {
+		return this.param.getWordVectorOf(this.misses[this.next++
+				& (LookupBenchmark.WORDS - 1)]);
+	}
+}
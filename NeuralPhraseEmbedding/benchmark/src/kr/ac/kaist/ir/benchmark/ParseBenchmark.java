@@ -0,0 +1,98 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import kr.ac.kaist.ir.urae.StanfordWrapper;
+
+import org.ejml.simple.SimpleMatrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * <p>
+ * Parsing by {@link StanfordWrapper#parseTree(String)}, which dominates the
+ * cost of a request, and the fast path
+ * {@link StanfordWrapper#getFastPhraseVectorOf(String)}, which encodes the
+ * sentence along a right-branching tree without parsing.
+ * </p>
+ * <p>
+ * Each invocation parses one of the first 64 sentences of
+ * appendix/input.txt, in turn. Sentence cache should be off (default), or
+ * this measures the cache.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+public class ParseBenchmark {
+	/** StanfordWrapper under test **/
+	private StanfordWrapper instance;
+	/** Input sentences **/
+	private List<String> sentences;
+	/** Index of next sentence **/
+	private int next;
+
+	/**
+	 * Load parser and sentences.
+	 *
+	 * @throws IOException
+	 *             when failed to read sentences.
+	 */
+	@Setup
+	public void setup() throws IOException {
+		this.instance = StanfordWrapper.getInstance();
+		this.sentences = Inputs.readSentences(64);
+	}
+
+	/**
+	 * Encode a sentence without parsing.
+	 *
+	 * @return phrase vector
+	 */
+	@Benchmark
+	public SimpleMatrix fast() {
+		return this.instance.getFastPhraseVectorOf(this.nextSentence());
+	}
+
+	/**
+	 * Next sentence, in turn.
+	 *
+	 * @return sentence
+	 */
+	private String nextSentence() {
+		final String sentence = this.sentences.get(this.next);
+		this.next = (this.next + 1) % this.sentences.size();
+		return sentence;
+	}
+
+	/**
+	 * Parse a sentence.
+	 *
+	 * @return parse tree
+	 */
+	@Benchmark
+	public Tree parse() {
+		return this.instance.parseTree(this.nextSentence());
+	}
+}
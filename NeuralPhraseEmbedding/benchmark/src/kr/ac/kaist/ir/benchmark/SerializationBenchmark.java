@@ -0,0 +1,140 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import kr.ac.kaist.ir.server.Protocol;
+import kr.ac.kaist.ir.urae.Result;
+import kr.ac.kaist.ir.urae.StanfordWrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * <p>
+ * Round trip of {@link Result} instances of a sentence: encoding and decoding
+ * of a response by {@link Protocol}, with every field or strings only, and
+ * Java serialization for comparison.
+ * </p>
+ * <p>
+ * Results are NPN structures of the first tree in appendix/parsed.txt which
+ * has at least 4 of them.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class SerializationBenchmark {
+	/** Whether vectors are sent in float32 **/
+	@Param({ "false", "true" })
+	public boolean float32;
+
+	/** Results of a sentence **/
+	private LinkedList<Result> results;
+
+	/**
+	 * Find results of a sentence.
+	 *
+	 * @throws IOException
+	 *             when failed to read trees.
+	 */
+	@Setup
+	public void setup() throws IOException {
+		final StanfordWrapper instance = StanfordWrapper.getInstance();
+		for (final Tree tree : Inputs.readTrees(Integer.MAX_VALUE)) {
+			this.results = instance.findNPNStructure(tree);
+			if (this.results.size() >= 4) {
+				return;
+			}
+		}
+		throw new IllegalStateException("No tree has 4 NPN structures");
+	}
+
+	/**
+	 * Serialize and deserialize results with ObjectOutputStream.
+	 *
+	 * @return deserialized results
+	 * @throws Exception
+	 *             when failed to serialize.
+	 */
+	@Benchmark
+	public Object javaSerialization() throws Exception {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(this.results);
+		out.close();
+
+		final ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()));
+		try {
+			return in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Encode results into a response frame, and decode it, as server and
+	 * client do.
+	 *
+	 * @return decoded results
+	 * @throws Exception
+	 *             when response is malformed.
+	 */
+	@Benchmark
+	public List<Result> protocol() throws Exception {
+		final byte[] frame = Protocol.encodeResponse(
+				this.float32 ? Protocol.FLOAT32 : 0, 1, 0, null, this.results
+						.getFirst().getMatrixOfSentence(), this.results);
+		// Client reads the payload after length.
+		return Protocol.decodeResponse(
+				Arrays.copyOfRange(frame, 4, frame.length)).getResults();
+	}
+
+	/**
+	 * Encode strings of results into a response frame, and decode it, as
+	 * server and client do when only {@link Result.Field#STRINGS} is
+	 * requested.
+	 *
+	 * @return decoded results
+	 * @throws Exception
+	 *             when response is malformed.
+	 */
+	@Benchmark
+	public List<Result> protocolStrings() throws Exception {
+		final byte[] frame = Protocol.encodeResponse(
+				this.float32 ? Protocol.FLOAT32 : 0, 1, 0, null, null,
+				this.results, EnumSet.of(Result.Field.STRINGS));
+		// Client reads the payload after length.
+		return Protocol.decodeResponse(
+				Arrays.copyOfRange(frame, 4, frame.length)).getResults();
+	}
+}
@@ -0,0 +1,56 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import kr.ac.kaist.ir.urae.Parameters;
+import kr.ac.kaist.ir.urae.Precision;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Cold start of {@link Parameters}: reading weights and word embeddings, and
+ * converting them to the precision. Each fork measures one load in a fresh
+ * JVM, as a server does on start.
+ * </p>
+ * <p>
+ * Parameters are read from JSON resources, or from the binary store if
+ * <tt>-Dnpe.store</tt> is given with <tt>-jvmArgsAppend</tt>.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(5)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+public class StartupBenchmark {
+	/** Precision of loaded parameters **/
+	@Param({ "DOUBLE", "FLOAT32", "INT8" })
+	public Precision precision;
+
+	/**
+	 * Load parameters.
+	 *
+	 * @return loaded parameters
+	 */
+	@Benchmark
+	public Parameters load() {
+		return Parameters.load(this.precision);
+	}
+}
@@ -0,0 +1,70 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.index;
+
+/**
+ * Phrase found by {@link PhraseIndex#search(org.ejml.simple.SimpleMatrix, int)}.
+ *
+ * @author 김부근
+ *
+ */
+public final class Neighbor {
+	/** ID of phrase in the index **/
+	private final int id;
+	/** Text of phrase **/
+	private final String phrase;
+	/** Cosine similarity with query **/
+	private final double similarity;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param id
+	 *            of phrase in the index
+	 * @param phrase
+	 *            text of phrase
+	 * @param similarity
+	 *            cosine similarity with query
+	 */
+	public Neighbor(int id, String phrase, double similarity) {
+		this.id = id;
+		this.phrase = phrase;
+		this.similarity = similarity;
+	}
+
+	/**
+	 * ID of phrase, in the order of insertion.
+	 *
+	 * @return id
+	 */
+	public int getId() {
+		return this.id;
+	}
+
+	/**
+	 * Text of phrase.
+	 *
+	 * @return phrase
+	 */
+	public String getPhrase() {
+		return this.phrase;
+	}
+
+	/**
+	 * Cosine similarity with query.
+	 *
+	 * @return similarity, from -1 to 1.
+	 */
+	public double getSimilarity() {
+		return this.similarity;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format("%s (%.4f)", this.phrase, this.similarity);
+	}
+}
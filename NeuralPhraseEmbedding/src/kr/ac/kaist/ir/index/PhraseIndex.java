@@ -0,0 +1,782 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import kr.ac.kaist.ir.urae.Result;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * <p>
+ * Approximate nearest neighbor index of phrase vectors, for finding similar
+ * phrases by cosine similarity.
+ * </p>
+ * <p>
+ * This is a Hierarchical Navigable Small World graph (Malkov &amp; Yashunin,
+ * 2016). Each phrase is a node in several layers of proximity graphs; upper
+ * layers are sparse, and the bottom layer has every node. A query descends
+ * greedily from the top layer, and searches the bottom layer with a beam of
+ * {@link #setEf(int) ef} candidates. So a query visits a few thousand nodes
+ * at most, even over millions of phrases. Larger ef gives better recall, and
+ * slower query.
+ * </p>
+ * <p>
+ * Vectors are normalized and stored in float. Phrases can be added at any
+ * time. Queries run in parallel, while insertion excludes other insertions
+ * and queries.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public final class PhraseIndex {
+	/**
+	 * Node of graph, with its links in each layer.
+	 */
+	private static final class Node {
+		/** Text of phrase **/
+		private final String phrase;
+		/** Normalized vector **/
+		private final float[] vector;
+		/** Links in each layer, from 0 to level **/
+		private final int[][] links;
+		/** Number of links in each layer **/
+		private final int[] counts;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param phrase
+		 *            text
+		 * @param vector
+		 *            normalized
+		 * @param level
+		 *            top layer of node
+		 * @param m
+		 *            maximum number of links in upper layers
+		 */
+		Node(String phrase, float[] vector, int level, int m) {
+			this.phrase = phrase;
+			this.vector = vector;
+			this.links = new int[level + 1][];
+			this.counts = new int[level + 1];
+			for (int l = 0; l <= level; l++) {
+				// One more slot for a link before pruning.
+				this.links[l] = new int[(l == 0 ? 2 * m : m) + 1];
+			}
+		}
+	}
+
+	/**
+	 * Node with its distance from a query.
+	 */
+	private static final class Candidate {
+		/** ID of node **/
+		private final int id;
+		/** Distance, 1 - cosine similarity **/
+		private final float distance;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param id
+		 *            of node
+		 * @param distance
+		 *            from query
+		 */
+		Candidate(int id, float distance) {
+			this.id = id;
+			this.distance = distance;
+		}
+	}
+
+	/**
+	 * Visited marks of a query, reused by each thread.
+	 */
+	private static final class Visited {
+		/** Mark of each node **/
+		private int[] marks = new int[0];
+		/** Mark of current query **/
+		private int epoch;
+
+		/**
+		 * Start new query.
+		 *
+		 * @param size
+		 *            number of nodes
+		 */
+		void clear(int size) {
+			if (this.marks.length < size) {
+				this.marks = new int[Math.max(size, this.marks.length * 2)];
+				this.epoch = 0;
+			}
+			if (++this.epoch == Integer.MAX_VALUE) {
+				Arrays.fill(this.marks, 0);
+				this.epoch = 1;
+			}
+		}
+
+		/**
+		 * Mark node as visited.
+		 *
+		 * @param id
+		 *            of node
+		 * @return true if not visited before.
+		 */
+		boolean visit(int id) {
+			if (this.marks[id] == this.epoch) {
+				return false;
+			}
+			this.marks[id] = this.epoch;
+			return true;
+		}
+	}
+
+	/** System property for index file, loaded by servers **/
+	public static final String FILE_PROPERTY = "npe.index";
+	/** System property for maximum links per node, M **/
+	public static final String M_PROPERTY = "npe.index.m";
+	/** System property for beam width of insertion **/
+	public static final String EF_CONSTRUCTION_PROPERTY = "npe.index.ef.construction";
+	/** System property for beam width of query **/
+	public static final String EF_PROPERTY = "npe.index.ef";
+
+	/** Magic number of index file, "NPEI" **/
+	private static final int MAGIC = 0x4E504549;
+	/** Version of index file **/
+	private static final int VERSION = 1;
+
+	/** Nearest first **/
+	private static final Comparator<Candidate> NEAREST = new Comparator<Candidate>() {
+		@Override
+		public int compare(Candidate a, Candidate b) {
+			return Float.compare(a.distance, b.distance);
+		}
+	};
+	/** Farthest first **/
+	private static final Comparator<Candidate> FARTHEST = Collections
+			.reverseOrder(PhraseIndex.NEAREST);
+
+	/**
+	 * Load index file, saved by {@link #save(File)}.
+	 *
+	 * @param file
+	 *            of index
+	 * @return PhraseIndex instance
+	 * @throws IOException
+	 *             when failed to read, or file is not an index.
+	 */
+	public static PhraseIndex load(File file) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != PhraseIndex.MAGIC
+					|| in.readInt() != PhraseIndex.VERSION) {
+				throw new IOException("Not an index file : " + file);
+			}
+			final int dimension = in.readInt();
+			final int m = in.readInt();
+			final int efConstruction = in.readInt();
+			final int size = in.readInt();
+			final PhraseIndex index = new PhraseIndex(dimension, m,
+					efConstruction);
+			index.entry = in.readInt();
+			index.maxLevel = in.readInt();
+
+			index.nodes.ensureCapacity(size);
+			for (int i = 0; i < size; i++) {
+				final byte[] phrase = new byte[in.readInt()];
+				in.readFully(phrase);
+				final int level = in.readInt();
+				final float[] vector = new float[dimension];
+				for (int d = 0; d < dimension; d++) {
+					vector[d] = in.readFloat();
+				}
+
+				final Node node = new Node(new String(phrase,
+						StandardCharsets.UTF_8), vector, level, m);
+				for (int l = 0; l <= level; l++) {
+					node.counts[l] = in.readInt();
+					for (int j = 0; j < node.counts[l]; j++) {
+						node.links[l][j] = in.readInt();
+					}
+				}
+				index.nodes.add(node);
+			}
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Load index file given by {@value #FILE_PROPERTY}.
+	 *
+	 * @return PhraseIndex instance, or null if not configured.
+	 * @throws IOException
+	 *             when failed to read.
+	 */
+	public static PhraseIndex loadConfigured() throws IOException {
+		final String path = System.getProperty(PhraseIndex.FILE_PROPERTY);
+		if (path == null) {
+			return null;
+		}
+
+		final Logger logger = Logger.getAnonymousLogger();
+		logger.info("LOADING PHRASE INDEX " + path + "...");
+		final PhraseIndex index = PhraseIndex.load(new File(path));
+		logger.info("DONE. " + index.size() + " phrases.");
+		return index;
+	}
+
+	/**
+	 * Main method for building index from output of
+	 * {@link kr.ac.kaist.ir.pipeline.BulkEncoder}.
+	 *
+	 * @param args
+	 *            from the command line.
+	 */
+	public static void main(String[] args) {
+		if (args.length > 2) {
+			try {
+				final Scanner phrases = new Scanner(new File(args[0]), "UTF-8");
+				final Scanner vectors = new Scanner(new File(args[1]), "UTF-8");
+				PhraseIndex index = null;
+				final long begin = System.nanoTime();
+
+				// Lines of phrases and vectors agree; skip empty vectors.
+				while (phrases.hasNextLine() && vectors.hasNextLine()) {
+					final String phrase = phrases.nextLine();
+					final String line = vectors.nextLine();
+					if (line.isEmpty()) {
+						continue;
+					}
+
+					final String[] numbers = line.split(",");
+					final double[] data = new double[numbers.length];
+					for (int i = 0; i < numbers.length; i++) {
+						data[i] = Double.parseDouble(numbers[i]);
+					}
+					if (index == null) {
+						index = new PhraseIndex(data.length);
+					}
+					index.add(phrase, new SimpleMatrix(data.length, 1, true,
+							data));
+				}
+				vectors.close();
+				phrases.close();
+
+				if (index != null) {
+					index.save(new File(args[2]));
+					System.out.println(String.format(
+							"%d phrases indexed, %.1f s", index.size(),
+							(System.nanoTime() - begin) / 1e9));
+				}
+			} catch (final Exception e) {
+				e.printStackTrace();
+			}
+		} else {
+			System.out
+					.println("USAGE: java -cp [JAR FILE] kr.ac.kaist.ir.index.PhraseIndex [PHRASES FILE] [VECTORS FILE] [INDEX FILE]");
+		}
+	}
+
+	/**
+	 * Normalize vector into float array.
+	 *
+	 * @param vector
+	 *            column vector
+	 * @return normalized vector; zero vector stays zero.
+	 */
+	private static float[] normalize(SimpleMatrix vector) {
+		final int dimension = vector.getNumElements();
+		double norm = 0;
+		for (int i = 0; i < dimension; i++) {
+			norm += vector.get(i) * vector.get(i);
+		}
+		norm = norm > 0 ? Math.sqrt(norm) : 1;
+
+		final float[] normalized = new float[dimension];
+		for (int i = 0; i < dimension; i++) {
+			normalized[i] = (float) (vector.get(i) / norm);
+		}
+		return normalized;
+	}
+
+	/** Dimension of vectors **/
+	private final int dimension;
+	/** Maximum links per node in upper layers; twice in layer 0 **/
+	private final int m;
+	/** Beam width of insertion **/
+	private final int efConstruction;
+	/** Normalization factor of level, 1 / ln(M) **/
+	private final double levelFactor;
+	/** Beam width of query **/
+	private volatile int ef;
+	/** Nodes, by ID. Guarded by lock. **/
+	private final ArrayList<Node> nodes = new ArrayList<Node>();
+	/** Entry node of search, or -1 if empty. Guarded by lock. **/
+	private int entry = -1;
+	/** Top layer of graph. Guarded by lock. **/
+	private int maxLevel = -1;
+	/** Random level generator. Guarded by write lock. **/
+	private final Random random = new Random(42);
+	/** Lock : queries read, insertions write **/
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	/** Visited marks per thread **/
+	private final ThreadLocal<Visited> visited = new ThreadLocal<Visited>() {
+		@Override
+		protected Visited initialValue() {
+			return new Visited();
+		}
+	};
+
+	/**
+	 * Construct empty index, with parameters from system properties (M = 16,
+	 * ef of insertion = 200 by default).
+	 *
+	 * @param dimension
+	 *            of vectors
+	 */
+	public PhraseIndex(int dimension) {
+		this(dimension, Integer.getInteger(PhraseIndex.M_PROPERTY, 16), Integer
+				.getInteger(PhraseIndex.EF_CONSTRUCTION_PROPERTY, 200));
+	}
+
+	/**
+	 * Construct empty index.
+	 *
+	 * @param dimension
+	 *            of vectors
+	 * @param m
+	 *            maximum links per node in upper layers. Layer 0 has twice.
+	 * @param efConstruction
+	 *            beam width of insertion
+	 */
+	public PhraseIndex(int dimension, int m, int efConstruction) {
+		this.dimension = dimension;
+		this.m = m;
+		this.efConstruction = efConstruction;
+		this.levelFactor = 1 / Math.log(m);
+		this.ef = Integer.getInteger(PhraseIndex.EF_PROPERTY, 64);
+	}
+
+	/**
+	 * Add NP1 and NP2 phrases of NPN structure, with their vectors. The
+	 * result should have both {@link Result.Field#STRINGS} and
+	 * {@link Result.Field#NP_VECTORS}.
+	 *
+	 * @param result
+	 *            of NPN structure
+	 * @throws IllegalArgumentException
+	 *             when strings or vectors of NPs were not requested.
+	 */
+	public void add(Result result) {
+		if ((result.getNP1String() == null) || (result.getNP2String() == null)) {
+			throw new IllegalArgumentException(
+					"Result has no NP strings; request Field.STRINGS");
+		}
+		if ((result.getMatrixOfNP1() == null)
+				|| (result.getMatrixOfNP2() == null)) {
+			throw new IllegalArgumentException(
+					"Result has no NP vectors; request Field.NP_VECTORS");
+		}
+		this.add(result.getNP1String(), result.getMatrixOfNP1());
+		this.add(result.getNP2String(), result.getMatrixOfNP2());
+	}
+
+	/**
+	 * Add a phrase with its vector.
+	 *
+	 * @param phrase
+	 *            text
+	 * @param vector
+	 *            of phrase, such as from
+	 *            {@link kr.ac.kaist.ir.urae.StanfordWrapper#getPhraseVectorOf(edu.stanford.nlp.trees.Tree)}
+	 * @return ID of phrase
+	 */
+	public int add(String phrase, SimpleMatrix vector) {
+		if (vector.getNumElements() != this.dimension) {
+			throw new IllegalArgumentException("Dimension of vector is "
+					+ vector.getNumElements() + ", not " + this.dimension);
+		}
+		final float[] q = PhraseIndex.normalize(vector);
+
+		this.lock.writeLock().lock();
+		try {
+			final int level = (int) (-Math.log(1 - this.random.nextDouble()) * this.levelFactor);
+			final int id = this.nodes.size();
+			this.nodes.add(new Node(phrase, q, level, this.m));
+			if (this.entry < 0) {
+				this.entry = id;
+				this.maxLevel = level;
+				return id;
+			}
+
+			final Visited visited = this.visited.get();
+			int nearest = this.descend(q, level);
+			for (int l = Math.min(level, this.maxLevel); l >= 0; l--) {
+				final List<Candidate> found = this.searchLayer(q, nearest,
+						this.efConstruction, l, visited);
+				nearest = found.get(0).id;
+
+				final List<Candidate> selected = this.select(found, this.m);
+				for (final Candidate neighbor : selected) {
+					this.link(id, neighbor.id, l);
+					this.link(neighbor.id, id, l);
+				}
+			}
+
+			if (level > this.maxLevel) {
+				this.entry = id;
+				this.maxLevel = level;
+			}
+			return id;
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Descend greedily from entry node to the layer above given level.
+	 *
+	 * @param q
+	 *            normalized query
+	 * @param level
+	 *            to stop above
+	 * @return nearest node found
+	 */
+	private int descend(float[] q, int level) {
+		int nearest = this.entry;
+		float best = this.distance(q, nearest);
+		for (int l = this.maxLevel; l > level; l--) {
+			boolean moved = true;
+			while (moved) {
+				moved = false;
+				final Node node = this.nodes.get(nearest);
+				for (int j = 0; j < node.counts[l]; j++) {
+					final int next = node.links[l][j];
+					final float distance = this.distance(q, next);
+					if (distance < best) {
+						best = distance;
+						nearest = next;
+						moved = true;
+					}
+				}
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * Cosine distance of query and node.
+	 *
+	 * @param q
+	 *            normalized query
+	 * @param id
+	 *            of node
+	 * @return 1 - cosine similarity
+	 */
+	private float distance(float[] q, int id) {
+		final float[] v = this.nodes.get(id).vector;
+		float dot = 0;
+		for (int i = 0; i < q.length; i++) {
+			dot += q[i] * v[i];
+		}
+		return 1 - dot;
+	}
+
+	/**
+	 * Dimension of vectors.
+	 *
+	 * @return dimension
+	 */
+	public int getDimension() {
+		return this.dimension;
+	}
+
+	/**
+	 * Beam width of query.
+	 *
+	 * @return ef
+	 */
+	public int getEf() {
+		return this.ef;
+	}
+
+	/**
+	 * Add link from a node to another, and prune links of the node if it has
+	 * too many.
+	 *
+	 * @param from
+	 *            ID of node
+	 * @param to
+	 *            ID of linked node
+	 * @param level
+	 *            of layer
+	 */
+	private void link(int from, int to, int level) {
+		final Node node = this.nodes.get(from);
+		final int[] links = node.links[level];
+		links[node.counts[level]++] = to;
+		final int max = links.length - 1;
+		if (node.counts[level] <= max) {
+			return;
+		}
+
+		final List<Candidate> candidates = new ArrayList<Candidate>(
+				node.counts[level]);
+		for (int j = 0; j < node.counts[level]; j++) {
+			candidates.add(new Candidate(links[j], this.distance(node.vector,
+					links[j])));
+		}
+		Collections.sort(candidates, PhraseIndex.NEAREST);
+
+		final List<Candidate> kept = this.select(candidates, max);
+		node.counts[level] = kept.size();
+		for (int j = 0; j < kept.size(); j++) {
+			links[j] = kept.get(j).id;
+		}
+	}
+
+	/**
+	 * Save index to file. The file is replaced atomically. Insertions wait
+	 * while saving.
+	 *
+	 * @param file
+	 *            of index
+	 * @throws IOException
+	 *             when failed to write.
+	 */
+	public void save(File file) throws IOException {
+		final File temp = new File(file.getPath() + ".tmp");
+		final FileOutputStream stream = new FileOutputStream(temp);
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(stream, 1 << 16));
+
+		this.lock.readLock().lock();
+		try {
+			out.writeInt(PhraseIndex.MAGIC);
+			out.writeInt(PhraseIndex.VERSION);
+			out.writeInt(this.dimension);
+			out.writeInt(this.m);
+			out.writeInt(this.efConstruction);
+			out.writeInt(this.nodes.size());
+			out.writeInt(this.entry);
+			out.writeInt(this.maxLevel);
+
+			for (final Node node : this.nodes) {
+				final byte[] phrase = node.phrase.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(phrase.length);
+				out.write(phrase);
+				out.writeInt(node.counts.length - 1);
+				for (final float value : node.vector) {
+					out.writeFloat(value);
+				}
+				for (int l = 0; l < node.counts.length; l++) {
+					out.writeInt(node.counts[l]);
+					for (int j = 0; j < node.counts[l]; j++) {
+						out.writeInt(node.links[l][j]);
+					}
+				}
+			}
+			out.flush();
+			stream.getFD().sync();
+		} finally {
+			this.lock.readLock().unlock();
+			out.close();
+		}
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Find phrases most similar to given vector, by cosine similarity.
+	 *
+	 * @param vector
+	 *            of query phrase
+	 * @param k
+	 *            number of phrases to find, no more than the size of index
+	 *            is used
+	 * @return List of at most k neighbors, most similar first.
+	 */
+	public List<Neighbor> search(SimpleMatrix vector, int k) {
+		if (vector.getNumElements() != this.dimension) {
+			throw new IllegalArgumentException("Dimension of vector is "
+					+ vector.getNumElements() + ", not " + this.dimension);
+		}
+		final float[] q = PhraseIndex.normalize(vector);
+
+		this.lock.readLock().lock();
+		try {
+			// Neither list nor beam needs to be larger than the index.
+			final int count = Math.min(k, this.nodes.size());
+			final List<Neighbor> neighbors = new ArrayList<Neighbor>(Math.max(
+					count, 0));
+			if ((this.entry < 0) || (count <= 0)) {
+				return neighbors;
+			}
+
+			final List<Candidate> found = this.searchLayer(q,
+					this.descend(q, 0), Math.min(Math.max(this.ef, count),
+							this.nodes.size()), 0, this.visited.get());
+			for (int i = 0; i < Math.min(count, found.size()); i++) {
+				final Candidate c = found.get(i);
+				neighbors.add(new Neighbor(c.id, this.nodes.get(c.id).phrase,
+						1 - c.distance));
+			}
+			return neighbors;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Beam search in a layer.
+	 *
+	 * @param q
+	 *            normalized query
+	 * @param start
+	 *            ID of entry node
+	 * @param width
+	 *            of beam
+	 * @param level
+	 *            of layer
+	 * @param visited
+	 *            marks of current thread
+	 * @return at most width nodes found, nearest first.
+	 */
+	private List<Candidate> searchLayer(float[] q, int start, int width,
+			int level, Visited visited) {
+		visited.clear(this.nodes.size());
+		visited.visit(start);
+
+		final PriorityQueue<Candidate> candidates = new PriorityQueue<Candidate>(
+				width, PhraseIndex.NEAREST);
+		final PriorityQueue<Candidate> found = new PriorityQueue<Candidate>(
+				width + 1, PhraseIndex.FARTHEST);
+		final Candidate first = new Candidate(start, this.distance(q, start));
+		candidates.add(first);
+		found.add(first);
+
+		while (!candidates.isEmpty()) {
+			final Candidate current = candidates.poll();
+			if (current.distance > found.peek().distance) {
+				// Every candidate left is farther than what is found.
+				break;
+			}
+
+			final Node node = this.nodes.get(current.id);
+			for (int j = 0; j < node.counts[level]; j++) {
+				final int next = node.links[level][j];
+				if (!visited.visit(next)) {
+					continue;
+				}
+
+				final float distance = this.distance(q, next);
+				if (found.size() < width || distance < found.peek().distance) {
+					final Candidate candidate = new Candidate(next, distance);
+					candidates.add(candidate);
+					found.add(candidate);
+					if (found.size() > width) {
+						found.poll();
+					}
+				}
+			}
+		}
+
+		final List<Candidate> sorted = new ArrayList<Candidate>(found);
+		Collections.sort(sorted, PhraseIndex.NEAREST);
+		return sorted;
+	}
+
+	/**
+	 * Select neighbors with the heuristic of HNSW: a candidate is skipped if
+	 * it is closer to a selected one than to the query, so that links spread
+	 * in different directions. Skipped ones fill the remaining slots.
+	 *
+	 * @param candidates
+	 *            nearest first
+	 * @param max
+	 *            number of neighbors to select
+	 * @return selected neighbors
+	 */
+	private List<Candidate> select(List<Candidate> candidates, int max) {
+		final List<Candidate> selected = new ArrayList<Candidate>(max);
+		final List<Candidate> skipped = new ArrayList<Candidate>();
+		for (final Candidate candidate : candidates) {
+			if (selected.size() >= max) {
+				break;
+			}
+
+			final float[] v = this.nodes.get(candidate.id).vector;
+			boolean diverse = true;
+			for (final Candidate chosen : selected) {
+				if (this.distance(v, chosen.id) < candidate.distance) {
+					diverse = false;
+					break;
+				}
+			}
+			if (diverse) {
+				selected.add(candidate);
+			} else {
+				skipped.add(candidate);
+			}
+		}
+
+		for (int i = 0; i < skipped.size() && selected.size() < max; i++) {
+			selected.add(skipped.get(i));
+		}
+		return selected;
+	}
+
+	/**
+	 * Set beam width of query. Larger ef gives better recall, and slower
+	 * query.
+	 *
+	 * @param ef
+	 *            beam width, at least the number of phrases to find
+	 */
+	public void setEf(int ef) {
+		this.ef = ef;
+	}
+
+	/**
+	 * Number of phrases.
+	 *
+	 * @return size of index
+	 */
+	public int size() {
+		this.lock.readLock().lock();
+		try {
+			return this.nodes.size();
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,673 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.pipeline;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import kr.ac.kaist.ir.urae.ParseLimitException;
+import kr.ac.kaist.ir.urae.StanfordWrapper;
+
+import org.ejml.simple.SimpleMatrix;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * <p>
+ * Offline encoder of phrase vectors, for large corpora.
+ * </p>
+ * <p>
+ * Each line of input file is a phrase or a sentence, and each line of output
+ * file is its phrase vector in CSV format, in the same order with input, as
+ * <tt>appendix/outVectors.txt</tt>. Lines which are empty or failed are
+ * written as empty lines, so that line numbers of input and output agree.
+ * </p>
+ * <p>
+ * With <tt>-Dnpe.bulk.input=trees</tt>, input file has parse trees in Penn
+ * Treebank format instead, as <tt>appendix/parsed.txt</tt>, read by
+ * {@link TreebankReader}. The parser is skipped, and each line of output is
+ * the vector of each tree.
+ * </p>
+ * <p>
+ * Lines are processed in chunks through stages, connected by bounded queues:
+ * </p>
+ * <ol>
+ * <li>Reader : reads chunks of lines.</li>
+ * <li>Parsers : tokenize and parse lines, with parsers borrowed from the
+ * parser pool of StanfordWrapper, or read trees.</li>
+ * <li>Encoders : encode trees of a chunk at once, with
+ * {@link StanfordWrapper#getPhraseVectorsOf(java.util.List)}.</li>
+ * <li>Writer : writes chunks in input order.</li>
+ * </ol>
+ * <p>
+ * Chunks are finished out of order, so the writer keeps them until their turn.
+ * The number of chunks between reader and writer is limited, so memory usage
+ * does not grow with the size of input.
+ * </p>
+ * <p>
+ * The writer takes a {@link Checkpoint} periodically, in
+ * <tt>[OUTPUT FILE].checkpoint</tt>. If the checkpoint exists when started,
+ * the job resumes from it. A large input can be split into byte ranges with
+ * <tt>-Dnpe.bulk.shard=[INDEX]/[COUNT]</tt>, and each shard can run on
+ * another JVM with its own output file. Concatenating outputs of every shard
+ * in order gives the output of the whole input.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public final class BulkEncoder {
+	/**
+	 * Lines of input, and their results.
+	 */
+	private static final class Chunk {
+		/** Sequence number of chunk **/
+		private final long sequence;
+		/** Lines of input **/
+		private final List<String> lines;
+		/** Input offset after the last line **/
+		private final long end;
+		/** Parse trees, null for empty or failed lines **/
+		private Tree[] trees;
+		/** Phrase vectors, null for empty or failed lines **/
+		private SimpleMatrix[] vectors;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param sequence
+		 *            number of chunk
+		 * @param lines
+		 *            of input
+		 * @param end
+		 *            input offset after the last line
+		 */
+		Chunk(long sequence, List<String> lines, long end) {
+			this.sequence = sequence;
+			this.lines = lines;
+			this.end = end;
+		}
+	}
+
+	/**
+	 * Reader of input records, which are lines or trees.
+	 */
+	private interface Source {
+		/**
+		 * Offset after the last record read.
+		 *
+		 * @return offset in bytes
+		 */
+		long getOffset();
+
+		/**
+		 * Read next record.
+		 *
+		 * @return record, or null if input is over.
+		 * @throws IOException
+		 *             when failed to read.
+		 */
+		String read() throws IOException;
+	}
+
+	/**
+	 * Body of a stage.
+	 */
+	private interface Stage {
+		/**
+		 * Run the stage.
+		 *
+		 * @throws Exception
+		 *             when the stage failed.
+		 */
+		void run() throws Exception;
+	}
+
+	/** System property for number of parser threads **/
+	public static final String PARSERS_PROPERTY = "npe.bulk.parsers";
+	/** System property for number of encoder threads **/
+	public static final String ENCODERS_PROPERTY = "npe.bulk.encoders";
+	/** System property for number of lines in a chunk **/
+	public static final String CHUNK_PROPERTY = "npe.bulk.chunk";
+	/** System property for number of chunks in flight **/
+	public static final String IN_FLIGHT_PROPERTY = "npe.bulk.inflight";
+	/** System property for interval of progress report, in milliseconds **/
+	public static final String PROGRESS_PROPERTY = "npe.bulk.progress";
+	/** System property for interval of checkpoints, in milliseconds **/
+	public static final String CHECKPOINT_PROPERTY = "npe.bulk.checkpoint";
+	/** System property for shard of input, as [INDEX]/[COUNT] **/
+	public static final String SHARD_PROPERTY = "npe.bulk.shard";
+	/** System property for format of input, lines or trees **/
+	public static final String INPUT_PROPERTY = "npe.bulk.input";
+
+	/** Marker of end of input **/
+	private static final Chunk END = new Chunk(-1, null, -1);
+
+	/**
+	 * Main method for run.
+	 *
+	 * @param args
+	 *            from the command line.
+	 */
+	public static void main(String[] args) {
+		if (args.length > 1) {
+			try {
+				final StanfordWrapper instance = StanfordWrapper.getInstance();
+				final int parsers = Integer.getInteger(
+						BulkEncoder.PARSERS_PROPERTY, instance.getParserPool()
+								.getCapacity());
+				final int encoders = Integer.getInteger(
+						BulkEncoder.ENCODERS_PROPERTY,
+						Math.max(1, parsers / 4));
+				final int chunk = Integer.getInteger(BulkEncoder.CHUNK_PROPERTY,
+						64);
+				final int inFlight = Integer.getInteger(
+						BulkEncoder.IN_FLIGHT_PROPERTY, (parsers + encoders) * 4);
+
+				final String[] shard = System.getProperty(
+						BulkEncoder.SHARD_PROPERTY, "0/1").split("/");
+				final int index = Integer.parseInt(shard[0]);
+				final int count = Integer.parseInt(shard[1]);
+				final boolean trees = "trees".equalsIgnoreCase(System
+						.getProperty(BulkEncoder.INPUT_PROPERTY, "lines"));
+
+				final FileChannel in = FileChannel.open(new File(args[0])
+						.toPath(), StandardOpenOption.READ);
+				final FileChannel out = FileChannel.open(new File(args[1])
+						.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE);
+				try {
+					// Split by bytes; readers assign each record to one shard.
+					final long size = in.size();
+					final long begin = size * index / count;
+					final long end = size * (index + 1) / count;
+
+					final File file = new File(args[1] + ".checkpoint");
+					Checkpoint from;
+					if (file.exists()) {
+						from = Checkpoint.read(file);
+						if (from.getBegin() != begin || from.getEnd() != end) {
+							throw new IOException("Checkpoint is of another shard : "
+									+ from);
+						}
+						Logger.getAnonymousLogger().info("Resume from " + from);
+					} else {
+						from = new Checkpoint(begin, end,
+								trees ? TreebankReader.align(in, begin)
+										: LineReader.align(in, begin), 0, 0);
+					}
+
+					new BulkEncoder(instance, trees, parsers, encoders, chunk,
+							inFlight).encode(in, out, from, file);
+				} finally {
+					out.close();
+					in.close();
+				}
+			} catch (final Exception e) {
+				e.printStackTrace();
+			}
+		} else {
+			System.out
+					.println("USAGE: java (-Dnpe.bulk.shard=[INDEX]/[COUNT]) (-Dnpe.bulk.input=trees) -cp [JAR FILE] kr.ac.kaist.ir.pipeline.BulkEncoder [INPUT FILE] [OUTPUT FILE]");
+		}
+	}
+
+	/** logger **/
+	private final Logger logger = Logger.getAnonymousLogger();
+	/** StanfordWrapper instance **/
+	private final StanfordWrapper instance;
+	/** Whether input has trees instead of lines **/
+	private final boolean trees;
+	/** Number of parser and encoder threads **/
+	private final int parsers, encoders;
+	/** Number of lines in a chunk **/
+	private final int chunkSize;
+	/** Number of chunks in flight **/
+	private final int inFlight;
+	/** Interval of progress report, in nanoseconds **/
+	private final long progressNanos;
+	/** Interval of checkpoints, in nanoseconds **/
+	private final long checkpointNanos;
+
+	/** Number of lines written **/
+	private final AtomicLong written = new AtomicLong();
+	/** Number of lines failed **/
+	private final AtomicLong failed = new AtomicLong();
+	/** First failure of stages **/
+	private volatile Throwable failure;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param instance
+	 *            StanfordWrapper to parse and encode
+	 * @param trees
+	 *            true if input has trees in Penn Treebank format, false if
+	 *            input has phrases or sentences
+	 * @param parsers
+	 *            number of parser threads
+	 * @param encoders
+	 *            number of encoder threads
+	 * @param chunkSize
+	 *            number of lines in a chunk
+	 * @param inFlight
+	 *            number of chunks between reader and writer
+	 */
+	public BulkEncoder(StanfordWrapper instance, boolean trees, int parsers,
+			int encoders, int chunkSize, int inFlight) {
+		this.instance = instance;
+		this.trees = trees;
+		this.parsers = parsers;
+		this.encoders = encoders;
+		this.chunkSize = chunkSize;
+		this.inFlight = inFlight;
+		this.progressNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong(
+				BulkEncoder.PROGRESS_PROPERTY, 10000));
+		this.checkpointNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong(
+				BulkEncoder.CHECKPOINT_PROPERTY, 60000));
+	}
+
+	/**
+	 * Encode every line of input shard from checkpoint, and write vectors to
+	 * output in order. Output is truncated to the checkpoint first.
+	 *
+	 * @param input
+	 *            file of phrases or sentences, one per line, or trees
+	 * @param output
+	 *            file to write vectors. This is not closed.
+	 * @param from
+	 *            checkpoint to start, which covers the whole shard when
+	 *            starting from scratch
+	 * @param file
+	 *            to write checkpoints, or null not to write
+	 * @return the last checkpoint
+	 * @throws IOException
+	 *             when failed to read or write, or a stage failed.
+	 * @throws InterruptedException
+	 *             when interrupted while waiting.
+	 */
+	public Checkpoint encode(FileChannel input, FileChannel output,
+			Checkpoint from, File file) throws IOException,
+			InterruptedException {
+		final Source in = this.open(input, from);
+		// Lines after the checkpoint may be partially written.
+		output.truncate(from.getOutput());
+		output.position(from.getOutput());
+
+		final BlockingQueue<Chunk> read = new ArrayBlockingQueue<Chunk>(
+				this.inFlight);
+		final BlockingQueue<Chunk> parsed = new ArrayBlockingQueue<Chunk>(
+				this.inFlight);
+		final BlockingQueue<Chunk> encoded = new ArrayBlockingQueue<Chunk>(
+				this.inFlight);
+		// Chunks between reader and writer, including those kept by writer.
+		final Semaphore permits = new Semaphore(this.inFlight);
+		final AtomicInteger parsing = new AtomicInteger(this.parsers);
+		final AtomicInteger encoding = new AtomicInteger(this.encoders);
+
+		final ExecutorService stages = Executors
+				.newFixedThreadPool(1 + this.parsers + this.encoders);
+		stages.execute(this.stage(new Stage() {
+			@Override
+			public void run() throws Exception {
+				long sequence = 0;
+				List<String> lines = new ArrayList<String>(
+						BulkEncoder.this.chunkSize);
+				String line;
+				while ((line = in.read()) != null) {
+					lines.add(line);
+					if (lines.size() == BulkEncoder.this.chunkSize) {
+						permits.acquire();
+						read.put(new Chunk(sequence++, lines, in.getOffset()));
+						lines = new ArrayList<String>(BulkEncoder.this.chunkSize);
+					}
+				}
+				if (!lines.isEmpty()) {
+					permits.acquire();
+					read.put(new Chunk(sequence, lines, in.getOffset()));
+				}
+				for (int i = 0; i < BulkEncoder.this.parsers; i++) {
+					read.put(BulkEncoder.END);
+				}
+			}
+		}));
+
+		for (int t = 0; t < this.parsers; t++) {
+			stages.execute(this.stage(new Stage() {
+				@Override
+				public void run() throws Exception {
+					Chunk chunk;
+					while ((chunk = read.take()) != BulkEncoder.END) {
+						BulkEncoder.this.parse(chunk);
+						parsed.put(chunk);
+					}
+					// The last parser tells encoders that input is over.
+					if (parsing.decrementAndGet() == 0) {
+						for (int i = 0; i < BulkEncoder.this.encoders; i++) {
+							parsed.put(BulkEncoder.END);
+						}
+					}
+				}
+			}));
+		}
+
+		for (int t = 0; t < this.encoders; t++) {
+			stages.execute(this.stage(new Stage() {
+				@Override
+				public void run() throws Exception {
+					Chunk chunk;
+					while ((chunk = parsed.take()) != BulkEncoder.END) {
+						BulkEncoder.this.encode(chunk);
+						encoded.put(chunk);
+					}
+					if (encoding.decrementAndGet() == 0) {
+						encoded.put(BulkEncoder.END);
+					}
+				}
+			}));
+		}
+
+		try {
+			return this.write(encoded, permits, output, from, file, in, read,
+					parsed);
+		} finally {
+			stages.shutdownNow();
+		}
+	}
+
+	/**
+	 * Flush output to disk, and write checkpoint.
+	 *
+	 * @param out
+	 *            writer of output
+	 * @param output
+	 *            file of output
+	 * @param from
+	 *            checkpoint of start
+	 * @param input
+	 *            offset of next input line
+	 * @param lines
+	 *            number of lines written since start
+	 * @param file
+	 *            to write checkpoint, or null not to write
+	 * @return checkpoint
+	 * @throws IOException
+	 *             when failed to write.
+	 */
+	private Checkpoint checkpoint(Writer out, FileChannel output,
+			Checkpoint from, long input, long lines, File file)
+			throws IOException {
+		out.flush();
+		// Output should be on disk before the checkpoint which refers it.
+		output.force(false);
+		final Checkpoint checkpoint = new Checkpoint(from.getBegin(),
+				from.getEnd(), input, output.position(), from.getLines()
+						+ lines);
+		if (file != null) {
+			checkpoint.write(file);
+		}
+		return checkpoint;
+	}
+
+	/**
+	 * Encode trees of a chunk at once.
+	 *
+	 * @param chunk
+	 *            to be encoded
+	 */
+	private void encode(Chunk chunk) {
+		final List<Tree> trees = new ArrayList<Tree>(chunk.trees.length);
+		for (final Tree tree : chunk.trees) {
+			if (tree != null) {
+				trees.add(tree);
+			}
+		}
+
+		chunk.vectors = new SimpleMatrix[chunk.trees.length];
+		try {
+			final List<SimpleMatrix> vectors = this.instance
+					.getPhraseVectorsOf(trees);
+			for (int i = 0, j = 0; i < chunk.trees.length; i++) {
+				if (chunk.trees[i] != null) {
+					chunk.vectors[i] = vectors.get(j++);
+				}
+			}
+		} catch (final RuntimeException e) {
+			// One bad tree fails the batch. Encode one by one to find it.
+			for (int i = 0; i < chunk.trees.length; i++) {
+				if (chunk.trees[i] != null) {
+					try {
+						chunk.vectors[i] = this.instance
+								.getPhraseVectorOf(chunk.trees[i]);
+					} catch (final RuntimeException f) {
+						this.logger.log(Level.WARNING, "ERROR with line : "
+								+ chunk.lines.get(i), f);
+						this.failed.incrementAndGet();
+					}
+				}
+			}
+		}
+		chunk.trees = null;
+	}
+
+	/**
+	 * Open source of input from checkpoint.
+	 *
+	 * @param input
+	 *            file of input
+	 * @param from
+	 *            checkpoint to start
+	 * @return Source of lines or trees
+	 */
+	private Source open(FileChannel input, Checkpoint from) {
+		if (this.trees) {
+			final TreebankReader reader = new TreebankReader(input,
+					from.getInput(), from.getEnd());
+			return new Source() {
+				@Override
+				public long getOffset() {
+					return reader.getOffset();
+				}
+
+				@Override
+				public String read() throws IOException {
+					return reader.readTree();
+				}
+			};
+		}
+
+		final LineReader reader = new LineReader(input, from.getInput(),
+				from.getEnd());
+		return new Source() {
+			@Override
+			public long getOffset() {
+				return reader.getOffset();
+			}
+
+			@Override
+			public String read() throws IOException {
+				return reader.readLine();
+			}
+		};
+	}
+
+	/**
+	 * Parse lines of a chunk.
+	 *
+	 * @param chunk
+	 *            to be parsed
+	 */
+	private void parse(Chunk chunk) {
+		chunk.trees = new Tree[chunk.lines.size()];
+		for (int i = 0; i < chunk.trees.length; i++) {
+			final String line = chunk.lines.get(i);
+			if (line.trim().length() > 0) {
+				try {
+					chunk.trees[i] = this.trees ? this.instance.readTree(line)
+							: this.instance.parseTree(line);
+				} catch (final ParseLimitException e) {
+					// Encode flat tree, so that every line has a vector.
+					this.logger.warning(e.getMessage() + " : " + line);
+					chunk.trees[i] = e.getFallbackTree();
+				} catch (final RuntimeException e) {
+					this.logger.log(Level.WARNING, "ERROR with line : " + line,
+							e);
+					this.failed.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Report progress.
+	 *
+	 * @param begin
+	 *            start time, in nanoseconds
+	 * @param queues
+	 *            to show their length
+	 */
+	private void report(long begin, BlockingQueue<?>... queues) {
+		final double seconds = (System.nanoTime() - begin) / 1e9;
+		final StringBuilder lengths = new StringBuilder();
+		for (final BlockingQueue<?> queue : queues) {
+			lengths.append(lengths.length() == 0 ? "" : "/").append(
+					queue.size());
+		}
+		this.logger.info(String.format(
+				"%d lines, %d failed, %.1f s, %.1f lines/s, queues %s",
+				this.written.get(), this.failed.get(), seconds,
+				this.written.get() / Math.max(seconds, 1e-9), lengths));
+	}
+
+	/**
+	 * Wrap a stage, so that its failure stops the writer.
+	 *
+	 * @param stage
+	 *            to be wrapped
+	 * @return Runnable of the stage
+	 */
+	private Runnable stage(final Stage stage) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					stage.run();
+				} catch (final InterruptedException e) {
+					// Stopped by the writer.
+				} catch (final Throwable e) {
+					if (BulkEncoder.this.failure == null) {
+						BulkEncoder.this.failure = e;
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Write chunks in input order, and take checkpoints.
+	 *
+	 * @param encoded
+	 *            queue of encoded chunks, in any order
+	 * @param permits
+	 *            to be released for each written chunk
+	 * @param output
+	 *            file to write vectors
+	 * @param from
+	 *            checkpoint of start
+	 * @param file
+	 *            to write checkpoints, or null not to write
+	 * @param in
+	 *            source of input, to find the end
+	 * @param queues
+	 *            of previous stages, for progress report
+	 * @return the last checkpoint
+	 * @throws IOException
+	 *             when failed to write, or a stage failed.
+	 * @throws InterruptedException
+	 *             when interrupted while waiting.
+	 */
+	private Checkpoint write(BlockingQueue<Chunk> encoded, Semaphore permits,
+			FileChannel output, Checkpoint from, File file, Source in,
+			BlockingQueue<?>... queues) throws IOException,
+			InterruptedException {
+		final Writer out = new BufferedWriter(new OutputStreamWriter(
+				Channels.newOutputStream(output), StandardCharsets.UTF_8));
+		final Map<Long, Chunk> waiting = new HashMap<Long, Chunk>();
+		final StringBuilder builder = new StringBuilder();
+		final long begin = System.nanoTime();
+		long next = 0, lastReport = begin, lastCheckpoint = begin;
+		long input = from.getInput();
+
+		while (true) {
+			final Chunk chunk = encoded.poll(100, TimeUnit.MILLISECONDS);
+			if (this.failure != null) {
+				throw new IOException("Stage failed", this.failure);
+			}
+			if (chunk == BulkEncoder.END) {
+				break;
+			}
+
+			if (chunk != null) {
+				waiting.put(chunk.sequence, chunk);
+			}
+			Chunk ready;
+			while ((ready = waiting.remove(next)) != null) {
+				for (int i = 0; i < ready.lines.size(); i++) {
+					builder.setLength(0);
+					final SimpleMatrix vector = ready.vectors[i];
+					if (vector != null) {
+						for (int r = 0; r < vector.numRows(); r++) {
+							builder.append(r == 0 ? "" : ",").append(
+									(float) vector.get(r, 0));
+						}
+					}
+					out.write(builder.append('\n').toString());
+				}
+				this.written.addAndGet(ready.lines.size());
+				input = ready.end;
+				permits.release();
+				next++;
+			}
+
+			final long now = System.nanoTime();
+			if (now - lastReport >= this.progressNanos) {
+				this.report(begin, queues);
+				lastReport = now;
+			}
+			if (now - lastCheckpoint >= this.checkpointNanos) {
+				this.checkpoint(out, output, from, input, this.written.get(),
+						file);
+				lastCheckpoint = now;
+			}
+		}
+
+		// Reader has finished before END, so its offset is the end of shard.
+		final Checkpoint last = this.checkpoint(out, output, from,
+				in.getOffset(), this.written.get(), file);
+		this.report(begin, queues);
+		this.logger.info("Finished : " + last);
+		return last;
+	}
+}
@@ -0,0 +1,185 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.pipeline;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * <p>
+ * Progress of a {@link BulkEncoder} job, which can be resumed.
+ * </p>
+ * <p>
+ * Input offset is the start of the first line not yet written, and output
+ * offset is the size of output flushed to disk when the checkpoint was taken.
+ * To resume, output is truncated to output offset, and input is read from
+ * input offset. So lines written after the checkpoint are written again, but
+ * only once.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public final class Checkpoint {
+	/**
+	 * Read checkpoint from file.
+	 *
+	 * @param file
+	 *            of checkpoint
+	 * @return Checkpoint instance
+	 * @throws IOException
+	 *             when failed to read, or file is not a checkpoint.
+	 */
+	public static Checkpoint read(File file) throws IOException {
+		final Properties properties = new Properties();
+		final InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+
+		try {
+			return new Checkpoint(Long.parseLong(properties
+					.getProperty("begin")), Long.parseLong(properties
+					.getProperty("end")), Long.parseLong(properties
+					.getProperty("input")), Long.parseLong(properties
+					.getProperty("output")), Long.parseLong(properties
+					.getProperty("lines")));
+		} catch (final NumberFormatException e) {
+			throw new IOException("Not a checkpoint : " + file, e);
+		}
+	}
+
+	/** Byte range of input shard **/
+	private final long begin, end;
+	/** Offset of next input line **/
+	private final long input;
+	/** Offset of output **/
+	private final long output;
+	/** Number of lines written **/
+	private final long lines;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param begin
+	 *            of input shard, in bytes
+	 * @param end
+	 *            of input shard, in bytes, exclusive
+	 * @param input
+	 *            offset of next input line
+	 * @param output
+	 *            offset of output
+	 * @param lines
+	 *            number of lines written
+	 */
+	public Checkpoint(long begin, long end, long input, long output, long lines) {
+		this.begin = begin;
+		this.end = end;
+		this.input = input;
+		this.output = output;
+		this.lines = lines;
+	}
+
+	/**
+	 * Start of input shard.
+	 *
+	 * @return offset in bytes
+	 */
+	public long getBegin() {
+		return this.begin;
+	}
+
+	/**
+	 * End of input shard, exclusive.
+	 *
+	 * @return offset in bytes
+	 */
+	public long getEnd() {
+		return this.end;
+	}
+
+	/**
+	 * Start of the first input line not yet written.
+	 *
+	 * @return offset in bytes
+	 */
+	public long getInput() {
+		return this.input;
+	}
+
+	/**
+	 * Number of lines written.
+	 *
+	 * @return number of lines
+	 */
+	public long getLines() {
+		return this.lines;
+	}
+
+	/**
+	 * Size of output written.
+	 *
+	 * @return offset in bytes
+	 */
+	public long getOutput() {
+		return this.output;
+	}
+
+	/**
+	 * Whether every line of the shard is written.
+	 *
+	 * @return true if finished
+	 */
+	public boolean isFinished() {
+		return this.input >= this.end;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format(
+				"Checkpoint[shard %d-%d, input %d, output %d, %d lines]",
+				this.begin, this.end, this.input, this.output, this.lines);
+	}
+
+	/**
+	 * Write checkpoint to file. The file is replaced atomically, so that it
+	 * is never partially written.
+	 *
+	 * @param file
+	 *            of checkpoint
+	 * @throws IOException
+	 *             when failed to write.
+	 */
+	public void write(File file) throws IOException {
+		final Properties properties = new Properties();
+		properties.setProperty("begin", String.valueOf(this.begin));
+		properties.setProperty("end", String.valueOf(this.end));
+		properties.setProperty("input", String.valueOf(this.input));
+		properties.setProperty("output", String.valueOf(this.output));
+		properties.setProperty("lines", String.valueOf(this.lines));
+
+		final File temp = new File(file.getPath() + ".tmp");
+		final FileOutputStream out = new FileOutputStream(temp);
+		try {
+			properties.store(out, null);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.pipeline;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Reader of UTF-8 lines from a byte range of a file, which knows the byte
+ * offset of each line.
+ * </p>
+ * <p>
+ * A line belongs to the range in which its first byte is. So a file can be
+ * split into byte ranges, and each line is read by exactly one of them, if the
+ * start of each range is {@link #align(FileChannel, long) aligned}. Both
+ * <tt>\n</tt> and <tt>\r\n</tt> end a line.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public final class LineReader {
+	/**
+	 * Find the start of the first line at or after offset.
+	 *
+	 * @param channel
+	 *            of file
+	 * @param offset
+	 *            in bytes
+	 * @return offset of line start, or size of file if there is no such line.
+	 * @throws IOException
+	 *             when failed to read.
+	 */
+	public static long align(FileChannel channel, long offset)
+			throws IOException {
+		if (offset <= 0) {
+			return 0;
+		}
+
+		// If previous byte ends a line, a line starts at offset.
+		final ByteBuffer buffer = ByteBuffer.allocate(8192);
+		long position = offset - 1;
+		while (channel.read((ByteBuffer) buffer.clear(), position) > 0) {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				position++;
+				if (buffer.get() == '\n') {
+					return position;
+				}
+			}
+		}
+		return channel.size();
+	}
+
+	/** Channel of file **/
+	private final FileChannel channel;
+	/** End of range, exclusive **/
+	private final long end;
+	/** Read buffer **/
+	private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+	/** File offset of the first byte in buffer **/
+	private long bufferOffset;
+	/** Bytes of current line **/
+	private byte[] line = new byte[256];
+	/** Offset after the last line read **/
+	private long offset;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param channel
+	 *            of file
+	 * @param offset
+	 *            start of the first line
+	 * @param end
+	 *            end of range, exclusive. Lines which start at or after this
+	 *            are not read.
+	 */
+	public LineReader(FileChannel channel, long offset, long end) {
+		this.channel = channel;
+		this.offset = offset;
+		this.bufferOffset = offset;
+		this.end = end;
+		this.buffer.limit(0);
+	}
+
+	/**
+	 * Offset after the last line read, which is the start of the next line.
+	 *
+	 * @return offset in bytes
+	 */
+	public long getOffset() {
+		return this.offset;
+	}
+
+	/**
+	 * Read next line.
+	 *
+	 * @return line without line terminator, or null if the range is over.
+	 * @throws IOException
+	 *             when failed to read.
+	 */
+	public String readLine() throws IOException {
+		if (this.offset >= this.end) {
+			return null;
+		}
+
+		int length = 0;
+		while (true) {
+			if (!this.buffer.hasRemaining()) {
+				this.bufferOffset += this.buffer.limit();
+				this.buffer.clear();
+				final int read = this.channel.read(this.buffer,
+						this.bufferOffset);
+				this.buffer.flip();
+				if (read <= 0) {
+					// End of file. The last line has no terminator.
+					if (length == 0 && this.offset == this.bufferOffset) {
+						return null;
+					}
+					this.offset = this.bufferOffset;
+					return this.decode(length);
+				}
+			}
+
+			final byte b = this.buffer.get();
+			if (b == '\n') {
+				this.offset = this.bufferOffset + this.buffer.position();
+				return this.decode(length);
+			}
+
+			if (length == this.line.length) {
+				this.line = Arrays.copyOf(this.line, length * 2);
+			}
+			this.line[length++] = b;
+		}
+	}
+
+	/**
+	 * Decode bytes of current line.
+	 *
+	 * @param length
+	 *            of line
+	 * @return line without line terminator
+	 */
+	private String decode(int length) {
+		if (length > 0 && this.line[length - 1] == '\r') {
+			length--;
+		}
+		return new String(this.line, 0, length, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.pipeline;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * Streaming reader of parse trees in Penn Treebank format, as
+ * <tt>appendix/parsed.txt</tt>, from a byte range of a file.
+ * </p>
+ * <p>
+ * A tree may span many lines, and trees may be separated by blank lines. A
+ * tree ends when its brackets are balanced. Each tree is returned as a string
+ * on one line, which can be read by
+ * {@link kr.ac.kaist.ir.urae.StanfordWrapper#readTree(String)}. Only one tree
+ * is kept in memory at a time.
+ * </p>
+ * <p>
+ * As {@link LineReader}, a tree belongs to the range in which its first byte
+ * is, and it is read to its end even if it goes beyond the range. A tree
+ * should start at the beginning of a line with <tt>(</tt>, and its other
+ * lines should not.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public final class TreebankReader {
+	/**
+	 * Find the start of the first tree at or after offset, which is a line
+	 * starting with <tt>(</tt>.
+	 *
+	 * @param channel
+	 *            of file
+	 * @param offset
+	 *            in bytes
+	 * @return offset of tree start, or size of file if there is no such tree.
+	 * @throws IOException
+	 *             when failed to read.
+	 */
+	public static long align(FileChannel channel, long offset)
+			throws IOException {
+		long line = LineReader.align(channel, offset);
+		final ByteBuffer first = ByteBuffer.allocate(1);
+		while (line < channel.size()) {
+			first.clear();
+			if (channel.read(first, line) > 0 && first.get(0) == '(') {
+				return line;
+			}
+			line = LineReader.align(channel, line + 1);
+		}
+		return channel.size();
+	}
+
+	/** Reader of lines, without range **/
+	private final LineReader lines;
+	/** End of range, exclusive **/
+	private final long end;
+	/** Offset after the last tree read **/
+	private long offset;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param channel
+	 *            of file
+	 * @param offset
+	 *            start of the first tree, or a blank line before it
+	 * @param end
+	 *            end of range, exclusive. Trees which start at or after this
+	 *            are not read.
+	 */
+	public TreebankReader(FileChannel channel, long offset, long end) {
+		this.lines = new LineReader(channel, offset, Long.MAX_VALUE);
+		this.offset = offset;
+		this.end = end;
+	}
+
+	/**
+	 * Offset after the last tree read, which is the start of the next tree or
+	 * blank lines before it.
+	 *
+	 * @return offset in bytes
+	 */
+	public long getOffset() {
+		return this.offset;
+	}
+
+	/**
+	 * Read next tree.
+	 *
+	 * @return tree in one line, or null if the range is over.
+	 * @throws IOException
+	 *             when failed to read, or the last tree is not closed.
+	 */
+	public String readTree() throws IOException {
+		final StringBuilder tree = new StringBuilder();
+		int depth = 0;
+		while (true) {
+			final long start = this.lines.getOffset();
+			final String line = this.lines.readLine();
+			if (line == null) {
+				if (tree.length() > 0) {
+					throw new IOException("Tree is not closed at the end : "
+							+ tree);
+				}
+				this.offset = start;
+				return null;
+			}
+
+			final String trimmed = line.trim();
+			if (tree.length() == 0) {
+				if (trimmed.isEmpty()) {
+					continue;
+				}
+				if (start >= this.end) {
+					// Next tree belongs to the next range.
+					this.offset = start;
+					return null;
+				}
+			} else {
+				tree.append(' ');
+			}
+			tree.append(trimmed);
+
+			for (int i = 0; i < trimmed.length(); i++) {
+				final char c = trimmed.charAt(i);
+				if (c == '(') {
+					depth++;
+				} else if (c == ')') {
+					depth--;
+				}
+			}
+			if (depth <= 0) {
+				this.offset = this.lines.getOffset();
+				return tree.toString();
+			}
+		}
+	}
+}
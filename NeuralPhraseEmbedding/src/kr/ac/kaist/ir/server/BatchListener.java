@@ -0,0 +1,43 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.server;
+
+import java.util.List;
+
+import kr.ac.kaist.ir.urae.Result;
+
+/**
+ * Receiver of per-sentence results of batch or document requests. Methods are
+ * called on the reader thread of {@link ParserClient}, in the order of
+ * arrival, which is not the order of sentences. They should return quickly.
+ * RuntimeExceptions thrown from them are logged, and the request goes on.
+ *
+ * @author 김부근
+ *
+ */
+public interface BatchListener {
+	/**
+	 * Called when server could not process a sentence.
+	 *
+	 * @param index
+	 *            of the sentence
+	 * @param sentence
+	 *            text, or null if unknown
+	 * @param cause
+	 *            from server
+	 */
+	void onError(int index, String sentence, ServerException cause);
+
+	/**
+	 * Called when results of a sentence arrive.
+	 *
+	 * @param index
+	 *            of the sentence
+	 * @param sentence
+	 *            text of the sentence
+	 * @param results
+	 *            List of {@link Result} instances.
+	 */
+	void onResult(int index, String sentence, List<Result> results);
+}
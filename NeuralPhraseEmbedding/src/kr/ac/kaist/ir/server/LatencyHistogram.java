@@ -0,0 +1,154 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * Histogram of latencies, recorded without locks.
+ * </p>
+ * <p>
+ * Latencies are counted in microseconds, in log-linear buckets as
+ * HdrHistogram: each power of 2 is split into 32 buckets, so that a
+ * percentile is at most about 3% above the true value. Values up to 32
+ * microseconds are exact, and values above about 38 hours are counted as 38
+ * hours. Recording is an increment of a bucket, so it is cheap enough for
+ * every sentence.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public final class LatencyHistogram {
+	/** Bits of sub-bucket in each power of 2 **/
+	private static final int SUB_BITS = 5;
+	/** Number of sub-buckets in each power of 2 **/
+	private static final int SUB_COUNT = 1 << LatencyHistogram.SUB_BITS;
+	/** Largest exponent counted, in microseconds **/
+	private static final int MAX_EXPONENT = 36;
+	/** Largest value counted, in microseconds **/
+	private static final long MAX_VALUE = (1L << (LatencyHistogram.MAX_EXPONENT + 1)) - 1;
+
+	/**
+	 * Bucket index of a value.
+	 *
+	 * @param micros
+	 *            value, from 0 to {@link #MAX_VALUE}
+	 * @return index of bucket
+	 */
+	private static int indexOf(long micros) {
+		if (micros < LatencyHistogram.SUB_COUNT) {
+			return (int) micros;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		final int shift = exponent - LatencyHistogram.SUB_BITS;
+		return (shift + 1) * LatencyHistogram.SUB_COUNT
+				+ (int) ((micros >>> shift) & (LatencyHistogram.SUB_COUNT - 1));
+	}
+
+	/**
+	 * Largest value of a bucket.
+	 *
+	 * @param index
+	 *            of bucket
+	 * @return value, in microseconds
+	 */
+	private static long valueOf(int index) {
+		if (index < LatencyHistogram.SUB_COUNT) {
+			return index;
+		}
+		final int shift = index / LatencyHistogram.SUB_COUNT - 1;
+		final long sub = LatencyHistogram.SUB_COUNT + index
+				% LatencyHistogram.SUB_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/** Count of each bucket **/
+	private final AtomicLongArray buckets = new AtomicLongArray(
+			LatencyHistogram.indexOf(LatencyHistogram.MAX_VALUE) + 1);
+	/** Number of values **/
+	private final LongAdder count = new LongAdder();
+	/** Sum of values, in microseconds **/
+	private final LongAdder sum = new LongAdder();
+	/** Largest value, in microseconds **/
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Number of recorded values.
+	 *
+	 * @return count
+	 */
+	public long getCount() {
+		return this.count.sum();
+	}
+
+	/**
+	 * Largest recorded value.
+	 *
+	 * @return latency in milliseconds
+	 */
+	public double getMaxMillis() {
+		return this.max.get() / 1e3;
+	}
+
+	/**
+	 * Mean of recorded values.
+	 *
+	 * @return latency in milliseconds, or 0 if nothing is recorded.
+	 */
+	public double getMeanMillis() {
+		final long n = this.count.sum();
+		return n == 0 ? 0 : this.sum.sum() / 1e3 / n;
+	}
+
+	/**
+	 * Percentile of recorded values. Values recorded while reading may or may
+	 * not be counted.
+	 *
+	 * @param percentile
+	 *            from 0 to 100
+	 * @return latency in milliseconds, or 0 if nothing is recorded.
+	 */
+	public double getPercentileMillis(double percentile) {
+		long total = 0;
+		for (int i = 0; i < this.buckets.length(); i++) {
+			total += this.buckets.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < this.buckets.length(); i++) {
+			seen += this.buckets.get(i);
+			if (seen >= rank) {
+				return Math.min(LatencyHistogram.valueOf(i), this.max.get()) / 1e3;
+			}
+		}
+		return this.max.get() / 1e3;
+	}
+
+	/**
+	 * Record a latency.
+	 *
+	 * @param nanos
+	 *            latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		final long micros = Math.min(Math.max(nanos / 1000, 0),
+				LatencyHistogram.MAX_VALUE);
+		this.buckets.incrementAndGet(LatencyHistogram.indexOf(micros));
+		this.count.increment();
+		this.sum.add(micros);
+
+		long current = this.max.get();
+		while (micros > current && !this.max.compareAndSet(current, micros)) {
+			current = this.max.get();
+		}
+	}
+}
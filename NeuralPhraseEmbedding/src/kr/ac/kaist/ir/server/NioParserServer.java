@@ -0,0 +1,801 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import kr.ac.kaist.ir.index.PhraseIndex;
+import kr.ac.kaist.ir.urae.StanfordWrapper;
+
+/**
+ * <p>
+ * Server implementation for parser, with NIO selector and a bounded worker
+ * pool. This speaks {@link Protocol}, same with {@link ParserServer}.
+ * </p>
+ * <p>
+ * A single I/O thread accepts connections, reads sentences and writes
+ * responses. Parsing runs on a fixed number of worker threads, sized to the
+ * parser pool by default, fed by a bounded request queue. When the queue is
+ * full, the request is rejected at once with {@link Protocol#REJECTED}, or the
+ * connection is parked: it stops reading, and the request is retried as
+ * other requests complete, up to a timeout before rejecting. Other
+ * connections are served meanwhile. Requests of a connection are processed
+ * in parallel, and each response is written as soon as it is ready; clients
+ * match responses by request id. PING requests are answered by the I/O
+ * thread at once, so that health checks of clients are not delayed by load.
+ * </p>
+ * <p>
+ * A connection whose client does not read its responses stops being read and
+ * dispatched when 4MB of responses are waiting for writing, and
+ * resumes when they are written. Requests already in workers may still add
+ * their responses, so the bytes of a connection are bounded by those
+ * requests.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public class NioParserServer {
+	/**
+	 * Policy when the request queue is full.
+	 */
+	public enum Backpressure {
+		/** Reject the request at once **/
+		REJECT,
+		/** Wait for a room in the queue, up to timeout, then reject **/
+		BLOCK
+	}
+
+	/**
+	 * Per-client state. Fields are accessed by the I/O thread only, unless
+	 * noted.
+	 */
+	private final class Connection {
+		/** Channel of client **/
+		private final SocketChannel channel;
+		/** Selection key of channel **/
+		private final SelectionKey key;
+		/** Length of a frame being read **/
+		private final ByteBuffer header = ByteBuffer.allocate(4);
+		/** Payload of a frame being read, or null while reading length **/
+		private ByteBuffer payload;
+		/** Requests waiting for processing **/
+		private final ArrayDeque<byte[]> requests = new ArrayDeque<byte[]>();
+		/** Bytes waiting for writing **/
+		private final ArrayDeque<ByteBuffer> writes = new ArrayDeque<ByteBuffer>();
+		/** Number of bytes in writes **/
+		private long writeBytes;
+		/**
+		 * Time when the first waiting request was refused by the full queue,
+		 * in System.currentTimeMillis(), or 0 if not parked
+		 **/
+		private long parkedSince;
+		/** Responses made by workers. Accessed by both threads. **/
+		private final ConcurrentLinkedQueue<byte[]> responses = new ConcurrentLinkedQueue<byte[]>();
+		/**
+		 * Number of requests whose last response is made. Accessed by both
+		 * threads.
+		 **/
+		private final AtomicInteger finished = new AtomicInteger();
+		/** Number of requests being processed by workers **/
+		private int inFlight;
+		/** Whether client finished sending requests **/
+		private boolean eof;
+
+		/**
+		 * Register client channel.
+		 *
+		 * @param channel
+		 *            of client
+		 * @throws IOException
+		 *             when failed to register.
+		 */
+		Connection(SocketChannel channel) throws IOException {
+			this.channel = channel;
+			this.channel.configureBlocking(false);
+			this.key = channel.register(NioParserServer.this.selector,
+					SelectionKey.OP_READ, this);
+		}
+
+		/**
+		 * Queue bytes for writing.
+		 *
+		 * @param frame
+		 *            bytes of response frame
+		 */
+		void enqueue(byte[] frame) {
+			this.writes.add(ByteBuffer.wrap(frame));
+			this.writeBytes += frame.length;
+		}
+
+		/**
+		 * Whether too many bytes are waiting for writing, so that reading and
+		 * dispatching should pause.
+		 *
+		 * @return true if above {@link NioParserServer#MAX_WRITE_BYTES}.
+		 */
+		boolean isCongested() {
+			return this.writeBytes > NioParserServer.MAX_WRITE_BYTES;
+		}
+
+		/**
+		 * Whether every request is answered and written.
+		 *
+		 * @return true if nothing remains.
+		 */
+		boolean isIdle() {
+			return this.requests.isEmpty() && this.isFlushed();
+		}
+
+		/**
+		 * Whether every request given to workers is answered and written.
+		 *
+		 * @return true if nothing remains but waiting requests.
+		 */
+		boolean isFlushed() {
+			return (this.inFlight == 0) && this.writes.isEmpty()
+					&& this.responses.isEmpty();
+		}
+	}
+
+	/**
+	 * Processing of a request on a worker thread. Responses are passed to the
+	 * I/O thread.
+	 */
+	private final class Task implements Runnable, RequestHandler.Sink {
+		/** Connection of the request **/
+		private final Connection connection;
+		/** Payload of request frame **/
+		private final byte[] request;
+		/** Time of submission, from System.nanoTime() **/
+		private final long queued = System.nanoTime();
+
+		/**
+		 * Construct task.
+		 *
+		 * @param connection
+		 *            of the request
+		 * @param request
+		 *            payload of request frame
+		 */
+		Task(Connection connection, byte[] request) {
+			this.connection = connection;
+			this.request = request;
+		}
+
+		/**
+		 * Process request.
+		 *
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			NioParserServer.this.handler.getMetrics().recordQueue(
+					System.nanoTime() - this.queued);
+			// Deadline of request includes the time in the queue.
+			NioParserServer.this.handler.handle(this.request, this,
+					this.queued);
+		}
+
+		/**
+		 * Pass a response to I/O thread.
+		 *
+		 * @see kr.ac.kaist.ir.server.RequestHandler.Sink#send(byte[], boolean)
+		 */
+		@Override
+		public void send(byte[] frame, boolean last) {
+			this.connection.responses.add(frame);
+			if (last) {
+				this.connection.finished.incrementAndGet();
+			}
+			NioParserServer.this.completed.add(this.connection);
+			NioParserServer.this.selector.wakeup();
+		}
+	}
+
+	/** System property for server mode. Set "nio" to use this server. **/
+	public static final String MODE_PROPERTY = "npe.server.mode";
+	/**
+	 * System property for the number of worker threads. Default is the size
+	 * of parser pool.
+	 **/
+	public static final String WORKERS_PROPERTY = "npe.server.workers";
+	/**
+	 * System property for the capacity of request queue. Default is 16
+	 * requests per worker.
+	 **/
+	public static final String QUEUE_PROPERTY = "npe.server.queue";
+	/**
+	 * System property for the policy when the queue is full: "reject"
+	 * (default) or "block".
+	 **/
+	public static final String BACKPRESSURE_PROPERTY = "npe.server.backpressure";
+	/**
+	 * System property for timeout in milliseconds, used by "block" policy,
+	 * and by each phase of graceful shutdown. Default is 1000.
+	 **/
+	public static final String TIMEOUT_PROPERTY = "npe.server.timeout";
+
+	/**
+	 * Maximum number of requests per connection in workers, and also waiting
+	 * for them, before pausing.
+	 **/
+	private static final int MAX_PENDING = 64;
+	/**
+	 * Maximum number of bytes waiting for writing per connection, before
+	 * pausing.
+	 **/
+	private static final long MAX_WRITE_BYTES = 4L << 20;
+
+	/**
+	 * Main method for execute server with NIO. Configuration is given by
+	 * system properties.
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		final Logger logger = Logger.getAnonymousLogger();
+		try {
+			final StanfordWrapper instance = StanfordWrapper.getInstance();
+			final int workers = Integer.getInteger(
+					NioParserServer.WORKERS_PROPERTY, instance.getParserPool()
+							.getCapacity());
+			final int queue = Integer.getInteger(
+					NioParserServer.QUEUE_PROPERTY, workers * 16);
+			final Backpressure backpressure = Backpressure.valueOf(System
+					.getProperty(NioParserServer.BACKPRESSURE_PROPERTY,
+							"reject").toUpperCase(Locale.ENGLISH));
+			final long timeout = Long.getLong(NioParserServer.TIMEOUT_PROPERTY,
+					1000);
+
+			final NioParserServer server = new NioParserServer(instance,
+					Integer.getInteger(ParserServer.PORT_PROPERTY,
+							ParserServer.PORT), workers, queue, backpressure,
+					timeout, PhraseIndex.loadConfigured());
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					try {
+						server.shutdown(timeout);
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			final Integer stats = Integer
+					.getInteger(ServerMetrics.STATS_PORT_PROPERTY);
+			if (stats != null) {
+				server.getMetrics().serve(stats);
+			}
+			server.start();
+			logger.info("NIO Server Started with PORT " + server.getPort()
+					+ ", " + workers + " workers, queue " + queue + ", "
+					+ backpressure);
+		} catch (final IOException e) {
+			logger.log(Level.SEVERE, "Socket Exception", e);
+		}
+	}
+
+	/** logger **/
+	private final Logger logger = Logger.getAnonymousLogger();
+	/** Request handler **/
+	private final RequestHandler handler;
+	/** Worker threads with bounded queue **/
+	private final ThreadPoolExecutor workers;
+	/** Policy when queue is full **/
+	private final Backpressure backpressure;
+	/** Timeout of blocking, in milliseconds **/
+	private final long timeoutMillis;
+	/** Selector of I/O thread **/
+	private final Selector selector;
+	/** Listening channel **/
+	private final ServerSocketChannel server;
+	/** I/O thread **/
+	private final Thread ioThread;
+	/** Connections whose task is completed **/
+	private final ConcurrentLinkedQueue<Connection> completed = new ConcurrentLinkedQueue<Connection>();
+	/** Open connections. Accessed by the I/O thread only. **/
+	private final HashSet<Connection> connections = new HashSet<Connection>();
+	/**
+	 * Connections waiting for a room in the queue. Accessed by the I/O thread
+	 * only.
+	 **/
+	private final HashSet<Connection> parked = new HashSet<Connection>();
+	/** Buffer for reading. Used by the I/O thread only. **/
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(1 << 16);
+	/** Set when shutdown started; stop accepting and reading **/
+	private volatile boolean stopping;
+	/** Set when workers finished; close after flushing responses **/
+	private volatile boolean closing;
+	/** Deadline of closing, in System.currentTimeMillis() **/
+	private volatile long closeDeadline;
+
+	/**
+	 * Copy bytes as many as possible.
+	 *
+	 * @param from
+	 *            buffer to read
+	 * @param to
+	 *            buffer to write
+	 */
+	private static void transfer(ByteBuffer from, ByteBuffer to) {
+		final int count = Math.min(from.remaining(), to.remaining());
+		final int limit = from.limit();
+		from.limit(from.position() + count);
+		to.put(from);
+		from.limit(limit);
+	}
+
+	/**
+	 * Construct server, and bind to given port. Call {@link #start()} to
+	 * serve.
+	 *
+	 * @param instance
+	 *            StanfordWrapper to process sentences
+	 * @param port
+	 *            to listen. 0 for any free port.
+	 * @param workers
+	 *            number of worker threads
+	 * @param queue
+	 *            capacity of request queue
+	 * @param backpressure
+	 *            policy when queue is full
+	 * @param timeoutMillis
+	 *            timeout of {@link Backpressure#BLOCK}, in milliseconds
+	 * @throws IOException
+	 *             when failed to bind.
+	 */
+	public NioParserServer(StanfordWrapper instance, int port, int workers,
+			int queue, Backpressure backpressure, long timeoutMillis)
+			throws IOException {
+		this(instance, port, workers, queue, backpressure, timeoutMillis, null);
+	}
+
+	/**
+	 * Construct server with phrase index, and bind to given port. Call
+	 * {@link #start()} to serve.
+	 *
+	 * @param instance
+	 *            StanfordWrapper to process sentences
+	 * @param port
+	 *            to listen. 0 for any free port.
+	 * @param workers
+	 *            number of worker threads
+	 * @param queue
+	 *            capacity of request queue
+	 * @param backpressure
+	 *            policy when queue is full
+	 * @param timeoutMillis
+	 *            timeout of {@link Backpressure#BLOCK}, in milliseconds
+	 * @param index
+	 *            of phrases for SIMILAR requests, or null
+	 * @throws IOException
+	 *             when failed to bind.
+	 */
+	public NioParserServer(StanfordWrapper instance, int port, int workers,
+			int queue, Backpressure backpressure, long timeoutMillis,
+			PhraseIndex index) throws IOException {
+		this.backpressure = backpressure;
+		this.timeoutMillis = timeoutMillis;
+		this.workers = new ThreadPoolExecutor(workers, workers, 0,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queue));
+		// Workers should be ready before the first request.
+		this.workers.prestartAllCoreThreads();
+		this.handler = new RequestHandler(instance, this.workers, index);
+
+		this.selector = Selector.open();
+		this.server = ServerSocketChannel.open();
+		this.server.socket().setReuseAddress(true);
+		this.server.socket().bind(new InetSocketAddress(port));
+		this.server.configureBlocking(false);
+		this.server.register(this.selector, SelectionKey.OP_ACCEPT);
+		this.handler.getMetrics().register("NioParserServer", this.getPort());
+
+		this.ioThread = new Thread("NioParserServer-" + this.getPort()) {
+			@Override
+			public void run() {
+				NioParserServer.this.loop();
+			}
+		};
+	}
+
+	/**
+	 * Accept a connection.
+	 */
+	private void accept() {
+		try {
+			final SocketChannel channel = this.server.accept();
+			if (channel != null) {
+				final Connection connection = new Connection(channel);
+				this.connections.add(connection);
+				this.handler.getMetrics().connectionOpened();
+				this.updateInterest(connection);
+				this.logger.fine("Connected : " + channel);
+			}
+		} catch (final IOException e) {
+			this.logger.log(Level.WARNING, "ERROR in accept", e);
+		}
+	}
+
+	/**
+	 * Close a connection.
+	 *
+	 * @param connection
+	 *            to be closed
+	 */
+	private void close(Connection connection) {
+		connection.key.cancel();
+		try {
+			connection.channel.close();
+		} catch (final IOException e) {
+			this.logger.log(Level.FINE, "ERROR in close", e);
+		}
+		this.parked.remove(connection);
+		if (this.connections.remove(connection)) {
+			this.handler.getMetrics().connectionClosed();
+		}
+		this.logger.fine("Disconnected : " + connection.channel);
+	}
+
+	/**
+	 * Send waiting requests of connection to workers. When the queue is full
+	 * with {@link Backpressure#BLOCK} policy, the connection is parked until
+	 * a room is made, or the timeout passes and the request is rejected.
+	 *
+	 * @param connection
+	 *            to be dispatched
+	 */
+	private void dispatch(Connection connection) {
+		while (!this.stopping
+				&& (connection.inFlight < NioParserServer.MAX_PENDING)
+				&& !connection.requests.isEmpty() && !connection.isCongested()) {
+			final byte[] request = connection.requests.peek();
+			if (this.submit(new Task(connection, request))) {
+				connection.requests.poll();
+				connection.inFlight++;
+				connection.parkedSince = 0;
+				continue;
+			}
+
+			if (this.backpressure == Backpressure.BLOCK
+					&& !this.workers.isShutdown()) {
+				final long now = System.currentTimeMillis();
+				if (connection.parkedSince == 0) {
+					connection.parkedSince = now;
+				}
+				if (now - connection.parkedSince < this.timeoutMillis) {
+					this.parked.add(connection);
+					return;
+				}
+			}
+
+			connection.requests.poll();
+			connection.parkedSince = 0;
+			this.handler.getMetrics().recordResponse(Protocol.REJECTED);
+			this.logger.warning("Queue is full. Rejected a request from "
+					+ connection.channel);
+			connection.enqueue(Protocol.encodeResponse(Protocol.REJECTED,
+					Protocol.getId(request), 0, "Queue is full"));
+		}
+		// Not waiting for a room; the timeout starts again when refused.
+		connection.parkedSince = 0;
+		this.parked.remove(connection);
+	}
+
+	/**
+	 * Metrics of this server.
+	 *
+	 * @return ServerMetrics instance
+	 */
+	public ServerMetrics getMetrics() {
+		return this.handler.getMetrics();
+	}
+
+	/**
+	 * Returns bound port.
+	 *
+	 * @return port number
+	 */
+	public int getPort() {
+		return this.server.socket().getLocalPort();
+	}
+
+	/**
+	 * Loop of I/O thread.
+	 */
+	private void loop() {
+		while (true) {
+			try {
+				this.selector.select(this.selectTimeout());
+			} catch (final IOException e) {
+				this.logger.log(Level.SEVERE, "ERROR in selector", e);
+				break;
+			}
+
+			// Move responses of workers into write queues.
+			Connection done;
+			while ((done = this.completed.poll()) != null) {
+				byte[] response;
+				while ((response = done.responses.poll()) != null) {
+					done.enqueue(response);
+				}
+				done.inFlight -= done.finished.getAndSet(0);
+				if (done.key.isValid()) {
+					this.dispatch(done);
+					this.updateInterest(done);
+				}
+			}
+
+			// Retry parked connections, as completions made rooms or their
+			// timeout passed.
+			for (final Connection connection : new ArrayList<Connection>(
+					this.parked)) {
+				this.dispatch(connection);
+				this.updateInterest(connection);
+			}
+
+			if (this.stopping && this.server.isOpen()) {
+				try {
+					this.server.close();
+				} catch (final IOException e) {
+					this.logger.log(Level.FINE, "ERROR in close", e);
+				}
+				// Waiting requests not yet in the queue are discarded.
+				this.parked.clear();
+				for (final Connection connection : new ArrayList<Connection>(
+						this.connections)) {
+					connection.requests.clear();
+					connection.parkedSince = 0;
+					this.updateInterest(connection);
+				}
+			}
+
+			final Iterator<SelectionKey> keys = this.selector.selectedKeys()
+					.iterator();
+			while (keys.hasNext()) {
+				final SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+
+				if (key.isAcceptable()) {
+					this.accept();
+				} else {
+					final Connection connection = (Connection) key
+							.attachment();
+					if (key.isReadable()) {
+						this.read(connection);
+					}
+					if (key.isValid() && key.isWritable()) {
+						this.write(connection);
+					}
+				}
+			}
+
+			if (this.closing) {
+				boolean flushed = true;
+				for (final Connection connection : this.connections) {
+					flushed &= connection.isFlushed();
+				}
+				if (flushed || System.currentTimeMillis() > this.closeDeadline) {
+					break;
+				}
+			}
+		}
+
+		for (final Connection connection : new ArrayList<Connection>(
+				this.connections)) {
+			this.close(connection);
+		}
+		try {
+			this.selector.close();
+		} catch (final IOException e) {
+			this.logger.log(Level.FINE, "ERROR in close", e);
+		}
+		this.handler.getMetrics().close();
+		this.logger.info("Server stopped.");
+	}
+
+	/**
+	 * Read request frames from connection.
+	 *
+	 * @param connection
+	 *            to be read
+	 */
+	private void read(final Connection connection) {
+		final ByteBuffer buffer = this.readBuffer;
+		buffer.clear();
+		try {
+			if (connection.channel.read(buffer) < 0) {
+				connection.eof = true;
+			}
+		} catch (final IOException e) {
+			this.close(connection);
+			return;
+		}
+
+		buffer.flip();
+		while (buffer.hasRemaining() && !connection.eof) {
+			if (connection.payload == null) {
+				NioParserServer.transfer(buffer, connection.header);
+				if (connection.header.hasRemaining()) {
+					break;
+				}
+
+				final int length = connection.header.getInt(0);
+				connection.header.clear();
+				if ((length < 0) || (length > Protocol.MAX_FRAME)) {
+					this.logger.warning("Invalid frame length " + length
+							+ " from " + connection.channel);
+					this.close(connection);
+					return;
+				} else if (length == 0) {
+					// Empty frame means end of requests.
+					connection.eof = true;
+					break;
+				}
+				connection.payload = ByteBuffer.allocate(length);
+			}
+
+			NioParserServer.transfer(buffer, connection.payload);
+			if (!connection.payload.hasRemaining()) {
+				final byte[] request = connection.payload.array();
+				connection.payload = null;
+				if (Protocol.getType(request) == Protocol.PING) {
+					this.handler.handle(request, new RequestHandler.Sink() {
+						@Override
+						public void send(byte[] frame, boolean last) {
+							connection.enqueue(frame);
+						}
+					});
+				} else {
+					connection.requests.add(request);
+				}
+			}
+		}
+
+		this.dispatch(connection);
+		this.updateInterest(connection);
+	}
+
+	/**
+	 * Gracefully shutdown the server. Stop accepting connections and reading
+	 * requests, finish requests in the queue, write their responses, and
+	 * close. Waiting sentences not yet in the queue are discarded. Finishing
+	 * and writing have a timeout each, so that responses finished late still
+	 * have time to be written.
+	 *
+	 * @param timeoutMillis
+	 *            maximum time to wait for workers, and then for writing
+	 * @throws InterruptedException
+	 *             when interrupted while waiting.
+	 */
+	public void shutdown(long timeoutMillis) throws InterruptedException {
+		this.stopping = true;
+		this.selector.wakeup();
+
+		this.workers.shutdown();
+		this.workers.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+
+		final long deadline = System.currentTimeMillis() + timeoutMillis;
+		this.closeDeadline = deadline;
+		this.closing = true;
+		this.selector.wakeup();
+		this.ioThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+	}
+
+	/**
+	 * Timeout of select, so that the loop wakes for timeouts of parked
+	 * connections and of closing.
+	 *
+	 * @return timeout in milliseconds, or 0 to wait for events only.
+	 */
+	private long selectTimeout() {
+		long timeout = this.closing ? 100 : 0;
+		final long now = System.currentTimeMillis();
+		for (final Connection connection : this.parked) {
+			final long left = Math.max(1, connection.parkedSince
+					+ this.timeoutMillis - now);
+			if ((timeout == 0) || (left < timeout)) {
+				timeout = left;
+			}
+		}
+		return timeout;
+	}
+
+	/**
+	 * Start I/O thread.
+	 */
+	public void start() {
+		this.ioThread.start();
+	}
+
+	/**
+	 * Submit task to workers, without waiting.
+	 *
+	 * @param task
+	 *            to be submitted
+	 * @return true if submitted, false if the queue is full.
+	 */
+	private boolean submit(Task task) {
+		try {
+			this.workers.execute(task);
+			return true;
+		} catch (final RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Update interest of connection, or close it if finished.
+	 *
+	 * @param connection
+	 *            to be updated
+	 */
+	private void updateInterest(Connection connection) {
+		if (!connection.key.isValid()) {
+			return;
+		}
+		if (connection.eof && connection.isIdle()) {
+			this.close(connection);
+			return;
+		}
+
+		int ops = 0;
+		if (!connection.eof && !this.stopping
+				&& connection.requests.size() < NioParserServer.MAX_PENDING
+				&& (connection.parkedSince == 0) && !connection.isCongested()) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if (!connection.writes.isEmpty()) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		connection.key.interestOps(ops);
+	}
+
+	/**
+	 * Write responses into connection.
+	 *
+	 * @param connection
+	 *            to be written
+	 */
+	private void write(Connection connection) {
+		try {
+			while (!connection.writes.isEmpty()) {
+				final ByteBuffer buffer = connection.writes.peek();
+				connection.writeBytes -= connection.channel.write(buffer);
+				if (buffer.hasRemaining()) {
+					break;
+				}
+				connection.writes.poll();
+			}
+		} catch (final IOException e) {
+			this.close(connection);
+			return;
+		}
+		// Requests paused by congestion resume as bytes are written.
+		this.dispatch(connection);
+		this.updateInterest(connection);
+	}
+}
@@ -3,28 +3,331 @@
  */
 package kr.ac.kaist.ir.server;
 
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.OutputStreamWriter;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import kr.ac.kaist.ir.index.Neighbor;
+import kr.ac.kaist.ir.urae.NPNStructure;
 import kr.ac.kaist.ir.urae.Result;
 
+import org.ejml.simple.SimpleMatrix;
+
 /**
- * Client helper for Parser Server-Client communication
+ * <p>
+ * Client helper for Parser Server-Client communication. Speaks
+ * {@link Protocol}.
+ * </p>
+ * <p>
+ * Requests are pipelined: {@link #submit(String)} sends a sentence and
+ * returns at once, so that many sentences can be in flight on a connection. A
+ * reader thread completes each future when its response arrives, in any
+ * order. An instance can be shared by many threads.
+ * </p>
+ * <p>
+ * Many sentences, or a whole document to be split by server, can be sent in
+ * one request with {@link #submitBatch(List, BatchListener)} and
+ * {@link #submitDocument(String, BatchListener)}. Server processes the
+ * sentences in parallel and streams back results of each sentence.
+ * </p>
+ * <p>
+ * If server has a phrase index, phrases similar to a given phrase can be
+ * found with {@link #submitSimilar(String, int)}. A phrase vector alone can be
+ * asked with {@link #submitVector(String, boolean)}, also without parsing for
+ * callers which need it at once.
+ * </p>
  *
  * @author 김부근
  *
  */
 public class ParserClient {
+	/**
+	 * Request in flight.
+	 */
+	private static abstract class Call {
+		/**
+		 * Receive a response.
+		 *
+		 * @param response
+		 *            decoded response
+		 * @return true if this is the last response of the request.
+		 */
+		abstract boolean receive(Protocol.Response response);
+
+		/**
+		 * Fail the request.
+		 *
+		 * @param cause
+		 *            of failure
+		 */
+		abstract void fail(IOException cause);
+
+		/**
+		 * Flags of the request, added to flags of the client.
+		 *
+		 * @return flags, such as {@link Protocol#FAST}
+		 */
+		byte getFlags() {
+			return 0;
+		}
+	}
+
+	/**
+	 * BATCH or DOCUMENT request in flight.
+	 */
+	private static final class BatchCall extends Call {
+		/** Future of the number of sentences **/
+		private final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+		/** Receiver of per-sentence results **/
+		private final BatchListener listener;
+		/** Sentences of BATCH request, or null for DOCUMENT **/
+		private final List<String> sentences;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param listener
+		 *            Receiver of per-sentence results
+		 * @param sentences
+		 *            of BATCH request, or null for DOCUMENT
+		 */
+		BatchCall(BatchListener listener, List<String> sentences) {
+			this.listener = listener;
+			this.sentences = sentences;
+		}
+
+		@Override
+		void fail(IOException cause) {
+			this.future.completeExceptionally(cause);
+		}
+
+		@Override
+		boolean receive(Protocol.Response response) {
+			final int index = response.getIndex();
+			if (response.getStatus() == Protocol.END) {
+				this.future.complete(index);
+				return true;
+			}
+
+			String sentence = response.getSentence();
+			if ((sentence == null) && (this.sentences != null)
+					&& (index >= 0) && (index < this.sentences.size())) {
+				sentence = this.sentences.get(index);
+			}
+			try {
+				try {
+					this.listener.onResult(index, sentence,
+							response.getResults());
+				} catch (final ServerException e) {
+					this.listener.onError(index, sentence, e);
+				}
+			} catch (final RuntimeException e) {
+				// Listener runs on the reader thread, which must keep going
+				// for other requests.
+				ParserClient.logger.log(Level.WARNING, "ERROR in listener of "
+						+ index, e);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * SIMILAR request in flight.
+	 */
+	private static final class SimilarCall extends Call {
+		/** Future of neighbors **/
+		private final CompletableFuture<List<Neighbor>> future = new CompletableFuture<List<Neighbor>>();
+		/** Number of neighbors to find **/
+		private final int count;
+		/** Whether to encode the phrase without parsing **/
+		private final boolean fast;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param count
+		 *            of neighbors to find
+		 * @param fast
+		 *            whether to encode the phrase without parsing
+		 */
+		SimilarCall(int count, boolean fast) {
+			this.count = count;
+			this.fast = fast;
+		}
+
+		@Override
+		void fail(IOException cause) {
+			this.future.completeExceptionally(cause);
+		}
+
+		@Override
+		byte getFlags() {
+			return this.fast ? Protocol.FAST : 0;
+		}
+
+		@Override
+		boolean receive(Protocol.Response response) {
+			try {
+				this.future.complete(response.getNeighbors());
+			} catch (final ServerException e) {
+				this.future.completeExceptionally(e);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * NPN request in flight.
+	 */
+	private static final class SingleCall extends Call {
+		/** Future of results **/
+		private final CompletableFuture<List<Result>> future = new CompletableFuture<List<Result>>();
+
+		@Override
+		void fail(IOException cause) {
+			this.future.completeExceptionally(cause);
+		}
+
+		@Override
+		boolean receive(Protocol.Response response) {
+			try {
+				this.future.complete(response.getResults());
+			} catch (final ServerException e) {
+				this.future.completeExceptionally(e);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * NPN request in flight, which also receives the sentence vector.
+	 */
+	private static final class StructureCall extends Call {
+		/** Future of results and sentence vector **/
+		private final CompletableFuture<NPNStructure> future = new CompletableFuture<NPNStructure>();
+
+		@Override
+		void fail(IOException cause) {
+			this.future.completeExceptionally(cause);
+		}
+
+		@Override
+		boolean receive(Protocol.Response response) {
+			try {
+				this.future.complete(new NPNStructure(response.getResults(),
+						response.getVector()));
+			} catch (final ServerException e) {
+				this.future.completeExceptionally(e);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * VECTOR request in flight.
+	 */
+	private static final class VectorCall extends Call {
+		/** Future of phrase vector **/
+		private final CompletableFuture<SimpleMatrix> future = new CompletableFuture<SimpleMatrix>();
+		/** Whether to encode the phrase without parsing **/
+		private final boolean fast;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param fast
+		 *            whether to encode the phrase without parsing
+		 */
+		VectorCall(boolean fast) {
+			this.fast = fast;
+		}
+
+		@Override
+		void fail(IOException cause) {
+			this.future.completeExceptionally(cause);
+		}
+
+		@Override
+		byte getFlags() {
+			return this.fast ? Protocol.FAST : 0;
+		}
+
+		@Override
+		boolean receive(Protocol.Response response) {
+			try {
+				this.future.complete(response.getVector());
+			} catch (final ServerException e) {
+				this.future.completeExceptionally(e);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Wait for future, and unwrap its failure.
+	 *
+	 * @param future
+	 *            to wait
+	 * @return value of future
+	 * @throws IOException
+	 *             when the future failed.
+	 */
+	private static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting");
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/** logger **/
+	private static final Logger logger = Logger.getAnonymousLogger();
 	/** Socket of communication **/
 	private final Socket socket;
-	/** Writer for Send Sentences **/
-	private final BufferedWriter send;
-	/** Reader for Retrieving Result Objects **/
-	private final ObjectInputStream receive;
+	/** Stream for Send Requests. Guarded by itself. **/
+	private final DataOutputStream send;
+	/** Stream for Retrieving Responses **/
+	private final DataInputStream receive;
+	/** Requests in flight, by request id **/
+	private final ConcurrentHashMap<Integer, Call> pending = new ConcurrentHashMap<Integer, Call>();
+	/** Next request id **/
+	private final AtomicInteger nextId = new AtomicInteger();
+	/** Thread for Retrieving Responses **/
+	private final Thread reader;
+	/** Cause of disconnection, or null if connected **/
+	private volatile IOException failure;
+	/** Flags of requests **/
+	private volatile byte flags;
+	/** Deadline of requests in milliseconds, or 0 **/
+	private volatile int deadline;
+	/** Fields of results requested, or null for default **/
+	private volatile Set<Result.Field> fields;
 
 	/**
 	 * <p>
@@ -41,46 +344,570 @@ public class ParserClient {
 	 *             when failed to open streams.
 	 */
 	public ParserClient(String host) throws IOException {
-		this.socket = new Socket(host, ParserServer.PORT);
-		this.send = new BufferedWriter(new OutputStreamWriter(
+		this(host, ParserServer.PORT);
+	}
+
+	/**
+	 * <p>
+	 * Constructor. Connect to server in given host and port.
+	 * </p>
+	 * <p>
+	 * <b>When you finish your job, please call {{@link #close()} method for
+	 * close connection.</b>
+	 * </p>
+	 *
+	 * @param host
+	 *            to connect
+	 * @param port
+	 *            of server
+	 * @throws IOException
+	 *             when failed to open streams.
+	 */
+	public ParserClient(String host, int port) throws IOException {
+		this(new InetSocketAddress(host, port), 0);
+	}
+
+	/**
+	 * Constructor. Connect to server in given address, with timeout.
+	 *
+	 * @param address
+	 *            of server
+	 * @param timeoutMillis
+	 *            timeout of connection, in milliseconds. 0 for no timeout.
+	 * @throws IOException
+	 *             when failed to connect.
+	 */
+	ParserClient(InetSocketAddress address, int timeoutMillis)
+			throws IOException {
+		this.socket = new Socket();
+		this.socket.connect(address, timeoutMillis);
+		this.socket.setTcpNoDelay(true);
+		this.send = new DataOutputStream(new BufferedOutputStream(
 				this.socket.getOutputStream()));
-		this.receive = new ObjectInputStream(this.socket.getInputStream());
+		this.receive = new DataInputStream(new BufferedInputStream(
+				this.socket.getInputStream()));
+
+		this.reader = new Thread("ParserClient-" + this.socket) {
+			@Override
+			public void run() {
+				ParserClient.this.receive();
+			}
+		};
+		this.reader.setDaemon(true);
+		this.reader.start();
+	}
+
+	/**
+	 * Close connection at once. Requests in flight fail with IOException.
+	 */
+	public void abort() {
+		try {
+			this.socket.close();
+		} catch (final IOException e) {
+			// Closing anyway.
+		}
+		this.fail(new IOException("Connection aborted"));
 	}
 
 	/**
-	 * Close connection.
+	 * Close connection. This waits until every request in flight is answered.
 	 *
 	 * @throws IOException
 	 *             when failed to send close message.
 	 */
 	public void close() throws IOException {
-		this.send.write("\n");
-		this.send.close();
-		this.receive.close();
-		this.socket.close();
+		try {
+			synchronized (this.send) {
+				// Empty frame means end of requests.
+				this.send.writeInt(0);
+				this.send.flush();
+			}
+			// Server closes connection after answering every request.
+			this.reader.join();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while closing");
+		} finally {
+			this.send.close();
+			this.receive.close();
+			this.socket.close();
+		}
 	}
 
 	/**
-	 * Get NPN structure result from server, with given sentence.
+	 * Fail every request in flight, and stop accepting requests.
+	 *
+	 * @param cause
+	 *            of disconnection
+	 */
+	private void fail(IOException cause) {
+		this.failure = cause;
+		for (final Integer id : this.pending.keySet()) {
+			final Call call = this.pending.remove(id);
+			if (call != null) {
+				call.fail(cause);
+			}
+		}
+	}
+
+	/**
+	 * Get NPN structure result from server, with given sentence. This blocks
+	 * until the response arrives.
 	 *
 	 * @param sentence
 	 *            to find NPN structure
 	 * @return LinkedList of {@link Result} instances.
+	 * @throws ServerException
+	 *             when server could not process the sentence.
 	 * @throws IOException
 	 *             when write on/retrieve from stream is failed.
-	 * @throws ClassNotFoundException
-	 *             when casting server's response failed.
 	 */
-	@SuppressWarnings("unchecked")
 	public LinkedList<Result> getParsedResultOf(String sentence)
-			throws IOException, ClassNotFoundException {
+			throws IOException {
+		return (LinkedList<Result>) ParserClient.await(this.submit(sentence));
+	}
+
+	/**
+	 * Get NPN structure result from server with the sentence vector, which
+	 * is available even if the sentence has no NPN structure. This blocks
+	 * until the response arrives.
+	 *
+	 * @param sentence
+	 *            to find NPN structure
+	 * @return {@link NPNStructure} of the sentence.
+	 * @throws ServerException
+	 *             when server could not process the sentence.
+	 * @throws IOException
+	 *             when write on/retrieve from stream is failed.
+	 */
+	public NPNStructure getNPNStructureOf(String sentence) throws IOException {
+		return ParserClient.await(this.submitStructure(sentence));
+	}
+
+	/**
+	 * Get NPN structure result from server, with given parse tree. This
+	 * blocks until the response arrives.
+	 *
+	 * @param tree
+	 *            parse tree in Penn Treebank format
+	 * @return LinkedList of {@link Result} instances.
+	 * @throws ServerException
+	 *             when server could not read or process the tree.
+	 * @throws IOException
+	 *             when write on/retrieve from stream is failed.
+	 */
+	public LinkedList<Result> getParsedResultOfTree(String tree)
+			throws IOException {
+		return (LinkedList<Result>) ParserClient.await(this.submitTree(tree));
+	}
+
+	/**
+	 * Get NPN structure results from server, with given sentences in one
+	 * request. This blocks until every result arrives.
+	 *
+	 * @param sentences
+	 *            to find NPN structure
+	 * @return List of results, in the same order with sentences.
+	 * @throws ServerException
+	 *             when server could not process a sentence.
+	 * @throws IOException
+	 *             when write on/retrieve from stream is failed.
+	 */
+	public List<List<Result>> getParsedResultsOf(List<String> sentences)
+			throws IOException {
+		final List<List<Result>> results = new ArrayList<List<Result>>(
+				Collections.<List<Result>> nCopies(sentences.size(), null));
+		final ServerException[] error = new ServerException[1];
+		ParserClient.await(this.submitBatch(sentences, new BatchListener() {
+			@Override
+			public void onError(int index, String sentence,
+					ServerException cause) {
+				error[0] = cause;
+			}
+
+			@Override
+			public void onResult(int index, String sentence,
+					List<Result> result) {
+				results.set(index, result);
+			}
+		}));
+
+		// Listener is called on reader thread, before the future completes.
+		if (error[0] != null) {
+			throw error[0];
+		}
+		return results;
+	}
+
+	/**
+	 * Get phrase vector of given phrase from server. This blocks until the
+	 * response arrives.
+	 *
+	 * @param phrase
+	 *            to be encoded
+	 * @param fast
+	 *            true to encode the phrase along a right-branching tree
+	 *            without parsing.
+	 * @return SimpleMatrix of phrase vector
+	 * @throws ServerException
+	 *             when server could not process the phrase.
+	 * @throws IOException
+	 *             when write on/retrieve from stream is failed.
+	 */
+	public SimpleMatrix getPhraseVectorOf(String phrase, boolean fast)
+			throws IOException {
+		return ParserClient.await(this.submitVector(phrase, fast));
+	}
+
+	/**
+	 * Find phrases similar to given phrase, in the phrase index of server.
+	 * This blocks until the response arrives.
+	 *
+	 * @param phrase
+	 *            to find similar phrases
+	 * @param k
+	 *            number of phrases to find
+	 * @return List of at most k {@link Neighbor} instances, most similar
+	 *         first.
+	 * @throws ServerException
+	 *             when server has no index, or could not process the phrase.
+	 * @throws IOException
+	 *             when write on/retrieve from stream is failed.
+	 */
+	public List<Neighbor> getSimilarPhrasesOf(String phrase, int k)
+			throws IOException {
+		return ParserClient.await(this.submitSimilar(phrase, k));
+	}
+
+	/**
+	 * Number of requests in flight.
+	 *
+	 * @return number of requests waiting for responses
+	 */
+	public int getPendingCount() {
+		return this.pending.size();
+	}
+
+	/**
+	 * Whether connection is usable.
+	 *
+	 * @return false if connection is closed or lost.
+	 */
+	public boolean isOpen() {
+		return this.failure == null;
+	}
+
+	/**
+	 * Send a health check, without waiting for the response.
+	 *
+	 * @return Future completed with round trip time in nanoseconds. It fails
+	 *         with IOException when connection is lost.
+	 */
+	public CompletableFuture<Long> ping() {
+		final long start = System.nanoTime();
+		final SingleCall call = new SingleCall();
+		this.send(call, Protocol.PING, null, null);
+		return call.future.thenApply(new Function<List<Result>, Long>() {
+			@Override
+			public Long apply(List<Result> result) {
+				return System.nanoTime() - start;
+			}
+		});
+	}
+
+	/**
+	 * Loop of reader thread. Pass responses to requests in flight.
+	 */
+	private void receive() {
+		try {
+			byte[] frame;
+			while ((frame = Protocol.readFrame(this.receive)) != null) {
+				final int id = Protocol.getId(frame);
+				final Call call = this.pending.get(id);
+				if (call == null) {
+					continue;
+				}
+
+				try {
+					if (call.receive(Protocol.decodeResponse(frame))) {
+						this.pending.remove(id);
+					}
+				} catch (final IOException e) {
+					this.pending.remove(id);
+					call.fail(e);
+				} catch (final RuntimeException e) {
+					this.pending.remove(id);
+					call.fail(new IOException(e));
+				}
+			}
+			this.fail(new EOFException("Connection closed by server"));
+		} catch (final IOException e) {
+			this.fail(e);
+		}
+	}
+
+	/**
+	 * Send a request.
+	 *
+	 * @param call
+	 *            to receive responses
+	 * @param type
+	 *            of request
+	 * @param sentence
+	 *            of request or phrase of SIMILAR, or null for BATCH and PING
+	 * @param sentences
+	 *            of BATCH request, or null
+	 */
+	private void send(Call call, byte type, String sentence,
+			List<String> sentences) {
+		final int id = this.nextId.incrementAndGet();
+		this.pending.put(id, call);
+		try {
+			if (this.failure != null) {
+				throw this.failure;
+			}
+			final byte flags = (byte) (this.flags | call.getFlags());
+			final byte[] request;
+			if (type == Protocol.BATCH) {
+				request = Protocol.encodeBatchRequest(flags, id,
+						this.deadline, this.fields, sentences);
+			} else if (type == Protocol.PING) {
+				request = Protocol.encodePingRequest(id);
+			} else if (type == Protocol.SIMILAR) {
+				request = Protocol.encodeSimilarRequest(flags, id,
+						this.deadline, sentence, ((SimilarCall) call).count);
+			} else {
+				request = Protocol.encodeRequest(type, flags, id,
+						this.deadline, type == Protocol.VECTOR ? null
+								: this.fields, sentence);
+			}
+			synchronized (this.send) {
+				this.send.write(request);
+				this.send.flush();
+			}
+		} catch (final IOException e) {
+			this.pending.remove(id);
+			call.fail(e);
+		}
+
+		// Reader may have failed after the check above.
+		if ((this.failure != null) && (this.pending.remove(id) != null)) {
+			call.fail(this.failure);
+		}
+	}
+
+	/**
+	 * Set deadline of requests sent after this. Server answers each sentence
+	 * within the deadline, from the arrival of its request: sentences not
+	 * parsed in time get results of a flat tree, or fail with
+	 * {@link ServerException} of {@link Protocol#TIMEOUT} status, depending
+	 * on the server.
+	 *
+	 * @param millis
+	 *            deadline in milliseconds, or 0 for no deadline (default).
+	 */
+	public void setDeadline(int millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("Deadline should not be negative");
+		}
+		this.deadline = millis;
+	}
+
+	/**
+	 * Set fields of results to be received, for requests sent after this.
+	 * Server computes and sends only the given fields; the others are null in
+	 * received {@link Result} instances. Asking only for strings skips
+	 * encoding of the sentence, for example.
+	 *
+	 * @param fields
+	 *            of results, or null for every field but
+	 *            {@link Result.Field#SYNTACTIC} (default).
+	 */
+	public void setFields(Set<Result.Field> fields) {
+		if (fields == null) {
+			this.fields = null;
+			return;
+		}
+		final Set<Result.Field> copy = EnumSet.noneOf(Result.Field.class);
+		copy.addAll(fields);
+		this.fields = Collections.unmodifiableSet(copy);
+	}
+
+	/**
+	 * Set precision of received vectors. Single precision halves the size of
+	 * responses.
+	 *
+	 * @param single
+	 *            true to receive vectors in float32, false for float64
+	 *            (default).
+	 */
+	public void setSinglePrecision(boolean single) {
+		this.flags = single ? Protocol.FLOAT32 : 0;
+	}
+
+	/**
+	 * Send a sentence to find NPN structure, without waiting for the
+	 * response.
+	 *
+	 * @param sentence
+	 *            to find NPN structure
+	 * @return Future of {@link Result} instances. It fails with
+	 *         {@link ServerException} when server could not process the
+	 *         sentence, or with IOException when connection is lost.
+	 */
+	public CompletableFuture<List<Result>> submit(String sentence) {
+		final SingleCall call = new SingleCall();
 		sentence = sentence.trim();
 		if (sentence.length() == 0) {
-			return new LinkedList<Result>();
+			call.future.complete(new LinkedList<Result>());
 		} else {
-			this.send.write(sentence + "\n");
-			this.send.flush();
-			return ((LinkedList<Result>) this.receive.readObject());
+			this.send(call, Protocol.NPN, sentence, null);
 		}
+		return call.future;
+	}
+
+	/**
+	 * Send a sentence to find NPN structure with the sentence vector, without
+	 * waiting for the response.
+	 *
+	 * @param sentence
+	 *            to find NPN structure
+	 * @return Future of {@link NPNStructure}. It fails with
+	 *         {@link ServerException} when server could not process the
+	 *         sentence, or with IOException when connection is lost.
+	 */
+	public CompletableFuture<NPNStructure> submitStructure(String sentence) {
+		final StructureCall call = new StructureCall();
+		sentence = sentence.trim();
+		if (sentence.length() == 0) {
+			call.future.complete(new NPNStructure(new LinkedList<Result>(),
+					null));
+		} else {
+			this.send(call, Protocol.NPN, sentence, null);
+		}
+		return call.future;
+	}
+
+	/**
+	 * Send many sentences in one request, without waiting for the responses.
+	 * Results of each sentence are passed to listener as soon as they arrive.
+	 *
+	 * @param sentences
+	 *            to find NPN structure
+	 * @param listener
+	 *            to receive results of each sentence
+	 * @return Future of the number of sentences, completed after every
+	 *         result is passed to listener. It fails with IOException when
+	 *         connection is lost.
+	 */
+	public CompletableFuture<Integer> submitBatch(List<String> sentences,
+			BatchListener listener) {
+		final BatchCall call = new BatchCall(listener, sentences);
+		this.send(call, Protocol.BATCH, null, sentences);
+		return call.future;
+	}
+
+	/**
+	 * Send a document, without waiting for the responses. Server splits the
+	 * document into sentences, and results of each sentence are passed to
+	 * listener, with its text, as soon as they arrive.
+	 *
+	 * @param document
+	 *            to be split and find NPN structure
+	 * @param listener
+	 *            to receive results of each sentence
+	 * @return Future of the number of sentences, completed after every
+	 *         result is passed to listener. It fails with IOException when
+	 *         connection is lost.
+	 */
+	public CompletableFuture<Integer> submitDocument(String document,
+			BatchListener listener) {
+		final BatchCall call = new BatchCall(listener, null);
+		this.send(call, Protocol.DOCUMENT, document, null);
+		return call.future;
+	}
+
+	/**
+	 * Send a phrase to find similar phrases in the phrase index of server,
+	 * without waiting for the response.
+	 *
+	 * @param phrase
+	 *            to find similar phrases
+	 * @param k
+	 *            number of phrases to find
+	 * @return Future of at most k {@link Neighbor} instances, most similar
+	 *         first. It fails with {@link ServerException} when server has no
+	 *         index or could not process the phrase, or with IOException when
+	 *         connection is lost.
+	 */
+	public CompletableFuture<List<Neighbor>> submitSimilar(String phrase, int k) {
+		return this.submitSimilar(phrase, k, false);
+	}
+
+	/**
+	 * Send a phrase to find similar phrases in the phrase index of server,
+	 * without waiting for the response.
+	 *
+	 * @param phrase
+	 *            to find similar phrases
+	 * @param k
+	 *            number of phrases to find
+	 * @param fast
+	 *            true to encode the phrase along a right-branching tree
+	 *            without parsing, which is much faster but less accurate.
+	 * @return Future of at most k {@link Neighbor} instances, most similar
+	 *         first. It fails with {@link ServerException} when server has no
+	 *         index or could not process the phrase, or with IOException when
+	 *         connection is lost.
+	 */
+	public CompletableFuture<List<Neighbor>> submitSimilar(String phrase,
+			int k, boolean fast) {
+		if ((k <= 0) || (k > Protocol.MAX_NEIGHBORS)) {
+			throw new IllegalArgumentException("k should be in 1.."
+					+ Protocol.MAX_NEIGHBORS + " : " + k);
+		}
+		final SimilarCall call = new SimilarCall(k, fast);
+		this.send(call, Protocol.SIMILAR, phrase.trim(), null);
+		return call.future;
+	}
+
+	/**
+	 * Send a parse tree to find NPN structure, without waiting for the
+	 * response. Server reads the tree without running the parser, so this is
+	 * much faster than {@link #submit(String)} when the tree is already
+	 * known.
+	 *
+	 * @param tree
+	 *            parse tree in Penn Treebank format, as
+	 *            <tt>(ROOT (S (NP ...) ...))</tt>
+	 * @return Future of {@link Result} instances. It fails with
+	 *         {@link ServerException} when server could not read or process
+	 *         the tree, or with IOException when connection is lost.
+	 */
+	public CompletableFuture<List<Result>> submitTree(String tree) {
+		final SingleCall call = new SingleCall();
+		this.send(call, Protocol.PARSED, tree, null);
+		return call.future;
+	}
+
+	/**
+	 * Send a phrase to get its phrase vector, without waiting for the
+	 * response.
+	 *
+	 * @param phrase
+	 *            to be encoded
+	 * @param fast
+	 *            true to encode the phrase along a right-branching tree
+	 *            without parsing, which is orders of magnitude faster but
+	 *            less accurate.
+	 * @return Future of phrase vector. It fails with {@link ServerException}
+	 *         when server could not process the phrase, or with IOException
+	 *         when connection is lost.
+	 */
+	public CompletableFuture<SimpleMatrix> submitVector(String phrase,
+			boolean fast) {
+		final VectorCall call = new VectorCall(fast);
+		this.send(call, Protocol.VECTOR, phrase.trim(), null);
+		return call.future;
 	}
 }
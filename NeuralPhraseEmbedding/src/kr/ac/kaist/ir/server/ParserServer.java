@@ -3,24 +3,36 @@
  */
 package kr.ac.kaist.ir.server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.LinkedList;
-import java.util.Scanner;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import kr.ac.kaist.ir.urae.Result;
+import kr.ac.kaist.ir.index.PhraseIndex;
 import kr.ac.kaist.ir.urae.StanfordWrapper;
 
-import org.ejml.simple.SimpleMatrix;
-
-import edu.stanford.nlp.trees.Tree;
-
 /**
- * Server implementation for parser.
+ * <p>
+ * Server implementation for parser. Speaks {@link Protocol}.
+ * </p>
+ * <p>
+ * A thread per connection reads requests, and hands each of them to a worker
+ * pool shared by every connection, so that requests of a connection are
+ * processed in parallel and answered as each finishes. When the pool is full,
+ * the request is processed on the connection thread, which also stops
+ * reading from that client meanwhile. Responses are written by another thread
+ * of the connection, so workers never wait for a slow client.
+ * </p>
  *
  * @author 김부근
  *
@@ -28,25 +40,46 @@ import edu.stanford.nlp.trees.Tree;
 public class ParserServer extends Thread {
 
 	/**
-	 * Main method for execute server threads.
+	 * Main method for execute server threads. If system property
+	 * "npe.server.mode" is "nio", {@link NioParserServer} is executed instead.
 	 *
 	 * @param args
 	 */
 	public static void main(String[] args) {
+		if ("nio".equalsIgnoreCase(System
+				.getProperty(NioParserServer.MODE_PROPERTY))) {
+			NioParserServer.main(args);
+			return;
+		}
+
 		try {
+			final int port = Integer.getInteger(ParserServer.PORT_PROPERTY,
+					ParserServer.PORT);
 			@SuppressWarnings("resource")
-			final ServerSocket socket = new ServerSocket(ParserServer.PORT);
-			ParserServer.instance = StanfordWrapper.getInstance();
+			final ServerSocket socket = new ServerSocket(port);
+			final StanfordWrapper instance = StanfordWrapper.getInstance();
+			// Workers for requests and sentences of batch requests, sized to
+			// parser pool.
+			final int workers = instance.getParserPool().getCapacity();
+			ParserServer.workers = new ThreadPoolExecutor(workers, workers, 0,
+					TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+							workers * 16));
+			ParserServer.handler = new RequestHandler(instance,
+					ParserServer.workers, PhraseIndex.loadConfigured());
 			ParserServer.logger = Logger.getAnonymousLogger();
-			ParserServer.logger.info("Server Started with PORT "
-					+ ParserServer.PORT);
+			ParserServer.handler.getMetrics().register("ParserServer", port);
+			final Integer stats = Integer
+					.getInteger(ServerMetrics.STATS_PORT_PROPERTY);
+			if (stats != null) {
+				ParserServer.handler.getMetrics().serve(stats);
+			}
+			ParserServer.logger.info("Server Started with PORT " + port);
 
 			while (true) {
 				try {
 					final Socket accept = socket.accept();
+					ParserServer.handler.getMetrics().connectionOpened();
 					new ParserServer(accept).start();
-
-					System.out.print("+");
 				} catch (final Exception e) {
 					e.printStackTrace();
 				}
@@ -65,9 +98,54 @@ public class ParserServer extends Thread {
 	 * Service port
 	 */
 	public static final int PORT = 59800;
+	/** System property for service port. Default is {@link #PORT}. **/
+	public static final String PORT_PROPERTY = "npe.server.port";
 
-	/** StanfordWrapper instance **/
-	private static StanfordWrapper instance;
+	/** Request handler with StanfordWrapper instance **/
+	private static RequestHandler handler;
+	/** Workers shared by every connection **/
+	private static ThreadPoolExecutor workers;
+	/** Bytes of responses queued per connection before it stops reading **/
+	private static final long MAX_WRITE_BYTES = 4L << 20;
+
+	/**
+	 * Process a request. BATCH and DOCUMENT requests fan their sentences out
+	 * to the workers by themselves, and PING needs no work, so they are
+	 * handled on the calling thread. Others are processed by a worker, or by
+	 * the calling thread if the workers are full.
+	 *
+	 * @param request
+	 *            payload of request frame
+	 * @param sink
+	 *            to send response frames
+	 */
+	private static void dispatch(final byte[] request,
+			final RequestHandler.Sink sink) {
+		final byte type = Protocol.getType(request);
+		if ((type == Protocol.BATCH) || (type == Protocol.DOCUMENT)
+				|| (type == Protocol.PING)) {
+			ParserServer.handler.handle(request, sink);
+			return;
+		}
+
+		final long queued = System.nanoTime();
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				ParserServer.handler.getMetrics().recordQueue(
+						System.nanoTime() - queued);
+				// Deadline of request includes the time in the queue.
+				ParserServer.handler.handle(request, sink, queued);
+			}
+		};
+
+		try {
+			ParserServer.workers.execute(task);
+		} catch (final RejectedExecutionException e) {
+			// Workers are full. Process on this thread.
+			task.run();
+		}
+	}
 
 	/**
 	 * Generate Parser Server with given socket
@@ -80,84 +158,171 @@ public class ParserServer extends Thread {
 	}
 
 	/**
-	 * Find NP-PP(IN-NP) structure from the given tree, with DFS.
+	 * Run parser thread.
 	 *
-	 * @param tree
-	 *            for find NPN structure.
-	 * @param result
-	 *            LinkedList to be accumulated into.
-	 * @param sentence
-	 *            for top-level sentence.
-	 * @return LinkedList of Result instances.
-	 */
-	private LinkedList<Result> findNPNStructure(Tree tree,
-			LinkedList<Result> result, SimpleMatrix sentence) {
-		if (!tree.isLeaf() && !tree.isPreTerminal() && (tree.numChildren() > 0)) {
-			final int length = tree.numChildren();
-
-			for (int i = 1; i < length; i++) {
-				if (tree.getChild(i - 1).value().equalsIgnoreCase("NP")
-						&& tree.getChild(i).value().equalsIgnoreCase("PP")) {
-					result.add(new Result(tree.getChild(i - 1), tree
-							.getChild(i).firstChild(), tree.getChild(i)
-							.lastChild(), sentence));
-				}
+	 * @see java.lang.Thread#run()
+	 **/
+	@Override
+	public void run() {
+		Writer writer = null;
+		try {
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(this.accept.getInputStream()));
+			writer = new Writer(this.accept);
+			writer.start();
+
+			byte[] request;
+			while ((request = Protocol.readFrame(in)) != null) {
+				writer.admit();
+				ParserServer.dispatch(request, writer);
 			}
 
-			for (int i = 0; i < length; i++) {
-				final Tree child = tree.getChild(i);
-				if (!child.isLeaf() && !child.isPreTerminal()) {
-					this.findNPNStructure(child, result, sentence);
+		} catch (final Exception e) {
+			ParserServer.logger.log(Level.WARNING, "ERROR in Thread", e);
+		} finally {
+			try {
+				// Wait for responses of requests in workers.
+				if (writer != null) {
+					writer.finish();
+					writer.join();
 				}
+				this.accept.close();
+			} catch (final Exception e) {
+				ParserServer.logger.log(Level.FINE, "ERROR in closing", e);
 			}
+			ParserServer.handler.getMetrics().connectionClosed();
 		}
-
-		return result;
 	}
 
 	/**
-	 * Run parser thread.
+	 * <p>
+	 * Writes response frames of a connection on its own thread. Workers only
+	 * queue frames here, so a client that reads slowly never holds a worker
+	 * that is shared with other connections. Instead, the reader of the
+	 * connection stops reading while too many bytes are queued.
+	 * </p>
 	 *
-	 * @see java.lang.Thread#run()
-	 **/
-	@Override
-	public void run() {
-		try {
-			final Scanner in = new Scanner(this.accept.getInputStream());
-			final ObjectOutputStream out = new ObjectOutputStream(
-					this.accept.getOutputStream());
-
-			while (in.hasNextLine()) {
-				final String line = in.nextLine();
-				if (line.length() > 0) {
-					try {
-						final Tree tree = ParserServer.instance.parseTree(line);
-						LinkedList<Result> result = new LinkedList<Result>();
-						if (tree.numChildren() > 0) {
-							result = this.findNPNStructure(tree, result,
-									ParserServer.instance
-									.getPhraseVectorOf(tree));
-						} else {
-							ParserServer.logger
-									.info("Weird sentence : " + line);
+	 * @author 김부근
+	 *
+	 */
+	private static final class Writer extends Thread implements
+			RequestHandler.Sink {
+		/** Stream of connection **/
+		private final OutputStream out;
+		/** Socket of connection, closed when writing fails **/
+		private final Socket socket;
+		/** Frames not written yet. Guarded by this. **/
+		private final ArrayDeque<byte[]> frames = new ArrayDeque<byte[]>();
+		/** Bytes of queued frames. Guarded by this. **/
+		private long bytes;
+		/** Number of requests not answered yet. Guarded by this. **/
+		private int outstanding;
+		/** True if no more requests will come. Guarded by this. **/
+		private boolean finished;
+		/** True if writing failed. Guarded by this. **/
+		private boolean broken;
+
+		/**
+		 * Generate writer of given connection.
+		 *
+		 * @param socket
+		 *            is connection Socket.
+		 * @throws IOException
+		 */
+		Writer(Socket socket) throws IOException {
+			super("ParserServer-writer");
+			this.setDaemon(true);
+			this.socket = socket;
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		/**
+		 * Count a request read. Waits while more than
+		 * {@link ParserServer#MAX_WRITE_BYTES} are queued.
+		 *
+		 * @throws InterruptedException
+		 */
+		synchronized void admit() throws InterruptedException {
+			while (!this.broken && (this.bytes > ParserServer.MAX_WRITE_BYTES)) {
+				this.wait();
+			}
+			this.outstanding++;
+		}
+
+		/**
+		 * Mark that no more requests will come. The thread ends after
+		 * writing responses of every request read.
+		 */
+		synchronized void finish() {
+			this.finished = true;
+			this.notifyAll();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see kr.ac.kaist.ir.server.RequestHandler.Sink#send(byte[], boolean)
+		 */
+		@Override
+		public synchronized void send(byte[] frame, boolean last) {
+			if (!this.broken) {
+				this.frames.add(frame);
+				this.bytes += frame.length;
+			}
+			if (last) {
+				this.outstanding--;
+			}
+			this.notifyAll();
+		}
+
+		/**
+		 * Write queued frames, flushing whenever the queue becomes empty.
+		 *
+		 * @see java.lang.Thread#run()
+		 */
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					final byte[] frame;
+					final boolean more;
+					synchronized (this) {
+						while (this.frames.isEmpty()
+								&& !(this.finished && (this.outstanding <= 0))) {
+							this.wait();
+						}
+						frame = this.frames.poll();
+						if (frame == null) {
+							break;
 						}
-						out.writeObject(result);
-						out.flush();
-					} catch (final Exception e) {
-						ParserServer.logger.log(Level.WARNING,
-								"ERROR with sentence : " + line, e);
+						this.bytes -= frame.length;
+						more = !this.frames.isEmpty();
+						this.notifyAll();
+					}
+
+					this.out.write(frame);
+					if (!more) {
+						this.out.flush();
 					}
-				} else {
-					break;
 				}
+				this.out.flush();
+			} catch (final IOException e) {
+				ParserServer.logger.log(Level.FINE, "ERROR in writing", e);
+				synchronized (this) {
+					this.broken = true;
+					this.frames.clear();
+					this.bytes = 0;
+					this.notifyAll();
+				}
+				// Stop reading requests of which responses cannot be sent.
+				try {
+					this.socket.close();
+				} catch (final IOException ex) {
+					ParserServer.logger.log(Level.FINE, "ERROR in closing", ex);
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
 			}
-
-			in.close();
-			out.close();
-			System.out.print("-");
-			this.accept.close();
-		} catch (final Exception e) {
-			ParserServer.logger.log(Level.WARNING, "ERROR in Thread", e);
 		}
 	}
 }
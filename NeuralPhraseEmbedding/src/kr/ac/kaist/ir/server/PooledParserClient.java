@@ -0,0 +1,604 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import kr.ac.kaist.ir.urae.Result;
+
+/**
+ * <p>
+ * Client helper for many ParserServer nodes. Holds a pool of
+ * {@link ParserClient} connections to each server, and sends each request to
+ * the connection with the least requests in flight.
+ * </p>
+ * <p>
+ * A background thread checks health of every node periodically with PING,
+ * sent over a dedicated connection which carries no other request, so that a
+ * busy node is not mistaken for a dead one. A node which fails to connect or
+ * to answer in time is ejected, and its connections are aborted; it is
+ * retried on later checks, and admitted again once it answers. A sentence
+ * whose connection is lost, or which is rejected by an overloaded server, is
+ * retried on another node, so that restarting a node does not fail the
+ * caller. Retries are delayed, doubling the delay each time, and wait for the
+ * next health check when no node is available. Batch and document requests
+ * are not retried, since their results may be partially delivered.
+ * </p>
+ * <p>
+ * An instance can be shared by many threads.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public class PooledParserClient {
+	/**
+	 * Sentence scheduled to be sent again.
+	 */
+	private final class Retry implements Runnable {
+		/** Sentence to find NPN structure **/
+		private final String sentence;
+		/** Future to be completed **/
+		private final CompletableFuture<List<Result>> future;
+		/** Number of attempts so far **/
+		private final int attempt;
+		/** Node to avoid, or null **/
+		private final Node avoid;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param sentence
+		 *            to find NPN structure
+		 * @param future
+		 *            to be completed
+		 * @param attempt
+		 *            number of attempts so far
+		 * @param avoid
+		 *            node to avoid, or null
+		 */
+		Retry(String sentence, CompletableFuture<List<Result>> future,
+				int attempt, Node avoid) {
+			this.sentence = sentence;
+			this.future = future;
+			this.attempt = attempt;
+			this.avoid = avoid;
+		}
+
+		/**
+		 * Send the sentence again.
+		 *
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			if (PooledParserClient.this.retrying.remove(this)) {
+				PooledParserClient.this.send(this.sentence, this.future,
+						this.attempt, this.avoid);
+			}
+		}
+	}
+
+	/**
+	 * Server node and its connections.
+	 */
+	private static final class Node {
+		/** Address of server **/
+		private final InetSocketAddress address;
+		/** Connections, null if not connected **/
+		private final AtomicReferenceArray<ParserClient> clients;
+		/** Connection for health checks only, null if not connected **/
+		private volatile ParserClient probe;
+		/** Whether node passed the last health check **/
+		private volatile boolean healthy;
+		/** Counters **/
+		private final AtomicLong requests = new AtomicLong(),
+				failures = new AtomicLong(), ejections = new AtomicLong();
+
+		/**
+		 * Constructor.
+		 *
+		 * @param address
+		 *            of server
+		 * @param connections
+		 *            number of connections
+		 */
+		Node(InetSocketAddress address, int connections) {
+			this.address = address;
+			this.clients = new AtomicReferenceArray<ParserClient>(connections);
+		}
+
+		/**
+		 * Sum of requests in flight.
+		 *
+		 * @return number of requests in flight
+		 */
+		int getPendingCount() {
+			int pending = 0;
+			for (int i = 0; i < this.clients.length(); i++) {
+				final ParserClient client = this.clients.get(i);
+				if (client != null) {
+					pending += client.getPendingCount();
+				}
+			}
+			return pending;
+		}
+	}
+
+	/** System property for interval of health checks, in milliseconds **/
+	public static final String INTERVAL_PROPERTY = "npe.client.interval";
+	/** System property for timeout of connection and PING, in milliseconds **/
+	public static final String TIMEOUT_PROPERTY = "npe.client.timeout";
+	/** System property for number of retries of a sentence **/
+	public static final String RETRIES_PROPERTY = "npe.client.retries";
+	/** System property for first delay of retry after rejection, in ms **/
+	public static final String BACKOFF_PROPERTY = "npe.client.backoff";
+
+	/** logger **/
+	private final Logger logger = Logger.getAnonymousLogger();
+	/** Server nodes **/
+	private final Node[] nodes;
+	/** Scheduler of health checks and delayed retries **/
+	private final ScheduledExecutorService checker;
+	/** Timeout of connection and PING, in milliseconds **/
+	private final int timeoutMillis;
+	/** Interval of health checks, in milliseconds **/
+	private final long intervalMillis;
+	/** Number of retries of a sentence **/
+	private final int retries;
+	/** First delay of retry after rejection, in milliseconds **/
+	private final long backoffMillis;
+	/** Rotation of starting node, for tie breaking **/
+	private final AtomicInteger rotation = new AtomicInteger();
+	/** Sentences scheduled for retry, failed if the client is closed **/
+	private final Set<Retry> retrying = Collections
+			.newSetFromMap(new ConcurrentHashMap<Retry, Boolean>());
+
+	/**
+	 * <p>
+	 * Constructor. Connect to every server, and start health checks.
+	 * Unreachable servers are ejected, and retried later.
+	 * </p>
+	 * <p>
+	 * <b>When you finish your job, please call {{@link #close()} method for
+	 * close connections.</b>
+	 * </p>
+	 *
+	 * @param servers
+	 *            addresses of ParserServer nodes
+	 * @param connections
+	 *            number of connections per server
+	 */
+	public PooledParserClient(List<InetSocketAddress> servers, int connections) {
+		this.timeoutMillis = Integer.getInteger(
+				PooledParserClient.TIMEOUT_PROPERTY, 2000);
+		this.retries = Integer.getInteger(PooledParserClient.RETRIES_PROPERTY,
+				2);
+		this.backoffMillis = Long.getLong(PooledParserClient.BACKOFF_PROPERTY,
+				50);
+		this.intervalMillis = Long.getLong(
+				PooledParserClient.INTERVAL_PROPERTY, 5000);
+		this.nodes = new Node[servers.size()];
+		for (int i = 0; i < this.nodes.length; i++) {
+			this.nodes[i] = new Node(servers.get(i), connections);
+			this.check(this.nodes[i]);
+		}
+
+		this.checker = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						final Thread thread = new Thread(r,
+								"PooledParserClient-checker");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.checker.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				for (final Node node : PooledParserClient.this.nodes) {
+					PooledParserClient.this.check(node);
+				}
+			}
+		}, this.intervalMillis, this.intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Check health of a node. PING over the connection for health checks, and
+	 * reconnect lost connections. Eject the node if any of them fails.
+	 * Requests of other connections are not in the way of PING, so only a
+	 * node that cannot answer at all fails the check.
+	 *
+	 * @param node
+	 *            to be checked
+	 */
+	private void check(Node node) {
+		try {
+			ParserClient probe = node.probe;
+			if ((probe == null) || !probe.isOpen()) {
+				probe = new ParserClient(node.address, this.timeoutMillis);
+				node.probe = probe;
+			}
+			probe.ping().get(this.timeoutMillis, TimeUnit.MILLISECONDS);
+
+			for (int i = 0; i < node.clients.length(); i++) {
+				final ParserClient client = node.clients.get(i);
+				if ((client == null) || !client.isOpen()) {
+					node.clients.set(i, new ParserClient(node.address,
+							this.timeoutMillis));
+				}
+			}
+
+			if (!node.healthy) {
+				this.logger.info("Server admitted : " + node.address);
+			}
+			node.healthy = true;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (final IOException | ExecutionException | TimeoutException e) {
+			final ParserClient probe = node.probe;
+			node.probe = null;
+			if (probe != null) {
+				probe.abort();
+			}
+			this.eject(node, e);
+		}
+	}
+
+	/**
+	 * Choose connection with the least requests in flight, among healthy
+	 * nodes.
+	 *
+	 * @param avoid
+	 *            node to avoid if others are available, or null
+	 * @return connection, or null if no node is available.
+	 */
+	private ParserClient choose(Node avoid) {
+		if (this.nodes.length == 0) {
+			return null;
+		}
+
+		ParserClient best = null;
+		boolean bestAvoided = true;
+		int bestLoad = Integer.MAX_VALUE;
+
+		final int start = Math.abs(this.rotation.getAndIncrement()
+				% this.nodes.length);
+		for (int n = 0; n < this.nodes.length; n++) {
+			final Node node = this.nodes[(start + n) % this.nodes.length];
+			if (!node.healthy) {
+				continue;
+			}
+
+			final boolean avoided = node == avoid;
+			for (int i = 0; i < node.clients.length(); i++) {
+				final ParserClient client = node.clients.get(i);
+				if ((client == null) || !client.isOpen()) {
+					continue;
+				}
+
+				final int load = client.getPendingCount();
+				if ((bestAvoided && !avoided)
+						|| ((bestAvoided == avoided) && (load < bestLoad))) {
+					best = client;
+					bestLoad = load;
+					bestAvoided = avoided;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Close every connection. This waits until every request in flight is
+	 * answered; sentences waiting for retry fail with IOException.
+	 */
+	public void close() {
+		this.checker.shutdownNow();
+		for (final Retry retry : this.retrying) {
+			if (this.retrying.remove(retry)) {
+				retry.future.completeExceptionally(new IOException(
+						"Client is closed"));
+			}
+		}
+		for (final Node node : this.nodes) {
+			final ParserClient probe = node.probe;
+			node.probe = null;
+			if (probe != null) {
+				probe.abort();
+			}
+			for (int i = 0; i < node.clients.length(); i++) {
+				final ParserClient client = node.clients.getAndSet(i, null);
+				if (client != null) {
+					try {
+						client.close();
+					} catch (final IOException e) {
+						this.logger.log(Level.FINE, "ERROR in close", e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Eject a node, and abort its connections.
+	 *
+	 * @param node
+	 *            to be ejected
+	 * @param cause
+	 *            of ejection
+	 */
+	private void eject(Node node, Exception cause) {
+		synchronized (node) {
+			if (node.healthy) {
+				node.ejections.incrementAndGet();
+				this.logger.warning("Server ejected : " + node.address + " ("
+						+ cause + ")");
+			}
+			node.healthy = false;
+		}
+		for (int i = 0; i < node.clients.length(); i++) {
+			final ParserClient client = node.clients.getAndSet(i, null);
+			if (client != null) {
+				client.abort();
+			}
+		}
+	}
+
+	/**
+	 * Find node of connection.
+	 *
+	 * @param client
+	 *            connection
+	 * @return node, or null if not found.
+	 */
+	private Node findNode(ParserClient client) {
+		for (final Node node : this.nodes) {
+			for (int i = 0; i < node.clients.length(); i++) {
+				if (node.clients.get(i) == client) {
+					return node;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get NPN structure result from a server, with given sentence. This blocks
+	 * until the response arrives.
+	 *
+	 * @param sentence
+	 *            to find NPN structure
+	 * @return List of {@link Result} instances.
+	 * @throws ServerException
+	 *             when server could not process the sentence.
+	 * @throws IOException
+	 *             when no server could answer.
+	 */
+	public List<Result> getParsedResultOf(String sentence) throws IOException {
+		try {
+			return this.submit(sentence).get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting", e);
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Number of healthy nodes.
+	 *
+	 * @return number of nodes which passed the last health check
+	 */
+	public int getHealthyCount() {
+		int healthy = 0;
+		for (final Node node : this.nodes) {
+			if (node.healthy) {
+				healthy++;
+			}
+		}
+		return healthy;
+	}
+
+	/**
+	 * Send a sentence again after delay.
+	 *
+	 * @param sentence
+	 *            to find NPN structure
+	 * @param future
+	 *            to be completed
+	 * @param attempt
+	 *            number of attempts so far
+	 * @param avoid
+	 *            node to avoid, or null
+	 * @param delay
+	 *            in milliseconds
+	 */
+	private void retry(String sentence,
+			CompletableFuture<List<Result>> future, int attempt, Node avoid,
+			long delay) {
+		final Retry retry = new Retry(sentence, future, attempt, avoid);
+		this.retrying.add(retry);
+		try {
+			this.checker.schedule(retry, delay, TimeUnit.MILLISECONDS);
+		} catch (final RejectedExecutionException e) {
+			this.retrying.remove(retry);
+			future.completeExceptionally(new IOException("Client is closed"));
+		}
+	}
+
+	/**
+	 * Send a sentence to the least loaded connection, and retry on failure.
+	 *
+	 * @param sentence
+	 *            to find NPN structure
+	 * @param future
+	 *            to be completed
+	 * @param attempt
+	 *            number of attempts so far
+	 * @param avoid
+	 *            node to avoid, or null
+	 */
+	private void send(final String sentence,
+			final CompletableFuture<List<Result>> future, final int attempt,
+			Node avoid) {
+		final ParserClient client = this.choose(avoid);
+		if (client == null) {
+			if ((attempt >= this.retries) || (this.nodes.length == 0)) {
+				future.completeExceptionally(new IOException(
+						"No server is available"));
+			} else {
+				// Every node may be restarting. Wait until the next health
+				// check admits one.
+				this.retry(sentence, future, attempt + 1, avoid,
+						this.intervalMillis);
+			}
+			return;
+		}
+
+		final Node node = this.findNode(client);
+		if (node != null) {
+			node.requests.incrementAndGet();
+		}
+		client.submit(sentence).whenComplete(
+				new BiConsumer<List<Result>, Throwable>() {
+					@Override
+					public void accept(List<Result> result, Throwable cause) {
+						if (cause == null) {
+							future.complete(result);
+							return;
+						}
+
+						final boolean rejected = (cause instanceof ServerException)
+								&& (((ServerException) cause).getStatus() == Protocol.REJECTED);
+						final boolean lost = !(cause instanceof ServerException);
+						if (node != null) {
+							node.failures.incrementAndGet();
+							if (lost) {
+								// Connection is lost; stop using the node until
+								// it passes health check.
+								PooledParserClient.this.eject(node,
+										(Exception) cause);
+							}
+						}
+
+						if (!(rejected || lost)
+								|| (attempt >= PooledParserClient.this.retries)) {
+							future.completeExceptionally(cause);
+						} else {
+							// Every node may be overloaded or restarting. Wait
+							// before retry, doubling the delay each time.
+							PooledParserClient.this.retry(sentence, future,
+									attempt + 1, node,
+									PooledParserClient.this.backoffMillis << attempt);
+						}
+					}
+				});
+	}
+
+	/**
+	 * Send a sentence to find NPN structure, without waiting for the
+	 * response.
+	 *
+	 * @param sentence
+	 *            to find NPN structure
+	 * @return Future of {@link Result} instances. It fails with
+	 *         {@link ServerException} when server could not process the
+	 *         sentence, or with IOException when no server could answer.
+	 */
+	public CompletableFuture<List<Result>> submit(String sentence) {
+		final CompletableFuture<List<Result>> future = new CompletableFuture<List<Result>>();
+		this.send(sentence, future, 0, null);
+		return future;
+	}
+
+	/**
+	 * Send many sentences in one request to the least loaded connection. See
+	 * {@link ParserClient#submitBatch(List, BatchListener)}. This is not
+	 * retried.
+	 *
+	 * @param sentences
+	 *            to find NPN structure
+	 * @param listener
+	 *            to receive results of each sentence
+	 * @return Future of the number of sentences.
+	 */
+	public CompletableFuture<Integer> submitBatch(List<String> sentences,
+			BatchListener listener) {
+		final ParserClient client = this.choose(null);
+		if (client == null) {
+			final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+			future.completeExceptionally(new IOException(
+					"No server is available"));
+			return future;
+		}
+		return client.submitBatch(sentences, listener);
+	}
+
+	/**
+	 * Send a document to the least loaded connection. See
+	 * {@link ParserClient#submitDocument(String, BatchListener)}. This is not
+	 * retried.
+	 *
+	 * @param document
+	 *            to be split and find NPN structure
+	 * @param listener
+	 *            to receive results of each sentence
+	 * @return Future of the number of sentences.
+	 */
+	public CompletableFuture<Integer> submitDocument(String document,
+			BatchListener listener) {
+		final ParserClient client = this.choose(null);
+		if (client == null) {
+			final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+			future.completeExceptionally(new IOException(
+					"No server is available"));
+			return future;
+		}
+		return client.submitDocument(document, listener);
+	}
+
+	/**
+	 * Summary of nodes.
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		final List<String> summary = new ArrayList<String>();
+		for (final Node node : this.nodes) {
+			summary.add(String.format(
+					"%s[%s, pending=%d, requests=%d, failures=%d, ejections=%d]",
+					node.address, node.healthy ? "UP" : "DOWN",
+					node.getPendingCount(), node.requests.get(),
+					node.failures.get(), node.ejections.get()));
+		}
+		return "PooledParserClient" + summary;
+	}
+}
@@ -0,0 +1,1129 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import kr.ac.kaist.ir.index.Neighbor;
+import kr.ac.kaist.ir.urae.Result;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * <p>
+ * Binary wire protocol for ParserServer - Client communication.
+ * </p>
+ * <p>
+ * Every message is a frame: 4-byte length of payload, then the payload.
+ * Numbers are big-endian, and strings are 4-byte length followed by UTF-8
+ * bytes. A frame of length 0 means the client is closing the connection.
+ * </p>
+ *
+ * <pre>
+ * Request  : version(1) type(1) flags(1) id(4)
+ *            if DEADLINE flag is set : deadline(4), in milliseconds
+ *            if FIELDS flag is set   : fields(1), bit i for i-th {@link Result.Field}
+ *            body
+ *            NPN      : sentence(string)
+ *            BATCH    : count(4) count * sentence(string)
+ *            DOCUMENT : document(string)
+ *            PING     : (empty)
+ *            PARSED   : tree(string), in Penn Treebank format
+ *            SIMILAR  : k(4) phrase(string)
+ *            VECTOR   : phrase(string)
+ * Response : version(1) status(1) flags(1) id(4) index(4)
+ *            if TEXT flag is set : sentence(string)
+ *            if NEIGHBORS flag   : count(4) count * [id(4) phrase(string) similarity(8)]
+ *            else if status OK   : if FIELDS flag : fields(1)
+ *                                  sentence(vector) count(4)
+ *                                  count * [np1 pp np2 (string), np1 pp np2 (vector),
+ *                                           syntactic(vector)]
+ *            otherwise           : message(string)
+ * Vector   : length(4), then length values; float32 if FLOAT32 flag is set,
+ *            float64 otherwise. Length 0 means no vector.
+ * </pre>
+ * <p>
+ * The sentence vector is shared by every result, so it is sent once. A
+ * response carries id of its request, so that many requests can be in flight
+ * on a connection, and answered in any order.
+ * </p>
+ * <p>
+ * NPN and PARSED requests have exactly one response, with index 0. BATCH and DOCUMENT
+ * requests have one response per sentence, in any order, with index of the
+ * sentence; then a response of {@link #END} status, whose index is the
+ * number of sentences. Responses of DOCUMENT carry split sentences with TEXT
+ * flag. PING request has one OK response without results. SIMILAR request
+ * has one response with NEIGHBORS flag, which carries at most k phrases of
+ * the server's phrase index most similar to the phrase, most similar first;
+ * k is at most {@link #MAX_NEIGHBORS}.
+ * VECTOR request has one OK response with the phrase vector as sentence
+ * vector, and no results. With FAST flag, the phrase of VECTOR and SIMILAR
+ * requests is encoded along a right-branching tree of its words, without
+ * parsing.
+ * </p>
+ * <p>
+ * A request with DEADLINE flag should be answered within the deadline, from
+ * its arrival at the server. A sentence which is not parsed in time, or is
+ * too long to parse, is answered with {@link #TIMEOUT} or {@link #TOO_LONG}
+ * status, or with results of a flat tree of its words and FALLBACK flag,
+ * depending on the server.
+ * </p>
+ * <p>
+ * A NPN, BATCH, DOCUMENT or PARSED request with FIELDS flag asks only for
+ * the given fields of results, and its responses have FIELDS flag with the
+ * same fields; parts of response which are not in the fields are not sent at
+ * all. Syntactic score vector is sent only when asked for. Without FIELDS
+ * flag, every part but syntactic score vector is sent.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public final class Protocol {
+	/**
+	 * Decoded request.
+	 */
+	public static final class Request {
+		/** Type of request **/
+		private final byte type;
+		/** Flags of request **/
+		private final byte flags;
+		/** ID of request **/
+		private final int id;
+		/** Sentence or document of request, or null for BATCH **/
+		private final String sentence;
+		/** Sentences of BATCH request, or null **/
+		private final List<String> sentences;
+		/** Number of neighbors of SIMILAR request **/
+		private final int count;
+		/** Deadline of request in milliseconds, or 0 **/
+		private final int deadline;
+		/** Fields of results requested, or null **/
+		private final Set<Result.Field> fields;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param type
+		 *            of request
+		 * @param flags
+		 *            of request
+		 * @param id
+		 *            of request
+		 * @param sentence
+		 *            of request, or null
+		 * @param sentences
+		 *            of BATCH request, or null
+		 * @param count
+		 *            of neighbors for SIMILAR request, or 0
+		 * @param deadline
+		 *            of request in milliseconds, or 0
+		 * @param fields
+		 *            of results requested, or null
+		 */
+		Request(byte type, byte flags, int id, String sentence,
+				List<String> sentences, int count, int deadline,
+				Set<Result.Field> fields) {
+			this.type = type;
+			this.flags = flags;
+			this.id = id;
+			this.sentence = sentence;
+			this.sentences = sentences;
+			this.count = count;
+			this.deadline = deadline;
+			this.fields = fields;
+		}
+
+		/**
+		 * Returns number of neighbors to find, for SIMILAR request.
+		 *
+		 * @return k, or 0 for other requests.
+		 */
+		public int getCount() {
+			return this.count;
+		}
+
+		/**
+		 * Returns deadline of request, from its arrival.
+		 *
+		 * @return deadline in milliseconds, or 0 if DEADLINE flag is not set.
+		 */
+		public int getDeadline() {
+			return this.deadline;
+		}
+
+		/**
+		 * Returns fields of results requested.
+		 *
+		 * @return Set of fields, or null if FIELDS flag is not set.
+		 */
+		public Set<Result.Field> getFields() {
+			return this.fields;
+		}
+
+		/**
+		 * Returns flags of request.
+		 *
+		 * @return flags, such as {@link Protocol#FLOAT32}
+		 */
+		public byte getFlags() {
+			return this.flags;
+		}
+
+		/**
+		 * Returns ID of request.
+		 *
+		 * @return id
+		 */
+		public int getId() {
+			return this.id;
+		}
+
+		/**
+		 * Returns sentence of request. For DOCUMENT request, this is the
+		 * whole document, and for SIMILAR request, this is the phrase.
+		 *
+		 * @return sentence, or null for BATCH request.
+		 */
+		public String getSentence() {
+			return this.sentence;
+		}
+
+		/**
+		 * Returns sentences of BATCH request.
+		 *
+		 * @return List of sentences, or null for other requests.
+		 */
+		public List<String> getSentences() {
+			return this.sentences;
+		}
+
+		/**
+		 * Returns type of request.
+		 *
+		 * @return type, such as {@link Protocol#NPN}
+		 */
+		public byte getType() {
+			return this.type;
+		}
+	}
+
+	/**
+	 * Decoded response.
+	 */
+	public static final class Response {
+		/** Status of response **/
+		private final byte status;
+		/** Flags of response **/
+		private final byte flags;
+		/** ID of request **/
+		private final int id;
+		/** Index of sentence **/
+		private final int index;
+		/** Sentence, if sent **/
+		private final String sentence;
+		/** Results, if status is OK **/
+		private final LinkedList<Result> results;
+		/** Neighbors, if status is OK and NEIGHBORS flag is set **/
+		private final List<Neighbor> neighbors;
+		/** Message, if status is not OK **/
+		private final String message;
+		/** Sentence vector, if status is OK **/
+		private final SimpleMatrix vector;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param status
+		 *            of response
+		 * @param flags
+		 *            of response
+		 * @param id
+		 *            of request
+		 * @param index
+		 *            of sentence
+		 * @param sentence
+		 *            text, or null
+		 * @param results
+		 *            list of results, or null
+		 * @param neighbors
+		 *            list of neighbors, or null
+		 * @param message
+		 *            from server, or null
+		 * @param vector
+		 *            of sentence, or null
+		 */
+		Response(byte status, byte flags, int id, int index,
+				String sentence, LinkedList<Result> results,
+				List<Neighbor> neighbors, String message, SimpleMatrix vector) {
+			this.status = status;
+			this.flags = flags;
+			this.id = id;
+			this.index = index;
+			this.sentence = sentence;
+			this.results = results;
+			this.neighbors = neighbors;
+			this.message = message;
+			this.vector = vector;
+		}
+
+		/**
+		 * Returns ID of request.
+		 *
+		 * @return id
+		 */
+		public int getId() {
+			return this.id;
+		}
+
+		/**
+		 * Returns index of sentence in BATCH or DOCUMENT request. For
+		 * {@link Protocol#END} response, this is the number of sentences.
+		 *
+		 * @return index
+		 */
+		public int getIndex() {
+			return this.index;
+		}
+
+		/**
+		 * Returns neighbors of SIMILAR request.
+		 *
+		 * @return List of {@link Neighbor} instances, most similar first.
+		 * @throws ServerException
+		 *             if server could not find neighbors.
+		 */
+		public List<Neighbor> getNeighbors() throws ServerException {
+			if (this.status != Protocol.OK) {
+				throw new ServerException(this.status, this.message);
+			}
+			return this.neighbors;
+		}
+
+		/**
+		 * Returns results.
+		 *
+		 * @return LinkedList of {@link Result} instances.
+		 * @throws ServerException
+		 *             if server could not process the sentence.
+		 */
+		public LinkedList<Result> getResults() throws ServerException {
+			if (this.status != Protocol.OK) {
+				throw new ServerException(this.status, this.message);
+			}
+			return this.results;
+		}
+
+		/**
+		 * Whether results were found in a flat tree of words, since the
+		 * sentence was not parsed within the limits of server.
+		 *
+		 * @return true if FALLBACK flag is set.
+		 */
+		public boolean isFallback() {
+			return (this.flags & Protocol.FALLBACK) != 0;
+		}
+
+		/**
+		 * Returns sentence text, which is sent for DOCUMENT request.
+		 *
+		 * @return sentence, or null if not sent.
+		 */
+		public String getSentence() {
+			return this.sentence;
+		}
+
+		/**
+		 * Returns status of response.
+		 *
+		 * @return status, such as {@link Protocol#OK}
+		 */
+		public byte getStatus() {
+			return this.status;
+		}
+
+		/**
+		 * Returns sentence vector, which is the phrase vector for VECTOR
+		 * request.
+		 *
+		 * @return column vector, or null if not sent.
+		 * @throws ServerException
+		 *             if server could not process the sentence.
+		 */
+		public SimpleMatrix getVector() throws ServerException {
+			if (this.status != Protocol.OK) {
+				throw new ServerException(this.status, this.message);
+			}
+			return this.vector;
+		}
+	}
+
+	/** Version of protocol **/
+	public static final byte VERSION = 3;
+	/** Maximum length of a frame **/
+	public static final int MAX_FRAME = 1 << 24;
+	/** Maximum number of neighbors of SIMILAR request **/
+	public static final int MAX_NEIGHBORS = 1000;
+
+	/** Request type : find NPN structures of a sentence **/
+	public static final byte NPN = 1;
+	/** Request type : find NPN structures of many sentences **/
+	public static final byte BATCH = 2;
+	/** Request type : split document, and find NPN structures of sentences **/
+	public static final byte DOCUMENT = 3;
+	/** Request type : health check **/
+	public static final byte PING = 4;
+	/** Request type : find NPN structures of a parse tree, without parsing **/
+	public static final byte PARSED = 5;
+	/** Request type : find similar phrases in the phrase index **/
+	public static final byte SIMILAR = 6;
+	/** Request type : encode phrase vector of a phrase **/
+	public static final byte VECTOR = 7;
+
+	/** Flag : send vectors in float32 **/
+	public static final byte FLOAT32 = 1;
+	/** Flag : response has sentence text **/
+	public static final byte TEXT = 2;
+	/** Flag : response has neighbors instead of results **/
+	public static final byte NEIGHBORS = 4;
+	/** Flag : response has results of a flat tree, instead of the parse **/
+	public static final byte FALLBACK = 8;
+	/** Flag : request has a deadline **/
+	public static final byte DEADLINE = 16;
+	/** Flag : encode phrase along a right-branching tree, without parsing **/
+	public static final byte FAST = 32;
+	/** Flag : request or response has fields of results **/
+	public static final byte FIELDS = 64;
+
+	/** Status : processed **/
+	public static final byte OK = 0;
+	/** Status : server is overloaded **/
+	public static final byte REJECTED = 1;
+	/** Status : failed to process **/
+	public static final byte ERROR = 2;
+	/** Status : malformed or unsupported request **/
+	public static final byte BAD_REQUEST = 3;
+	/** Status : every sentence of BATCH or DOCUMENT request is answered **/
+	public static final byte END = 4;
+	/** Status : sentence is not parsed before the deadline **/
+	public static final byte TIMEOUT = 5;
+	/** Status : sentence has too many words to parse **/
+	public static final byte TOO_LONG = 6;
+
+	/** Charset of strings **/
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** Names of status codes **/
+	private static final String[] STATUS_NAMES = { "OK", "REJECTED", "ERROR",
+			"BAD_REQUEST", "END", "TIMEOUT", "TOO_LONG" };
+
+	/**
+	 * Check version of payload.
+	 *
+	 * @param payload
+	 *            to be checked
+	 * @throws ProtocolException
+	 *             if version is not supported.
+	 */
+	private static void checkVersion(ByteBuffer payload)
+			throws ProtocolException {
+		final byte version = payload.get();
+		if (version != Protocol.VERSION) {
+			throw new ProtocolException("Unsupported protocol version "
+					+ version);
+		}
+	}
+
+	/**
+	 * Decode request payload.
+	 *
+	 * @param payload
+	 *            of request frame
+	 * @return decoded request
+	 * @throws ProtocolException
+	 *             if request is malformed.
+	 */
+	public static Request decodeRequest(byte[] payload)
+			throws ProtocolException {
+		try {
+			final ByteBuffer buffer = ByteBuffer.wrap(payload);
+			Protocol.checkVersion(buffer);
+			final byte type = buffer.get();
+			final byte flags = buffer.get();
+			final int id = buffer.getInt();
+			final int deadline = (flags & Protocol.DEADLINE) != 0 ? buffer
+					.getInt() : 0;
+			if (deadline < 0) {
+				throw new ProtocolException("Invalid deadline " + deadline);
+			}
+			final Set<Result.Field> fields = (flags & Protocol.FIELDS) != 0 ? Protocol
+					.readFields(buffer) : null;
+
+			if (type == Protocol.BATCH) {
+				final int count = buffer.getInt();
+				// Each sentence takes 4 bytes at least.
+				if ((count < 0) || (count > (buffer.remaining() / 4))) {
+					throw new ProtocolException("Invalid batch size " + count);
+				}
+				final List<String> sentences = new ArrayList<String>(count);
+				for (int i = 0; i < count; i++) {
+					sentences.add(Protocol.readString(buffer));
+				}
+				return new Request(type, flags, id, null, sentences, 0,
+						deadline, fields);
+			} else if (type == Protocol.PING) {
+				return new Request(type, flags, id, null, null, 0, deadline,
+						fields);
+			} else if (type == Protocol.SIMILAR) {
+				final int count = buffer.getInt();
+				if ((count <= 0) || (count > Protocol.MAX_NEIGHBORS)) {
+					throw new ProtocolException("Invalid number of neighbors "
+							+ count);
+				}
+				final String phrase = Protocol.readString(buffer);
+				return new Request(type, flags, id, phrase, null, count,
+						deadline, fields);
+			} else {
+				final String sentence = Protocol.readString(buffer);
+				return new Request(type, flags, id, sentence, null, 0,
+						deadline, fields);
+			}
+		} catch (final BufferUnderflowException e) {
+			throw new ProtocolException("Truncated request");
+		}
+	}
+
+	/**
+	 * Decode response payload.
+	 *
+	 * @param payload
+	 *            of response frame
+	 * @return decoded response
+	 * @throws ProtocolException
+	 *             if response is malformed.
+	 */
+	public static Response decodeResponse(byte[] payload)
+			throws ProtocolException {
+		try {
+			final ByteBuffer buffer = ByteBuffer.wrap(payload);
+			Protocol.checkVersion(buffer);
+			final byte status = buffer.get();
+			final byte flags = buffer.get();
+			final boolean float32 = (flags & Protocol.FLOAT32) != 0;
+			final int id = buffer.getInt();
+			final int index = buffer.getInt();
+			final String text = (flags & Protocol.TEXT) != 0 ? Protocol
+					.readString(buffer) : null;
+			if (status != Protocol.OK) {
+				return new Response(status, flags, id, index, text, null,
+						null, Protocol.readString(buffer), null);
+			} else if ((flags & Protocol.NEIGHBORS) != 0) {
+				final int count = buffer.getInt();
+				// Each neighbor takes 16 bytes at least.
+				if ((count < 0) || (count > (buffer.remaining() / 16))) {
+					throw new ProtocolException("Invalid number of neighbors "
+							+ count);
+				}
+				final List<Neighbor> neighbors = new ArrayList<Neighbor>(count);
+				for (int i = 0; i < count; i++) {
+					final int neighbor = buffer.getInt();
+					final String phrase = Protocol.readString(buffer);
+					neighbors.add(new Neighbor(neighbor, phrase, buffer
+							.getDouble()));
+				}
+				return new Response(status, flags, id, index, text, null,
+						neighbors, null, null);
+			}
+
+			final Set<Result.Field> fields = (flags & Protocol.FIELDS) != 0 ? Protocol
+					.readFields(buffer) : Result.Field.DEFAULTS;
+			final boolean strings = fields.contains(Result.Field.STRINGS);
+			final boolean nps = fields.contains(Result.Field.NP_VECTORS);
+			final boolean pps = fields.contains(Result.Field.PP_VECTOR);
+			final boolean syntactic = fields
+					.contains(Result.Field.SYNTACTIC);
+
+			final SimpleMatrix sentence = fields
+					.contains(Result.Field.SENTENCE_VECTOR) ? Protocol
+					.readVector(buffer, float32) : null;
+			final int count = buffer.getInt();
+			final LinkedList<Result> result = new LinkedList<Result>();
+			for (int i = 0; i < count; i++) {
+				final String np1 = strings ? Protocol.readString(buffer) : null;
+				final String pp = strings ? Protocol.readString(buffer) : null;
+				final String np2 = strings ? Protocol.readString(buffer) : null;
+				final SimpleMatrix np1Matx = nps ? Protocol.readVector(buffer,
+						float32) : null;
+				final SimpleMatrix ppMatx = pps ? Protocol.readVector(buffer,
+						float32) : null;
+				final SimpleMatrix np2Matx = nps ? Protocol.readVector(buffer,
+						float32) : null;
+				final SimpleMatrix score = syntactic ? Protocol.readVector(
+						buffer, float32) : null;
+				result.add(new Result(np1, pp, np2, np1Matx, ppMatx, np2Matx,
+						sentence, score));
+			}
+			return new Response(status, flags, id, index, text, result,
+					null, null, sentence);
+		} catch (final BufferUnderflowException e) {
+			throw new ProtocolException("Truncated response");
+		}
+	}
+
+	/**
+	 * Encode BATCH request frame.
+	 *
+	 * @param flags
+	 *            of request, such as {@link #FLOAT32}
+	 * @param id
+	 *            of request
+	 * @param deadline
+	 *            of request in milliseconds, or 0 for no deadline
+	 * @param fields
+	 *            of results to be sent, or null for default
+	 * @param sentences
+	 *            of request
+	 * @return frame bytes, including length
+	 */
+	public static byte[] encodeBatchRequest(byte flags, int id, int deadline,
+			Set<Result.Field> fields, List<String> sentences) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0); // length, filled later.
+			out.writeByte(Protocol.VERSION);
+			out.writeByte(Protocol.BATCH);
+			out.writeByte(Protocol.flagsOf(flags, deadline, fields));
+			out.writeInt(id);
+			if (deadline > 0) {
+				out.writeInt(deadline);
+			}
+			if (fields != null) {
+				out.writeByte(Protocol.maskOf(fields));
+			}
+			out.writeInt(sentences.size());
+			for (final String sentence : sentences) {
+				Protocol.writeString(out, sentence);
+			}
+			out.flush();
+		} catch (final IOException e) {
+			// ByteArrayOutputStream does not throw.
+			throw new IllegalStateException(e);
+		}
+		return Protocol.toFrame(bytes);
+	}
+
+	/**
+	 * Encode PING request frame.
+	 *
+	 * @param id
+	 *            of request
+	 * @return frame bytes, including length
+	 */
+	public static byte[] encodePingRequest(int id) {
+		final ByteBuffer buffer = ByteBuffer.allocate(4 + 3 + 4);
+		buffer.putInt(buffer.capacity() - 4);
+		buffer.put(Protocol.VERSION).put(Protocol.PING).put((byte) 0)
+				.putInt(id);
+		return buffer.array();
+	}
+
+	/**
+	 * Encode SIMILAR request frame.
+	 *
+	 * @param flags
+	 *            of request, {@link #FAST} or 0
+	 * @param id
+	 *            of request
+	 * @param deadline
+	 *            of request in milliseconds, or 0 for no deadline
+	 * @param phrase
+	 *            to find similar phrases of
+	 * @param k
+	 *            number of phrases to find
+	 * @return frame bytes, including length
+	 */
+	public static byte[] encodeSimilarRequest(byte flags, int id,
+			int deadline, String phrase, int k) {
+		final byte[] bytes = phrase.getBytes(Protocol.UTF8);
+		final ByteBuffer buffer = ByteBuffer.allocate(4 + 3 + 4
+				+ (deadline > 0 ? 4 : 0) + 4 + 4 + bytes.length);
+		buffer.putInt(buffer.capacity() - 4);
+		buffer.put(Protocol.VERSION).put(Protocol.SIMILAR);
+		buffer.put(Protocol.flagsOf(flags, deadline, null));
+		buffer.putInt(id);
+		if (deadline > 0) {
+			buffer.putInt(deadline);
+		}
+		buffer.putInt(k);
+		buffer.putInt(bytes.length).put(bytes);
+		return buffer.array();
+	}
+
+	/**
+	 * Encode request frame.
+	 *
+	 * @param type
+	 *            of request, {@link #NPN}, {@link #DOCUMENT},
+	 *            {@link #PARSED} or {@link #VECTOR}
+	 * @param flags
+	 *            of request, such as {@link #FLOAT32}
+	 * @param id
+	 *            of request
+	 * @param deadline
+	 *            of request in milliseconds, or 0 for no deadline
+	 * @param fields
+	 *            of results to be sent, or null for default
+	 * @param sentence
+	 *            or document of request
+	 * @return frame bytes, including length
+	 */
+	public static byte[] encodeRequest(byte type, byte flags, int id,
+			int deadline, Set<Result.Field> fields, String sentence) {
+		final byte[] bytes = sentence.getBytes(Protocol.UTF8);
+		final ByteBuffer buffer = ByteBuffer.allocate(4 + 3 + 4
+				+ (deadline > 0 ? 4 : 0) + (fields != null ? 1 : 0) + 4
+				+ bytes.length);
+		buffer.putInt(buffer.capacity() - 4);
+		buffer.put(Protocol.VERSION).put(type);
+		buffer.put(Protocol.flagsOf(flags, deadline, fields)).putInt(id);
+		if (deadline > 0) {
+			buffer.putInt(deadline);
+		}
+		if (fields != null) {
+			buffer.put(Protocol.maskOf(fields));
+		}
+		buffer.putInt(bytes.length).put(bytes);
+		return buffer.array();
+	}
+
+	/**
+	 * Encode response frame of failure or {@link #END}.
+	 *
+	 * @param status
+	 *            of response, other than {@link #OK}
+	 * @param id
+	 *            of request
+	 * @param index
+	 *            of sentence, or number of sentences for {@link #END}
+	 * @param message
+	 *            for client
+	 * @return frame bytes, including length
+	 */
+	public static byte[] encodeResponse(byte status, int id, int index,
+			String message) {
+		final byte[] bytes = String.valueOf(message).getBytes(Protocol.UTF8);
+		final ByteBuffer buffer = ByteBuffer.allocate(4 + 3 + 4 + 4 + 4
+				+ bytes.length);
+		buffer.putInt(buffer.capacity() - 4);
+		buffer.put(Protocol.VERSION).put(status).put((byte) 0).putInt(id)
+				.putInt(index);
+		buffer.putInt(bytes.length).put(bytes);
+		return buffer.array();
+	}
+
+	/**
+	 * Encode response frame of results, with every part but syntactic score
+	 * vector. The given sentence vector is sent once, ahead of the results,
+	 * even if results is empty, so that a sentence without NPN structure
+	 * still has its vector. A null vector is sent with length 0.
+	 *
+	 * @param flags
+	 *            of request, such as {@link #FLOAT32}, and {@link #FALLBACK}
+	 *            if results are of a flat tree
+	 * @param id
+	 *            of request
+	 * @param index
+	 *            of sentence
+	 * @param text
+	 *            of sentence to be sent with {@link #TEXT} flag, or null
+	 * @param sentence
+	 *            vector of the sentence, or null
+	 * @param results
+	 *            list of {@link Result} instances
+	 * @return frame bytes, including length
+	 */
+	public static byte[] encodeResponse(byte flags, int id, int index,
+			String text, SimpleMatrix sentence, List<Result> results) {
+		return Protocol.encodeResponse(flags, id, index, text, sentence,
+				results, null);
+	}
+
+	/**
+	 * Encode response frame of results, with the given fields only.
+	 *
+	 * @param flags
+	 *            of request, such as {@link #FLOAT32}, and {@link #FALLBACK}
+	 *            if results are of a flat tree
+	 * @param id
+	 *            of request
+	 * @param index
+	 *            of sentence
+	 * @param text
+	 *            of sentence to be sent with {@link #TEXT} flag, or null
+	 * @param sentence
+	 *            vector of the sentence, or null
+	 * @param results
+	 *            list of {@link Result} instances
+	 * @param fields
+	 *            of results requested with {@link #FIELDS} flag, or null for
+	 *            every part but syntactic score vector
+	 * @return frame bytes, including length
+	 */
+	public static byte[] encodeResponse(byte flags, int id, int index,
+			String text, SimpleMatrix sentence, List<Result> results,
+			Set<Result.Field> fields) {
+		final boolean float32 = (flags & Protocol.FLOAT32) != 0;
+		final Set<Result.Field> sent = fields != null ? fields
+				: Result.Field.DEFAULTS;
+		final boolean strings = sent.contains(Result.Field.STRINGS);
+		final boolean nps = sent.contains(Result.Field.NP_VECTORS);
+		final boolean pps = sent.contains(Result.Field.PP_VECTOR);
+		final boolean syntactic = sent.contains(Result.Field.SYNTACTIC);
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0); // length, filled later.
+			out.writeByte(Protocol.VERSION);
+			out.writeByte(Protocol.OK);
+			out.writeByte((flags & (Protocol.FLOAT32 | Protocol.FALLBACK))
+					| (text != null ? Protocol.TEXT : 0)
+					| (fields != null ? Protocol.FIELDS : 0));
+			out.writeInt(id);
+			out.writeInt(index);
+			if (text != null) {
+				Protocol.writeString(out, text);
+			}
+			if (fields != null) {
+				out.writeByte(Protocol.maskOf(fields));
+			}
+			if (sent.contains(Result.Field.SENTENCE_VECTOR)) {
+				Protocol.writeVector(out, sentence, float32);
+			}
+			out.writeInt(results.size());
+			for (final Result r : results) {
+				if (strings) {
+					Protocol.writeString(out, r.getNP1String());
+					Protocol.writeString(out, r.getPPString());
+					Protocol.writeString(out, r.getNP2String());
+				}
+				if (nps) {
+					Protocol.writeVector(out, r.getMatrixOfNP1(), float32);
+				}
+				if (pps) {
+					Protocol.writeVector(out, r.getMatrixOfPP(), float32);
+				}
+				if (nps) {
+					Protocol.writeVector(out, r.getMatrixOfNP2(), float32);
+				}
+				if (syntactic) {
+					Protocol.writeVector(out, r.getSyntacticVector(), float32);
+				}
+			}
+			out.flush();
+		} catch (final IOException e) {
+			// ByteArrayOutputStream does not throw.
+			throw new IllegalStateException(e);
+		}
+		return Protocol.toFrame(bytes);
+	}
+
+	/**
+	 * Encode response frame of neighbors.
+	 *
+	 * @param flags
+	 *            {@link #FALLBACK} if the phrase is encoded from a flat tree,
+	 *            or 0
+	 * @param id
+	 *            of request
+	 * @param neighbors
+	 *            list of {@link Neighbor} instances, most similar first
+	 * @return frame bytes, including length
+	 */
+	public static byte[] encodeResponse(byte flags, int id,
+			List<Neighbor> neighbors) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0); // length, filled later.
+			out.writeByte(Protocol.VERSION);
+			out.writeByte(Protocol.OK);
+			out.writeByte(Protocol.NEIGHBORS | (flags & Protocol.FALLBACK));
+			out.writeInt(id);
+			out.writeInt(0);
+			out.writeInt(neighbors.size());
+			for (final Neighbor n : neighbors) {
+				out.writeInt(n.getId());
+				Protocol.writeString(out, n.getPhrase());
+				out.writeDouble(n.getSimilarity());
+			}
+			out.flush();
+		} catch (final IOException e) {
+			// ByteArrayOutputStream does not throw.
+			throw new IllegalStateException(e);
+		}
+		return Protocol.toFrame(bytes);
+	}
+
+	/**
+	 * Flags of request header, with {@link #DEADLINE} and {@link #FIELDS}
+	 * set only if they follow.
+	 *
+	 * @param flags
+	 *            of request
+	 * @param deadline
+	 *            of request in milliseconds, or 0
+	 * @param fields
+	 *            of results, or null
+	 * @return flags to be written
+	 */
+	private static byte flagsOf(byte flags, int deadline,
+			Set<Result.Field> fields) {
+		int header = flags & ~(Protocol.DEADLINE | Protocol.FIELDS);
+		if (deadline > 0) {
+			header |= Protocol.DEADLINE;
+		}
+		if (fields != null) {
+			header |= Protocol.FIELDS;
+		}
+		return (byte) header;
+	}
+
+	/**
+	 * Returns ID of request or response, without decoding it.
+	 *
+	 * @param payload
+	 *            of request or response frame
+	 * @return id, or 0 if payload is too short.
+	 */
+	public static int getId(byte[] payload) {
+		return payload.length < 7 ? 0 : ByteBuffer.wrap(payload).getInt(3);
+	}
+
+	/**
+	 * Returns type of request, without decoding it.
+	 *
+	 * @param payload
+	 *            of request frame
+	 * @return type, or 0 if payload is too short.
+	 */
+	public static byte getType(byte[] payload) {
+		return payload.length < 2 ? 0 : payload[1];
+	}
+
+	/**
+	 * Returns name of status code.
+	 *
+	 * @param status
+	 *            code
+	 * @return name of status
+	 */
+	public static String getStatusName(byte status) {
+		if ((status >= 0) && (status < Protocol.STATUS_NAMES.length)) {
+			return Protocol.STATUS_NAMES[status];
+		} else {
+			return "STATUS_" + status;
+		}
+	}
+
+	/**
+	 * Bit mask of fields.
+	 *
+	 * @param fields
+	 *            of results
+	 * @return mask, bit i for i-th {@link Result.Field}
+	 */
+	private static byte maskOf(Set<Result.Field> fields) {
+		int mask = 0;
+		for (final Result.Field field : fields) {
+			mask |= 1 << field.ordinal();
+		}
+		return (byte) mask;
+	}
+
+	/**
+	 * Read a mask of fields.
+	 *
+	 * @param buffer
+	 *            to read
+	 * @return Set of fields
+	 * @throws ProtocolException
+	 *             if mask has unknown fields.
+	 */
+	private static Set<Result.Field> readFields(ByteBuffer buffer)
+			throws ProtocolException {
+		final int mask = buffer.get() & 0xFF;
+		final Result.Field[] values = Result.Field.values();
+		if ((mask >>> values.length) != 0) {
+			throw new ProtocolException("Invalid fields " + mask);
+		}
+
+		final Set<Result.Field> fields = EnumSet.noneOf(Result.Field.class);
+		for (final Result.Field field : values) {
+			if ((mask & (1 << field.ordinal())) != 0) {
+				fields.add(field);
+			}
+		}
+		return fields;
+	}
+
+	/**
+	 * Read a frame from stream.
+	 *
+	 * @param in
+	 *            stream to read
+	 * @return payload of frame, or null if the stream is ended or a closing
+	 *         frame is read.
+	 * @throws IOException
+	 *             when failed to read, or frame is too long.
+	 */
+	public static byte[] readFrame(DataInputStream in) throws IOException {
+		final int length;
+		try {
+			length = in.readInt();
+		} catch (final EOFException e) {
+			return null;
+		}
+
+		if ((length < 0) || (length > Protocol.MAX_FRAME)) {
+			throw new ProtocolException("Invalid frame length " + length);
+		} else if (length == 0) {
+			return null;
+		}
+
+		final byte[] payload = new byte[length];
+		in.readFully(payload);
+		return payload;
+	}
+
+	/**
+	 * Read a string.
+	 *
+	 * @param buffer
+	 *            to read
+	 * @return string
+	 * @throws ProtocolException
+	 *             if length is invalid.
+	 */
+	private static String readString(ByteBuffer buffer)
+			throws ProtocolException {
+		final int length = buffer.getInt();
+		if ((length < 0) || (length > buffer.remaining())) {
+			throw new ProtocolException("Invalid string length " + length);
+		}
+		final String string = new String(buffer.array(), buffer.arrayOffset()
+				+ buffer.position(), length, Protocol.UTF8);
+		buffer.position(buffer.position() + length);
+		return string;
+	}
+
+	/**
+	 * Read a column vector.
+	 *
+	 * @param buffer
+	 *            to read
+	 * @param float32
+	 *            whether values are float32
+	 * @return column vector, or null if length is 0.
+	 * @throws ProtocolException
+	 *             if length is invalid.
+	 */
+	private static SimpleMatrix readVector(ByteBuffer buffer, boolean float32)
+			throws ProtocolException {
+		final int length = buffer.getInt();
+		// Each value takes 4 or 8 bytes.
+		if ((length < 0)
+				|| (length > buffer.remaining() / (float32 ? 4 : 8))) {
+			throw new ProtocolException("Invalid vector length " + length);
+		} else if (length == 0) {
+			return null;
+		}
+
+		final double[] values = new double[length];
+		for (int i = 0; i < length; i++) {
+			values[i] = float32 ? buffer.getFloat() : buffer.getDouble();
+		}
+		return SimpleMatrix.wrap(DenseMatrix64F.wrap(length, 1, values));
+	}
+
+	/**
+	 * Fill length of frame written from offset 0.
+	 *
+	 * @param bytes
+	 *            frame with placeholder of length
+	 * @return frame bytes, including length
+	 */
+	private static byte[] toFrame(ByteArrayOutputStream bytes) {
+		final byte[] frame = bytes.toByteArray();
+		ByteBuffer.wrap(frame).putInt(0, frame.length - 4);
+		return frame;
+	}
+
+	/**
+	 * Write a string.
+	 *
+	 * @param out
+	 *            stream to write
+	 * @param string
+	 *            to be written
+	 * @throws IOException
+	 *             when failed to write.
+	 */
+	private static void writeString(DataOutputStream out, String string)
+			throws IOException {
+		final byte[] bytes = string.getBytes(Protocol.UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Write a vector.
+	 *
+	 * @param out
+	 *            stream to write
+	 * @param vector
+	 *            to be written, or null
+	 * @param float32
+	 *            whether values are written in float32
+	 * @throws IOException
+	 *             when failed to write.
+	 */
+	private static void writeVector(DataOutputStream out, SimpleMatrix vector,
+			boolean float32) throws IOException {
+		if (vector == null) {
+			out.writeInt(0);
+			return;
+		}
+
+		final int length = vector.getNumElements();
+		final double[] values = vector.getMatrix().getData();
+		out.writeInt(length);
+		for (int i = 0; i < length; i++) {
+			if (float32) {
+				out.writeFloat((float) values[i]);
+			} else {
+				out.writeDouble(values[i]);
+			}
+		}
+	}
+
+	/**
+	 * Utility class.
+	 */
+	private Protocol() {
+	}
+}
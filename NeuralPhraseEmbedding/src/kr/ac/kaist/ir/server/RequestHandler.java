@@ -0,0 +1,491 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.server;
+
+import java.net.ProtocolException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import kr.ac.kaist.ir.index.Neighbor;
+import kr.ac.kaist.ir.index.PhraseIndex;
+import kr.ac.kaist.ir.urae.NPNStructure;
+import kr.ac.kaist.ir.urae.ParseLimitException;
+import kr.ac.kaist.ir.urae.Result;
+import kr.ac.kaist.ir.urae.StanfordWrapper;
+import kr.ac.kaist.ir.urae.Trace;
+
+import org.ejml.simple.SimpleMatrix;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * <p>
+ * Processing of requests, shared by {@link ParserServer} and
+ * {@link NioParserServer}. An instance can be shared by many threads.
+ * </p>
+ * <p>
+ * Sentences of BATCH and DOCUMENT requests are fanned out to the executor,
+ * and each response is sent as soon as its sentence is processed. When the
+ * executor is full, the sentence is processed on the calling thread, which
+ * also slows down splitting of the document.
+ * </p>
+ * <p>
+ * SIMILAR requests are answered from a {@link PhraseIndex}, if the server has
+ * one. Phrases of SIMILAR and VECTOR requests with {@link Protocol#FAST} flag
+ * are encoded without parsing, by
+ * {@link StanfordWrapper#getFastPhraseVectorOf(String)}.
+ * </p>
+ * <p>
+ * Only the fields of results requested with {@link Protocol#FIELDS} flag are
+ * computed and sent; asking only for strings skips encoding of the sentence.
+ * </p>
+ * <p>
+ * A request is answered within its deadline: the smaller of
+ * {@value #DEADLINE_PROPERTY} and the deadline sent by the client, from the
+ * arrival of the request. Sentences which are not parsed in time, or exceed
+ * the limits of {@link StanfordWrapper}, are answered with results of a flat
+ * tree and {@link Protocol#FALLBACK} flag, or with {@link Protocol#TIMEOUT}
+ * and {@link Protocol#TOO_LONG} status if {@value #FALLBACK_PROPERTY} is
+ * false.
+ * </p>
+ * <p>
+ * Latency of each request and of each stage of its sentences is recorded in
+ * {@link ServerMetrics}.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public class RequestHandler {
+	/**
+	 * Destination of response frames. Frames of a request may be sent from
+	 * many threads concurrently; the last one is sent after all the others.
+	 */
+	public interface Sink {
+		/**
+		 * Send a response frame.
+		 *
+		 * @param frame
+		 *            bytes of response frame, including length
+		 * @param last
+		 *            true if this is the last frame of the request
+		 */
+		void send(byte[] frame, boolean last);
+	}
+
+	/**
+	 * System property for deadline of every request, in milliseconds. No
+	 * deadline other than the one sent by client, if this is not set or 0.
+	 **/
+	public static final String DEADLINE_PROPERTY = "npe.server.deadline";
+	/**
+	 * System property for whether sentences not parsed within the limits are
+	 * answered with results of a flat tree. Default is true; if false, they
+	 * are answered with TIMEOUT or TOO_LONG status.
+	 **/
+	public static final String FALLBACK_PROPERTY = "npe.server.fallback";
+
+	/**
+	 * Status of response for a sentence exceeding the limits.
+	 *
+	 * @param e
+	 *            exception of the limit
+	 * @return {@link Protocol#TOO_LONG} or {@link Protocol#TIMEOUT}
+	 */
+	private static byte statusOf(ParseLimitException e) {
+		return e.getReason() == ParseLimitException.Reason.TOO_LONG ? Protocol.TOO_LONG
+				: Protocol.TIMEOUT;
+	}
+
+	/** logger **/
+	private final Logger logger = Logger.getAnonymousLogger();
+	/** StanfordWrapper instance **/
+	private final StanfordWrapper instance;
+	/** Executor for sentences of BATCH and DOCUMENT requests **/
+	private final Executor executor;
+	/** Index of phrases for SIMILAR requests, or null **/
+	private final PhraseIndex index;
+	/** Metrics of requests **/
+	private final ServerMetrics metrics;
+	/** Deadline of every request in milliseconds, or 0 **/
+	private final long deadline;
+	/** Whether to answer with a flat tree when a limit is exceeded **/
+	private final boolean fallback;
+
+	/**
+	 * Constructor, without phrase index.
+	 *
+	 * @param instance
+	 *            StanfordWrapper to process sentences
+	 * @param executor
+	 *            to process sentences of BATCH and DOCUMENT requests
+	 */
+	public RequestHandler(StanfordWrapper instance, Executor executor) {
+		this(instance, executor, null);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param instance
+	 *            StanfordWrapper to process sentences
+	 * @param executor
+	 *            to process sentences of BATCH and DOCUMENT requests
+	 * @param index
+	 *            of phrases for SIMILAR requests, or null
+	 */
+	public RequestHandler(StanfordWrapper instance, Executor executor,
+			PhraseIndex index) {
+		this.instance = instance;
+		this.executor = executor;
+		this.index = index;
+		this.metrics = new ServerMetrics(instance, executor);
+		this.deadline = Math.max(0,
+				Long.getLong(RequestHandler.DEADLINE_PROPERTY, 0));
+		this.fallback = Boolean.parseBoolean(System.getProperty(
+				RequestHandler.FALLBACK_PROPERTY, "true"));
+	}
+
+	/**
+	 * Metrics of requests handled by this.
+	 *
+	 * @return ServerMetrics instance
+	 */
+	public ServerMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * Process a request frame, and send its response frames. Failures are
+	 * reported in the response. This returns before every response of BATCH
+	 * or DOCUMENT request is sent.
+	 *
+	 * @param payload
+	 *            of request frame
+	 * @param sink
+	 *            to send response frames
+	 */
+	public void handle(byte[] payload, Sink sink) {
+		this.handle(payload, sink, System.nanoTime());
+	}
+
+	/**
+	 * Process a request frame which arrived at the given time, and send its
+	 * response frames. Deadline of the request counts from the arrival, so
+	 * that time waited in a queue is included.
+	 *
+	 * @param payload
+	 *            of request frame
+	 * @param sink
+	 *            to send response frames
+	 * @param start
+	 *            arrival of request, from System.nanoTime()
+	 */
+	public void handle(byte[] payload, Sink sink, long start) {
+		final Protocol.Request request;
+		try {
+			request = Protocol.decodeRequest(payload);
+		} catch (final ProtocolException e) {
+			this.metrics.recordResponse(Protocol.BAD_REQUEST);
+			sink.send(Protocol.encodeResponse(Protocol.BAD_REQUEST,
+					Protocol.getId(payload), 0, e.getMessage()), true);
+			return;
+		}
+
+		switch (request.getType()) {
+		case Protocol.NPN:
+		case Protocol.PARSED:
+			sink.send(this.process(request, start, 0, request.getSentence(),
+					null), true);
+			this.metrics.recordRequest(start);
+			break;
+		case Protocol.BATCH:
+			this.fanOut(request, request.getSentences(), false, sink, start);
+			break;
+		case Protocol.DOCUMENT:
+			this.fanOut(request,
+					this.instance.splitSentences(request.getSentence()), true,
+					sink, start);
+			break;
+		case Protocol.PING:
+			sink.send(Protocol.encodeResponse(request.getFlags(),
+					request.getId(), 0, null, null,
+					Collections.<Result> emptyList()), true);
+			break;
+		case Protocol.SIMILAR:
+		case Protocol.VECTOR:
+			sink.send(this.phrase(request, start), true);
+			this.metrics.recordRequest(start);
+			break;
+		default:
+			this.metrics.recordResponse(Protocol.BAD_REQUEST);
+			sink.send(Protocol.encodeResponse(Protocol.BAD_REQUEST,
+					request.getId(), 0, "Unsupported request type "
+							+ request.getType()), true);
+		}
+	}
+
+	/**
+	 * Process sentences in parallel. The last finished one sends
+	 * {@link Protocol#END} response. Nothing waits for another, so that
+	 * workers of the executor cannot be blocked by each other.
+	 *
+	 * @param request
+	 *            to be processed
+	 * @param sentences
+	 *            of request
+	 * @param text
+	 *            whether sentences are sent in responses
+	 * @param sink
+	 *            to send response frames
+	 * @param start
+	 *            time of request, from System.nanoTime()
+	 */
+	private void fanOut(final Protocol.Request request,
+			Iterable<String> sentences, final boolean text, final Sink sink,
+			final long start) {
+		// One for splitting, and one for each sentence.
+		final AtomicInteger remaining = new AtomicInteger(1);
+		final AtomicInteger count = new AtomicInteger();
+		final Runnable finish = new Runnable() {
+			@Override
+			public void run() {
+				if (remaining.decrementAndGet() == 0) {
+					sink.send(Protocol.encodeResponse(Protocol.END,
+							request.getId(), count.get(), ""), true);
+					RequestHandler.this.metrics.recordRequest(start);
+				}
+			}
+		};
+
+		int index = 0;
+		Iterator<String> iterator = null;
+		while (true) {
+			// Document is split lazily, so splitting may fail at any
+			// sentence.
+			final String sentence;
+			try {
+				if (iterator == null) {
+					iterator = sentences.iterator();
+				}
+				if (!iterator.hasNext()) {
+					break;
+				}
+				sentence = iterator.next();
+			} catch (final RuntimeException e) {
+				this.logger.log(Level.WARNING, "ERROR in splitting document",
+						e);
+				this.metrics.recordResponse(Protocol.ERROR);
+				sink.send(Protocol.encodeResponse(Protocol.ERROR,
+						request.getId(), index, String.valueOf(e)), false);
+				break;
+			}
+
+			final int i = index++;
+			remaining.incrementAndGet();
+			final long queued = System.nanoTime();
+			final Runnable task = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						RequestHandler.this.metrics.recordQueue(System
+								.nanoTime() - queued);
+						sink.send(RequestHandler.this.process(request, start,
+								i, sentence, text ? sentence : null), false);
+					} catch (final RuntimeException e) {
+						RequestHandler.this.logger.log(Level.WARNING,
+								"ERROR in sending response", e);
+					} finally {
+						// END is sent after every sentence, even if one fails.
+						finish.run();
+					}
+				}
+			};
+
+			try {
+				this.executor.execute(task);
+			} catch (final RejectedExecutionException e) {
+				// Executor is full. Process on this thread.
+				task.run();
+			}
+		}
+
+		count.set(index);
+		finish.run();
+	}
+
+	/**
+	 * Find NPN structures of a sentence. If the sentence exceeds the limits,
+	 * NPN structures are found in its flat tree, or the limit is reported.
+	 *
+	 * @param request
+	 *            of the sentence
+	 * @param start
+	 *            arrival of request, from System.nanoTime()
+	 * @param index
+	 *            of the sentence
+	 * @param sentence
+	 *            to be processed, or tree of PARSED request
+	 * @param text
+	 *            to be sent with the response, or null
+	 * @return response frame bytes, including length
+	 */
+	private byte[] process(Protocol.Request request, long start, int index,
+			String sentence, String text) {
+		final Trace trace = Trace.begin();
+		try {
+			byte flags = request.getFlags();
+			final Set<Result.Field> fields = request.getFields() != null ? request
+					.getFields() : Result.Field.DEFAULTS;
+			NPNStructure result;
+			if (request.getType() == Protocol.PARSED) {
+				// Tree is given; skip the parser.
+				result = this.instance.getNPNStructureOf(
+						this.instance.readTree(sentence), fields);
+			} else {
+				// Parse and find NPN structures. Repeated sentences are served
+				// from the sentence cache, if enabled.
+				try {
+					result = this.instance.getNPNStructureOf(sentence,
+							this.timeLeft(request, start), fields);
+				} catch (final ParseLimitException e) {
+					if (!this.fallback) {
+						this.metrics.recordResponse(RequestHandler.statusOf(e));
+						return Protocol.encodeResponse(
+								RequestHandler.statusOf(e), request.getId(),
+								index, e.getMessage());
+					}
+					result = this.instance.getNPNStructureOf(
+							e.getFallbackTree(), fields);
+					flags |= Protocol.FALLBACK;
+					this.metrics.recordFallback();
+				}
+			}
+
+			final long serialize = Trace.now();
+			// Sentence vector is sent even if there is no NPN structure.
+			final byte[] frame = Protocol.encodeResponse(flags,
+					request.getId(), index, text, result.getMatrixOfSentence(),
+					result.getResults(), request.getFields());
+			Trace.record(Trace.Stage.SERIALIZE, serialize);
+			this.metrics.recordResponse(Protocol.OK);
+			return frame;
+		} catch (final Throwable e) {
+			// Errors as well, so that the request is always answered.
+			this.logger.log(Level.WARNING, "ERROR with sentence : " + sentence,
+					e);
+			this.metrics.recordResponse(Protocol.ERROR);
+			return Protocol.encodeResponse(Protocol.ERROR, request.getId(),
+					index, String.valueOf(e));
+		} finally {
+			trace.end();
+			this.metrics.recordSentence(trace);
+		}
+	}
+
+	/**
+	 * Encode the phrase of VECTOR or SIMILAR request, and answer its vector
+	 * or phrases in the index similar to it.
+	 *
+	 * @param request
+	 *            VECTOR or SIMILAR request
+	 * @param start
+	 *            arrival of request, from System.nanoTime()
+	 * @return response frame bytes, including length
+	 */
+	private byte[] phrase(Protocol.Request request, long start) {
+		final boolean similar = request.getType() == Protocol.SIMILAR;
+		if (similar && (this.index == null)) {
+			this.metrics.recordResponse(Protocol.BAD_REQUEST);
+			return Protocol.encodeResponse(Protocol.BAD_REQUEST,
+					request.getId(), 0, "No phrase index on this server");
+		}
+
+		final Trace trace = Trace.begin();
+		try {
+			byte flags = request.getFlags();
+			Tree tree;
+			if ((flags & Protocol.FAST) != 0) {
+				// Right-branching tree of words; skip the parser.
+				tree = this.instance.getFlatTree(request.getSentence());
+			} else {
+				try {
+					tree = this.instance.parseTree(request.getSentence(),
+							this.timeLeft(request, start));
+				} catch (final ParseLimitException e) {
+					if (!this.fallback) {
+						this.metrics.recordResponse(RequestHandler.statusOf(e));
+						return Protocol.encodeResponse(
+								RequestHandler.statusOf(e), request.getId(), 0,
+								e.getMessage());
+					}
+					tree = e.getFallbackTree();
+					flags |= Protocol.FALLBACK;
+					this.metrics.recordFallback();
+				}
+			}
+			final SimpleMatrix vector = this.instance.getPhraseVectorOf(tree);
+
+			final byte[] frame;
+			if (similar) {
+				final List<Neighbor> neighbors = this.index.search(vector,
+						request.getCount());
+				final long serialize = Trace.now();
+				frame = Protocol.encodeResponse(flags, request.getId(),
+						neighbors);
+				Trace.record(Trace.Stage.SERIALIZE, serialize);
+			} else {
+				final long serialize = Trace.now();
+				frame = Protocol.encodeResponse(flags, request.getId(), 0,
+						null, vector, Collections.<Result> emptyList());
+				Trace.record(Trace.Stage.SERIALIZE, serialize);
+			}
+			this.metrics.recordResponse(Protocol.OK);
+			return frame;
+		} catch (final Throwable e) {
+			// Errors as well, so that the request is always answered.
+			this.logger.log(Level.WARNING,
+					"ERROR with phrase : " + request.getSentence(), e);
+			this.metrics.recordResponse(Protocol.ERROR);
+			return Protocol.encodeResponse(Protocol.ERROR, request.getId(), 0,
+					String.valueOf(e));
+		} finally {
+			trace.end();
+			this.metrics.recordSentence(trace);
+		}
+	}
+
+	/**
+	 * Time left for parsing a sentence of the request.
+	 *
+	 * @param request
+	 *            of the sentence
+	 * @param start
+	 *            arrival of request, from System.nanoTime()
+	 * @return milliseconds left, 0 for no deadline, or negative if the
+	 *         deadline is passed.
+	 */
+	private long timeLeft(Protocol.Request request, long start) {
+		long limit = this.deadline;
+		final int requested = request.getDeadline();
+		if ((requested > 0) && ((limit == 0) || (requested < limit))) {
+			limit = requested;
+		}
+		if (limit == 0) {
+			return 0;
+		}
+
+		final long left = limit
+				- TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		return left > 0 ? left : -1;
+	}
+}
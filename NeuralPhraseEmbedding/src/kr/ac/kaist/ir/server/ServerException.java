@@ -0,0 +1,41 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.server;
+
+import java.io.IOException;
+
+/**
+ * Exception for responses that server could not process.
+ *
+ * @author 김부근
+ *
+ */
+public class ServerException extends IOException {
+	/** Serial ID **/
+	private static final long serialVersionUID = 3816457098913254725L;
+	/** Status code of the response **/
+	private final byte status;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param status
+	 *            code of the response. See {@link Protocol}.
+	 * @param message
+	 *            from server
+	 */
+	public ServerException(byte status, String message) {
+		super(Protocol.getStatusName(status) + ": " + message);
+		this.status = status;
+	}
+
+	/**
+	 * Returns status code of the response.
+	 *
+	 * @return status code. See {@link Protocol}.
+	 */
+	public byte getStatus() {
+		return this.status;
+	}
+}
@@ -0,0 +1,518 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import kr.ac.kaist.ir.urae.BoundedCache;
+import kr.ac.kaist.ir.urae.StanfordWrapper;
+import kr.ac.kaist.ir.urae.Trace;
+
+/**
+ * <p>
+ * Operational metrics of a server: latency histograms of requests and of
+ * each stage of sentences, connections, queue depth, cache hit rates and
+ * throughput.
+ * </p>
+ * <p>
+ * Recording is lock-free, and costs a few atomic increments per sentence.
+ * Metrics are read as a snapshot of name-value pairs, which is exposed as
+ * attributes of an MBean by {@link #register(String, int)}, and as plain text
+ * on a side port by {@link #serve(int)}:
+ * </p>
+ *
+ * <pre>
+ * curl http://localhost:59801/
+ * </pre>
+ * <p>
+ * Latencies are in milliseconds, since the server started. Throughput is
+ * sentences per second over the last {@value #WINDOW} seconds.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public final class ServerMetrics implements DynamicMBean {
+	/** System property for port of stats endpoint. Not served if not set. **/
+	public static final String STATS_PORT_PROPERTY = "npe.stats.port";
+
+	/** Seconds of throughput window **/
+	private static final int WINDOW = 10;
+	/** Slots of throughput; the window and the current second **/
+	private static final int SLOTS = ServerMetrics.WINDOW + 1;
+	/**
+	 * Names of counted statuses, indexed by status code; null if not
+	 * counted
+	 **/
+	private static final String[] STATUSES = { "ok", "rejected", "error",
+			"bad_request", null, "timeout", "too_long" };
+
+	/**
+	 * Put metrics of a histogram into snapshot.
+	 *
+	 * @param snapshot
+	 *            to be filled
+	 * @param prefix
+	 *            of names
+	 * @param histogram
+	 *            to be read
+	 */
+	private static void put(Map<String, Number> snapshot, String prefix,
+			LatencyHistogram histogram) {
+		snapshot.put(prefix + "_count", histogram.getCount());
+		snapshot.put(prefix + "_mean_ms", histogram.getMeanMillis());
+		snapshot.put(prefix + "_p50_ms", histogram.getPercentileMillis(50));
+		snapshot.put(prefix + "_p90_ms", histogram.getPercentileMillis(90));
+		snapshot.put(prefix + "_p99_ms", histogram.getPercentileMillis(99));
+		snapshot.put(prefix + "_max_ms", histogram.getMaxMillis());
+	}
+
+	/** logger **/
+	private final Logger logger = Logger.getAnonymousLogger();
+	/** StanfordWrapper of server, for caches and parser pool **/
+	private final StanfordWrapper instance;
+	/** Executor of server, for queue depth; null if unknown **/
+	private final ThreadPoolExecutor executor;
+	/** Start time of server **/
+	private final long started = System.currentTimeMillis();
+	/** Latency of requests, until the last response **/
+	private final LatencyHistogram requests = new LatencyHistogram();
+	/** Time waited in the queue, until a worker takes it **/
+	private final LatencyHistogram queue = new LatencyHistogram();
+	/** Latency of each stage of sentences **/
+	private final EnumMap<Trace.Stage, LatencyHistogram> stages = new EnumMap<Trace.Stage, LatencyHistogram>(
+			Trace.Stage.class);
+	/** Open connections **/
+	private final AtomicInteger connections = new AtomicInteger();
+	/** Accepted connections **/
+	private final LongAdder accepted = new LongAdder();
+	/** Responses by status **/
+	private final AtomicLongArray statuses = new AtomicLongArray(
+			ServerMetrics.STATUSES.length);
+	/** Sentences answered with results of a flat tree **/
+	private final LongAdder fallbacks = new LongAdder();
+	/** Processed sentences **/
+	private final LongAdder sentences = new LongAdder();
+	/** Sentences of each second, in slots **/
+	private final AtomicLongArray counts = new AtomicLongArray(
+			ServerMetrics.SLOTS);
+	/** Second of each slot **/
+	private final AtomicLongArray seconds = new AtomicLongArray(
+			ServerMetrics.SLOTS);
+	/** Registered name of MBean, or null **/
+	private volatile ObjectName name;
+	/** Socket of stats endpoint, or null **/
+	private volatile ServerSocket endpoint;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param instance
+	 *            StanfordWrapper of server
+	 * @param executor
+	 *            of server; queue depth is reported if this is a
+	 *            ThreadPoolExecutor.
+	 */
+	ServerMetrics(StanfordWrapper instance, Executor executor) {
+		this.instance = instance;
+		this.executor = executor instanceof ThreadPoolExecutor ? (ThreadPoolExecutor) executor
+				: null;
+		for (final Trace.Stage stage : Trace.Stage.values()) {
+			this.stages.put(stage, new LatencyHistogram());
+		}
+	}
+
+	/**
+	 * Unregister MBean, and stop stats endpoint.
+	 */
+	public void close() {
+		final ObjectName registered = this.name;
+		if (registered != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+						registered);
+			} catch (final JMException e) {
+				this.logger.log(Level.FINE, "ERROR in unregister", e);
+			}
+			this.name = null;
+		}
+
+		final ServerSocket socket = this.endpoint;
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (final IOException e) {
+				this.logger.log(Level.FINE, "ERROR in close", e);
+			}
+			this.endpoint = null;
+		}
+	}
+
+	/**
+	 * Count a closed connection.
+	 */
+	void connectionClosed() {
+		this.connections.decrementAndGet();
+	}
+
+	/**
+	 * Count an accepted connection.
+	 */
+	void connectionOpened() {
+		this.connections.incrementAndGet();
+		this.accepted.increment();
+	}
+
+	/**
+	 * @see javax.management.DynamicMBean#getAttribute(java.lang.String)
+	 */
+	@Override
+	public Object getAttribute(String attribute)
+			throws AttributeNotFoundException {
+		final Number value = this.snapshot().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	/**
+	 * @see javax.management.DynamicMBean#getAttributes(java.lang.String[])
+	 */
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		final Map<String, Number> snapshot = this.snapshot();
+		final AttributeList list = new AttributeList();
+		for (final String attribute : attributes) {
+			if (snapshot.containsKey(attribute)) {
+				list.add(new Attribute(attribute, snapshot.get(attribute)));
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * @see javax.management.DynamicMBean#getMBeanInfo()
+	 */
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		final Map<String, Number> snapshot = this.snapshot();
+		final MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot
+				.size()];
+		int i = 0;
+		for (final Map.Entry<String, Number> entry : snapshot.entrySet()) {
+			attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry
+					.getValue().getClass().getName(), entry.getKey(), true,
+					false, false);
+		}
+		return new MBeanInfo(ServerMetrics.class.getName(),
+				"Metrics of parser server", attributes, null, null, null);
+	}
+
+	/**
+	 * Sentences per second, over the last {@value #WINDOW} seconds.
+	 *
+	 * @return throughput
+	 */
+	public double getSentencesPerSecond() {
+		final long now = System.currentTimeMillis() / 1000;
+		long total = 0;
+		for (long second = now - ServerMetrics.WINDOW; second < now; second++) {
+			final int slot = (int) (second % ServerMetrics.SLOTS);
+			if (this.seconds.get(slot) == second) {
+				total += this.counts.get(slot);
+			}
+		}
+		return (double) total / ServerMetrics.WINDOW;
+	}
+
+	/**
+	 * Not supported.
+	 *
+	 * @see javax.management.DynamicMBean#invoke(java.lang.String,
+	 *      java.lang.Object[], java.lang.String[])
+	 */
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature)
+			throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	/**
+	 * Count a sentence answered with results of a flat tree, as it was not
+	 * parsed within the limits.
+	 */
+	void recordFallback() {
+		this.fallbacks.increment();
+	}
+
+	/**
+	 * Record time waited in the queue.
+	 *
+	 * @param nanos
+	 *            waited
+	 */
+	void recordQueue(long nanos) {
+		this.queue.record(nanos);
+	}
+
+	/**
+	 * Record latency of a request, until its last response.
+	 *
+	 * @param start
+	 *            time of request, from System.nanoTime()
+	 */
+	void recordRequest(long start) {
+		this.requests.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Count a response of a sentence or request.
+	 *
+	 * @param status
+	 *            of response
+	 */
+	void recordResponse(byte status) {
+		if ((status >= 0) && (status < ServerMetrics.STATUSES.length)) {
+			this.statuses.incrementAndGet(status);
+		}
+	}
+
+	/**
+	 * Record stages of a processed sentence.
+	 *
+	 * @param trace
+	 *            of the sentence
+	 */
+	void recordSentence(Trace trace) {
+		for (final Map.Entry<Trace.Stage, LatencyHistogram> entry : this.stages
+				.entrySet()) {
+			if (trace.has(entry.getKey())) {
+				entry.getValue().record(trace.getNanos(entry.getKey()));
+			}
+		}
+		this.sentences.increment();
+
+		// Counts are approximate when a slot is reused by many threads.
+		final long second = System.currentTimeMillis() / 1000;
+		final int slot = (int) (second % ServerMetrics.SLOTS);
+		final long stamp = this.seconds.get(slot);
+		if ((stamp != second) && this.seconds.compareAndSet(slot, stamp, second)) {
+			this.counts.set(slot, 0);
+		}
+		this.counts.incrementAndGet(slot);
+	}
+
+	/**
+	 * Register as an MBean of the platform, named
+	 * <tt>kr.ac.kaist.ir:type=[TYPE],port=[PORT]</tt>. Failure is logged.
+	 *
+	 * @param type
+	 *            of server
+	 * @param port
+	 *            of server
+	 */
+	public void register(String type, int port) {
+		try {
+			final ObjectName objectName = new ObjectName("kr.ac.kaist.ir:type="
+					+ type + ",port=" + port);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					objectName);
+			this.name = objectName;
+		} catch (final JMException e) {
+			this.logger.log(Level.WARNING, "Cannot register MBean", e);
+		}
+	}
+
+	/**
+	 * Serve metrics as plain text on given port, in a daemon thread. Each
+	 * connection receives the snapshot in an HTTP response, so that it can be
+	 * read by curl or a browser.
+	 *
+	 * @param port
+	 *            to listen. 0 for any free port.
+	 * @return bound port
+	 * @throws IOException
+	 *             when failed to bind.
+	 */
+	public int serve(int port) throws IOException {
+		final ServerSocket socket = new ServerSocket(port);
+		this.endpoint = socket;
+
+		final Thread thread = new Thread("ServerMetrics-"
+				+ socket.getLocalPort()) {
+			@Override
+			public void run() {
+				while (!socket.isClosed()) {
+					try {
+						ServerMetrics.this.respond(socket.accept());
+					} catch (final IOException e) {
+						if (!socket.isClosed()) {
+							ServerMetrics.this.logger.log(Level.FINE,
+									"ERROR in stats endpoint", e);
+						}
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		this.logger.info("Stats served on PORT " + socket.getLocalPort());
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Answer a connection of stats endpoint.
+	 *
+	 * @param client
+	 *            connection
+	 * @throws IOException
+	 *             when failed to write.
+	 */
+	private void respond(Socket client) throws IOException {
+		try {
+			// Read request header, if any, so that closing does not reset it.
+			client.setSoTimeout(1000);
+			final BufferedReader in = new BufferedReader(new InputStreamReader(
+					client.getInputStream(), StandardCharsets.US_ASCII));
+			try {
+				String line;
+				while ((line = in.readLine()) != null && !line.isEmpty()) {
+					continue;
+				}
+			} catch (final SocketTimeoutException e) {
+				// Plain connection without request.
+			}
+
+			final OutputStream out = client.getOutputStream();
+			out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain; charset=UTF-8\r\n\r\n" + this)
+					.getBytes(StandardCharsets.UTF_8));
+			out.flush();
+		} finally {
+			client.close();
+		}
+	}
+
+	/**
+	 * Not supported; every attribute is read-only.
+	 *
+	 * @see javax.management.DynamicMBean#setAttribute(javax.management.Attribute)
+	 */
+	@Override
+	public void setAttribute(Attribute attribute)
+			throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Read-only : "
+				+ attribute.getName());
+	}
+
+	/**
+	 * Not supported; every attribute is read-only.
+	 *
+	 * @see javax.management.DynamicMBean#setAttributes(javax.management.AttributeList)
+	 */
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	/**
+	 * Read every metric.
+	 *
+	 * @return Map of metric names and values, in a fixed order.
+	 */
+	public Map<String, Number> snapshot() {
+		final Map<String, Number> snapshot = new LinkedHashMap<String, Number>();
+		snapshot.put("uptime_seconds",
+				(System.currentTimeMillis() - this.started) / 1000);
+		snapshot.put("connections", this.connections.get());
+		snapshot.put("connections_accepted", this.accepted.sum());
+		for (int i = 0; i < ServerMetrics.STATUSES.length; i++) {
+			if (ServerMetrics.STATUSES[i] != null) {
+				snapshot.put("responses_" + ServerMetrics.STATUSES[i],
+						this.statuses.get(i));
+			}
+		}
+		snapshot.put("responses_fallback", this.fallbacks.sum());
+		snapshot.put("sentences", this.sentences.sum());
+		snapshot.put("sentences_per_second", this.getSentencesPerSecond());
+
+		if (this.executor != null) {
+			snapshot.put("queue_depth", this.executor.getQueue().size());
+			snapshot.put("workers_active", this.executor.getActiveCount());
+		}
+		snapshot.put("parser_pool_utilization", this.instance.getParserPool()
+				.getUtilization());
+		snapshot.put("parser_pool_wait_ms", this.instance.getParserPool()
+				.getAverageWaitMillis());
+		final BoundedCache<?, ?> sentenceCache = this.instance
+				.getSentenceCache();
+		if (sentenceCache != null) {
+			snapshot.put("sentence_cache_hit_rate", sentenceCache.getHitRate());
+		}
+		final BoundedCache<?, ?> subtreeCache = this.instance.getSubtreeCache();
+		if (subtreeCache != null) {
+			snapshot.put("subtree_cache_hit_rate", subtreeCache.getHitRate());
+		}
+
+		ServerMetrics.put(snapshot, "latency_request", this.requests);
+		ServerMetrics.put(snapshot, "latency_queue", this.queue);
+		for (final Map.Entry<Trace.Stage, LatencyHistogram> entry : this.stages
+				.entrySet()) {
+			ServerMetrics.put(snapshot, "latency_"
+					+ entry.getKey().name().toLowerCase(Locale.ENGLISH),
+					entry.getValue());
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Every metric in plain text, a name and its value per line.
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder text = new StringBuilder();
+		for (final Map.Entry<String, Number> entry : this.snapshot().entrySet()) {
+			final Number value = entry.getValue();
+			text.append(entry.getKey()).append(' ');
+			if (value instanceof Double) {
+				text.append(String.format(Locale.ENGLISH, "%.3f", value));
+			} else {
+				text.append(value);
+			}
+			text.append('\n');
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kr.ac.kaist.ir.urae.Parameters;
+import kr.ac.kaist.ir.urae.StanfordWrapper;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * <p>
+ * Stress test for singletons and word lookups under concurrent access.
+ * </p>
+ * <p>
+ * Many threads start at the same moment, get singleton instances, and look up
+ * every word of the given file repeatedly. Each lookup is compared with the
+ * result computed by a single thread beforehand. Any mismatch, exception, or
+ * different singleton instance is reported as a failure.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public class ConcurrencyTester {
+	/**
+	 * Main method for run.
+	 *
+	 * @param args
+	 *            from the command line.
+	 */
+	public static void main(String[] args) {
+		if (args.length > 0) {
+			try {
+				final int threads = args.length > 1 ? Integer.parseInt(args[1])
+						: Runtime.getRuntime().availableProcessors() * 4;
+				final int rounds = args.length > 2 ? Integer.parseInt(args[2])
+						: 100;
+
+				// Collect words of the file.
+				final List<String> words = new ArrayList<String>();
+				final Scanner scan = new Scanner(new File(args[0]));
+				while (scan.hasNext()) {
+					words.add(scan.next());
+				}
+				scan.close();
+
+				final CountDownLatch start = new CountDownLatch(1);
+				final CountDownLatch finish = new CountDownLatch(threads);
+				final AtomicInteger failures = new AtomicInteger();
+				final Parameters[] params = new Parameters[threads];
+				final StanfordWrapper[] wrappers = new StanfordWrapper[threads];
+
+				// Initialization of singletons is raced by every thread.
+				for (int t = 0; t < threads; t++) {
+					final int id = t;
+					new Thread() {
+						@Override
+						public void run() {
+							try {
+								start.await();
+								params[id] = Parameters.getInstance();
+								wrappers[id] = StanfordWrapper.getInstance();
+							} catch (final Throwable e) {
+								e.printStackTrace();
+								failures.incrementAndGet();
+							} finally {
+								finish.countDown();
+							}
+						}
+					}.start();
+				}
+				start.countDown();
+				finish.await();
+
+				for (int t = 1; t < threads; t++) {
+					if (params[t] != params[0] || wrappers[t] != wrappers[0]) {
+						System.out.println("Singleton is constructed twice!");
+						failures.incrementAndGet();
+					}
+				}
+
+				// Compute expected vectors with single thread.
+				final Parameters instance = Parameters.getInstance();
+				final SimpleMatrix[] expected = new SimpleMatrix[words.size()];
+				for (int i = 0; i < expected.length; i++) {
+					expected[i] = instance.getWordVectorOf(words.get(i));
+				}
+
+				// Hammer word lookups.
+				final CountDownLatch go = new CountDownLatch(1);
+				final CountDownLatch done = new CountDownLatch(threads);
+				final long begin = System.nanoTime();
+				for (int t = 0; t < threads; t++) {
+					final int offset = t;
+					new Thread() {
+						@Override
+						public void run() {
+							try {
+								go.await();
+								for (int r = 0; r < rounds; r++) {
+									for (int i = 0; i < expected.length; i++) {
+										// Visit words in different order per
+										// thread.
+										final int idx = (i + offset) % expected.length;
+										final SimpleMatrix actual = instance
+												.getWordVectorOf(words.get(idx));
+										if (actual.minus(expected[idx])
+												.elementMaxAbs() != 0) {
+											failures.incrementAndGet();
+										}
+									}
+								}
+							} catch (final Throwable e) {
+								e.printStackTrace();
+								failures.incrementAndGet();
+							} finally {
+								done.countDown();
+							}
+						}
+					}.start();
+				}
+				go.countDown();
+				done.await();
+				final long elapsed = System.nanoTime() - begin;
+
+				final long lookups = (long) threads * rounds * expected.length;
+				System.out.println(String.format(
+						"%d threads, %d lookups, %.1f ms, %d failures",
+						threads, lookups, elapsed / 1e6, failures.get()));
+			} catch (final Exception e) {
+				e.printStackTrace();
+			}
+		} else {
+			System.out
+					.println("USAGE: java -cp [JAR FILE] kr.ac.kaist.ir.test.ConcurrencyTester [PHRASES FILE] ([THREADS] [ROUNDS])");
+		}
+	}
+}
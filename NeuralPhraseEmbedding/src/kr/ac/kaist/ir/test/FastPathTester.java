@@ -0,0 +1,176 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+
+import kr.ac.kaist.ir.urae.StanfordWrapper;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * <p>
+ * Comparison of fast path, {@link StanfordWrapper#getFastPhraseVectorOf(String)}
+ * , with phrase vectors of the full parse.
+ * </p>
+ * <p>
+ * Each phrase is encoded both ways, and cosine similarity of the two vectors
+ * and time of each way are reported. If MatLab output of (Socher et al., NIPS
+ * 2011) is given, as <tt>appendix/outVectors.txt</tt> for
+ * <tt>appendix/phrases.txt</tt>, both ways are also compared with it.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public class FastPathTester {
+	/**
+	 * Convert line (CSV format) to columnVector.
+	 *
+	 * @param line
+	 *            to be converted
+	 * @return SimpleMatrix of columnVector
+	 */
+	private static SimpleMatrix constructColumnVector(String line) {
+		final String[] numbers = line.split(",");
+		final double[][] data = new double[numbers.length][1];
+		for (int i = 0; i < numbers.length; i++) {
+			data[i][0] = Double.parseDouble(numbers[i]);
+		}
+		return new SimpleMatrix(data);
+	}
+
+	/**
+	 * Cosine similarity of two column vectors.
+	 *
+	 * @param a
+	 *            vector
+	 * @param b
+	 *            vector
+	 * @return cosine similarity
+	 */
+	private static double cosine(SimpleMatrix a, SimpleMatrix b) {
+		return a.dot(b) / (a.normF() * b.normF());
+	}
+
+	/**
+	 * Percentile of sorted values.
+	 *
+	 * @param sorted
+	 *            values in ascending order
+	 * @param percentile
+	 *            from 0 to 100
+	 * @return value at the percentile
+	 */
+	private static double percentile(double[] sorted, double percentile) {
+		final int rank = (int) Math.ceil(sorted.length * percentile / 100);
+		return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+	}
+
+	/**
+	 * Print summary of values.
+	 *
+	 * @param name
+	 *            of values
+	 * @param values
+	 *            to be summarized
+	 */
+	private static void summarize(String name, List<Double> values) {
+		final double[] sorted = new double[values.size()];
+		double sum = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = values.get(i);
+			sum += sorted[i];
+		}
+		Arrays.sort(sorted);
+
+		System.out.println(String.format(
+				"%-22s mean %10.4f  min %10.4f  p50 %10.4f  p99 %10.4f  max %10.4f",
+				name, sum / sorted.length, sorted[0],
+				FastPathTester.percentile(sorted, 50),
+				FastPathTester.percentile(sorted, 99),
+				sorted[sorted.length - 1]));
+	}
+
+	/**
+	 * Main method for run.
+	 *
+	 * @param args
+	 *            from the command line.
+	 */
+	public static void main(String[] args) {
+		if (args.length > 0) {
+			try {
+				final Scanner scan = new Scanner(new File(args[0]));
+				final Scanner vectors = args.length > 1 ? new Scanner(new File(
+						args[1])) : null;
+				final StanfordWrapper instance = StanfordWrapper.getInstance();
+
+				final List<Double> agreement = new ArrayList<Double>();
+				final List<Double> fullMillis = new ArrayList<Double>();
+				final List<Double> fastMillis = new ArrayList<Double>();
+				final List<Double> fullMatlab = new ArrayList<Double>();
+				final List<Double> fastMatlab = new ArrayList<Double>();
+				int lineNo = 0;
+
+				while (scan.hasNextLine()) {
+					final String line = scan.nextLine();
+					final String output = vectors != null
+							&& vectors.hasNextLine() ? vectors.nextLine() : null;
+					if (line.trim().length() == 0) {
+						continue;
+					}
+					lineNo++;
+
+					long start = System.nanoTime();
+					final SimpleMatrix full = instance
+							.getPhraseVectorOf(instance.parseTree(line));
+					fullMillis.add((System.nanoTime() - start) / 1e6);
+
+					start = System.nanoTime();
+					final SimpleMatrix fast = instance
+							.getFastPhraseVectorOf(line);
+					fastMillis.add((System.nanoTime() - start) / 1e6);
+
+					final double cos = FastPathTester.cosine(full, fast);
+					agreement.add(cos);
+					System.out.println(String.format(
+							"%5d line : cos(full, fast) %.6f", lineNo, cos));
+
+					if (output != null) {
+						final SimpleMatrix expected = FastPathTester
+								.constructColumnVector(output);
+						fullMatlab.add(FastPathTester.cosine(expected, full));
+						fastMatlab.add(FastPathTester.cosine(expected, fast));
+					}
+				}
+				if (vectors != null) {
+					vectors.close();
+				}
+				scan.close();
+
+				if (lineNo == 0) {
+					System.out.println("No phrases.");
+					return;
+				}
+				FastPathTester.summarize("cos(full, fast)", agreement);
+				if (!fullMatlab.isEmpty()) {
+					FastPathTester.summarize("cos(MatLab, full)", fullMatlab);
+					FastPathTester.summarize("cos(MatLab, fast)", fastMatlab);
+				}
+				FastPathTester.summarize("full parse (ms)", fullMillis);
+				FastPathTester.summarize("fast path (ms)", fastMillis);
+			} catch (final Exception e) {
+				e.printStackTrace();
+			}
+		} else {
+			System.out
+					.println("USAGE: java -cp [JAR FILE] kr.ac.kaist.ir.test.FastPathTester [PHRASES FILE] ([URAE OUTPUT FILE])");
+		}
+	}
+}
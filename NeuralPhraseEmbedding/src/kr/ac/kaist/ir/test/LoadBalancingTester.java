@@ -0,0 +1,132 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.test;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+
+import kr.ac.kaist.ir.server.NioParserServer;
+import kr.ac.kaist.ir.server.PooledParserClient;
+import kr.ac.kaist.ir.urae.Result;
+import kr.ac.kaist.ir.urae.StanfordWrapper;
+
+/**
+ * <p>
+ * Local test for {@link PooledParserClient}.
+ * </p>
+ * <p>
+ * Several {@link NioParserServer} nodes are started on loopback ports, sharing
+ * one StanfordWrapper. Every line of the given file is sent through the pooled
+ * client three times: while every node is up, after the first node is
+ * stopped, and after it is started again on the same port. Any sentence which
+ * fails is reported, with the state of the nodes after each round.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public class LoadBalancingTester {
+	/**
+	 * Send every sentence, and count failures.
+	 *
+	 * @param client
+	 *            to send sentences
+	 * @param sentences
+	 *            to be sent
+	 * @param round
+	 *            name of round
+	 */
+	private static void send(PooledParserClient client, List<String> sentences,
+			String round) {
+		final long begin = System.nanoTime();
+		final List<CompletableFuture<List<Result>>> futures = new ArrayList<CompletableFuture<List<Result>>>();
+		for (final String sentence : sentences) {
+			futures.add(client.submit(sentence));
+		}
+
+		int failures = 0;
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				futures.get(i).get();
+			} catch (final Exception e) {
+				System.out.println("FAILED : " + sentences.get(i) + " (" + e
+						+ ")");
+				failures++;
+			}
+		}
+
+		System.out.println(String.format(
+				"%s : %d sentences, %.1f ms, %d failures", round,
+				sentences.size(), (System.nanoTime() - begin) / 1e6, failures));
+		System.out.println(client);
+	}
+
+	/**
+	 * Main method for run.
+	 *
+	 * @param args
+	 *            from the command line.
+	 */
+	public static void main(String[] args) {
+		if (args.length > 0) {
+			try {
+				final int count = args.length > 1 ? Integer.parseInt(args[1])
+						: 3;
+				final int workers = Runtime.getRuntime().availableProcessors();
+
+				final List<String> sentences = new ArrayList<String>();
+				final Scanner scan = new Scanner(new File(args[0]));
+				while (scan.hasNextLine()) {
+					final String line = scan.nextLine().trim();
+					if (!line.isEmpty()) {
+						sentences.add(line);
+					}
+				}
+				scan.close();
+
+				final StanfordWrapper instance = StanfordWrapper.getInstance();
+				final NioParserServer[] servers = new NioParserServer[count];
+				final List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+				for (int i = 0; i < count; i++) {
+					servers[i] = new NioParserServer(instance, 0, workers,
+							workers * 16, NioParserServer.Backpressure.REJECT, 0);
+					servers[i].start();
+					addresses.add(new InetSocketAddress("localhost", servers[i]
+							.getPort()));
+				}
+
+				final PooledParserClient client = new PooledParserClient(
+						addresses, 2);
+				LoadBalancingTester.send(client, sentences, "All nodes up");
+
+				final int port = servers[0].getPort();
+				servers[0].shutdown(1000);
+				LoadBalancingTester.send(client, sentences, "First node down");
+
+				servers[0] = new NioParserServer(instance, port, workers,
+						workers * 16, NioParserServer.Backpressure.REJECT, 0);
+				servers[0].start();
+				// Wait for health check to admit the node again.
+				final long interval = Long.getLong(
+						PooledParserClient.INTERVAL_PROPERTY, 5000);
+				Thread.sleep(interval * 2);
+				LoadBalancingTester.send(client, sentences, "First node back");
+
+				client.close();
+				for (final NioParserServer server : servers) {
+					server.shutdown(1000);
+				}
+			} catch (final Exception e) {
+				e.printStackTrace();
+			}
+		} else {
+			System.out
+					.println("USAGE: java -cp [JAR FILE] kr.ac.kaist.ir.test.LoadBalancingTester [SENTENCES FILE] ([NODES])");
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import kr.ac.kaist.ir.server.Protocol;
+import kr.ac.kaist.ir.server.RequestHandler;
+import kr.ac.kaist.ir.urae.ParseLimitException;
+import kr.ac.kaist.ir.urae.StanfordWrapper;
+
+/**
+ * <p>
+ * Check of parse deadlines, {@value StanfordWrapper#TIMEOUT_PROPERTY} and
+ * the deadline of server requests.
+ * </p>
+ * <p>
+ * A long sentence is parsed with a tiny time limit, first by
+ * {@link StanfordWrapper#parseTree(String, long)}, then as an NPN request
+ * with a deadline through {@link RequestHandler}. Each should end within the
+ * limit and a margin, usually with TIMEOUT, or with FALLBACK if
+ * {@value RequestHandler#FALLBACK_PROPERTY} is set. Choose a sentence long
+ * enough not to be parsed within the limit. A parse which runs far beyond the
+ * limit means that the parser does not check
+ * interrupts, so that only the wait for a free parser is bounded; then
+ * {@value StanfordWrapper#MAX_TOKENS_PROPERTY} is the only guard against long
+ * sentences.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public class ParseDeadlineTester {
+	/** Words repeated to make a long sentence **/
+	private static final String WORDS = "slowly the old man with a telescope saw the company of the boy near the river and";
+	/** Time allowed after the limit, in milliseconds **/
+	private static final long MARGIN = 500;
+
+	/**
+	 * Make a sentence of about the given number of tokens.
+	 *
+	 * @param tokens
+	 *            number of tokens
+	 * @return sentence
+	 */
+	private static String sentenceOf(int tokens) {
+		final String[] words = ParseDeadlineTester.WORDS.split(" ");
+		final StringBuilder sentence = new StringBuilder();
+		for (int i = 0; i < tokens - 1; i++) {
+			sentence.append(words[i % words.length]).append(' ');
+		}
+		return sentence.append('.').toString();
+	}
+
+	/**
+	 * Report the result of a check.
+	 *
+	 * @param name
+	 *            of the check
+	 * @param outcome
+	 *            what happened
+	 * @param millis
+	 *            elapsed time
+	 * @param limit
+	 *            time limit in milliseconds
+	 * @return true if it ended within the limit and the margin.
+	 */
+	private static boolean report(String name, String outcome, long millis,
+			long limit) {
+		final boolean passed = millis <= (limit + ParseDeadlineTester.MARGIN);
+		System.out.println(String.format("%-12s %-5s %s in %d ms (limit %d ms)",
+				name, passed ? "OK" : "FAIL", outcome, millis, limit));
+		return passed;
+	}
+
+	/**
+	 * Main method for run.
+	 *
+	 * @param args
+	 *            from the command line.
+	 */
+	public static void main(String[] args) {
+		try {
+			final int tokens = args.length > 0 ? Integer.parseInt(args[0]) : 150;
+			final int limit = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+			final String sentence = ParseDeadlineTester.sentenceOf(tokens);
+			final StanfordWrapper instance = StanfordWrapper.getInstance();
+			boolean passed = true;
+
+			// Local parse with a time limit.
+			long start = System.nanoTime();
+			String outcome;
+			try {
+				instance.parseTree(sentence, limit);
+				outcome = "parsed";
+			} catch (final ParseLimitException e) {
+				outcome = e.getReason() + " (" + e.getMessage() + ")";
+			}
+			passed &= ParseDeadlineTester.report("parseTree", outcome,
+					(System.nanoTime() - start) / 1000000, limit);
+
+			// NPN request with a deadline.
+			final ExecutorService executor = Executors.newCachedThreadPool();
+			try {
+				final RequestHandler handler = new RequestHandler(instance,
+						executor);
+				final byte[] request = Protocol.encodeRequest(Protocol.NPN,
+						(byte) 0, 1, limit, null, sentence);
+				final byte[][] response = new byte[1][];
+				start = System.nanoTime();
+				handler.handle(Protocol.readFrame(new DataInputStream(
+						new ByteArrayInputStream(request))),
+						new RequestHandler.Sink() {
+							@Override
+							public void send(byte[] frame, boolean last) {
+								response[0] = frame;
+							}
+						});
+				final long millis = (System.nanoTime() - start) / 1000000;
+
+				final Protocol.Response decoded = Protocol
+						.decodeResponse(Protocol
+								.readFrame(new DataInputStream(
+										new ByteArrayInputStream(response[0]))));
+				outcome = Protocol.getStatusName(decoded.getStatus())
+						+ (decoded.isFallback() ? " FALLBACK" : "");
+				passed &= ParseDeadlineTester.report("NPN request", outcome,
+						millis, limit);
+			} finally {
+				executor.shutdown();
+			}
+
+			System.out.println(passed ? "Deadlines are honored."
+					: "Deadlines are NOT honored; set "
+							+ StanfordWrapper.MAX_TOKENS_PROPERTY
+							+ " to bound parsing time.");
+		} catch (final Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
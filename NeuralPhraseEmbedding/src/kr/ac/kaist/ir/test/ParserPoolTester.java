@@ -0,0 +1,91 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+import kr.ac.kaist.ir.urae.ParserPool;
+import kr.ac.kaist.ir.urae.StanfordWrapper;
+
+import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
+
+/**
+ * <p>
+ * Agreement of the members of {@link ParserPool}.
+ * </p>
+ * <p>
+ * Every member of the pool is borrowed at once, so that copies are made up to
+ * its capacity, and each sentence of the given file is parsed by every
+ * member. A tree different from the one of the first member is reported as a
+ * failure; copies which lost the SU-RNN reranker of the prototype parse with
+ * the plain PCFG, and disagree.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public class ParserPoolTester {
+	/**
+	 * Main method for run.
+	 *
+	 * @param args
+	 *            from the command line.
+	 */
+	public static void main(String[] args) {
+		if (args.length > 0) {
+			try {
+				final List<String> sentences = new ArrayList<String>();
+				final Scanner scan = new Scanner(new File(args[0]));
+				while (scan.hasNextLine()) {
+					final String line = scan.nextLine().trim();
+					if (line.length() > 0) {
+						sentences.add(line);
+					}
+				}
+				scan.close();
+
+				final ParserPool pool = StanfordWrapper.getInstance()
+						.getParserPool();
+				final List<LexicalizedParser> members = new ArrayList<LexicalizedParser>();
+				try {
+					for (int i = 0; i < pool.getCapacity(); i++) {
+						members.add(pool.borrow());
+					}
+
+					int failures = 0;
+					for (int s = 0; s < sentences.size(); s++) {
+						final String expected = members.get(0)
+								.parse(sentences.get(s)).toString();
+						for (int m = 1; m < members.size(); m++) {
+							final String actual = members.get(m)
+									.parse(sentences.get(s)).toString();
+							if (!expected.equals(actual)) {
+								failures++;
+								System.out.println(String.format(
+										"%5d line : member %d differs%n  %s%n  %s",
+										s + 1, m, expected, actual));
+							}
+						}
+					}
+
+					System.out.println(String.format(
+							"%d members, %d sentences, %d failures",
+							members.size(), sentences.size(), failures));
+				} finally {
+					for (final LexicalizedParser parser : members) {
+						pool.release(parser);
+					}
+				}
+			} catch (final Exception e) {
+				e.printStackTrace();
+			}
+		} else {
+			System.out
+					.println("USAGE: java -cp [JAR FILE] kr.ac.kaist.ir.test.ParserPoolTester [SENTENCES FILE]");
+		}
+	}
+}
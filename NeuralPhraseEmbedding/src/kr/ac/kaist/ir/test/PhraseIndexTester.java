@@ -0,0 +1,179 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import kr.ac.kaist.ir.index.Neighbor;
+import kr.ac.kaist.ir.index.PhraseIndex;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * <p>
+ * Recall of {@link PhraseIndex} against brute force search.
+ * </p>
+ * <p>
+ * Random vectors are drawn around random cluster centers, as phrase vectors
+ * gather around similar phrases, and indexed. For queries drawn the same way,
+ * the top 10 of the index are compared with the exact top 10 by cosine
+ * similarity, for several values of ef. Vectors are drawn with a fixed seed,
+ * so runs with the same arguments index the same vectors.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public class PhraseIndexTester {
+	/** Number of neighbors compared **/
+	private static final int K = 10;
+	/** Values of ef to be tested **/
+	private static final int[] EFS = { 16, 32, 64, 128 };
+
+	/**
+	 * Draw a vector around a center, normalized.
+	 *
+	 * @param random
+	 *            generator
+	 * @param center
+	 *            of cluster
+	 * @return normalized vector
+	 */
+	private static double[] draw(Random random, double[] center) {
+		final double[] vector = new double[center.length];
+		double norm = 0;
+		for (int i = 0; i < vector.length; i++) {
+			vector[i] = center[i] + (random.nextGaussian() * 0.3);
+			norm += vector[i] * vector[i];
+		}
+		norm = Math.sqrt(norm);
+		for (int i = 0; i < vector.length; i++) {
+			vector[i] /= norm;
+		}
+		return vector;
+	}
+
+	/**
+	 * Exact top K by brute force.
+	 *
+	 * @param vectors
+	 *            indexed, normalized
+	 * @param query
+	 *            normalized
+	 * @return IDs of the K most similar vectors
+	 */
+	private static Set<Integer> exact(double[][] vectors, double[] query) {
+		final int[] ids = new int[PhraseIndexTester.K];
+		final double[] best = new double[PhraseIndexTester.K];
+		Arrays.fill(best, Double.NEGATIVE_INFINITY);
+		for (int id = 0; id < vectors.length; id++) {
+			double dot = 0;
+			for (int i = 0; i < query.length; i++) {
+				dot += vectors[id][i] * query[i];
+			}
+			if (dot <= best[PhraseIndexTester.K - 1]) {
+				continue;
+			}
+
+			// Insert into sorted top K.
+			int j = PhraseIndexTester.K - 1;
+			while ((j > 0) && (best[j - 1] < dot)) {
+				best[j] = best[j - 1];
+				ids[j] = ids[j - 1];
+				j--;
+			}
+			best[j] = dot;
+			ids[j] = id;
+		}
+
+		final Set<Integer> top = new HashSet<Integer>();
+		for (final int id : ids) {
+			top.add(id);
+		}
+		return top;
+	}
+
+	/**
+	 * Main method for run.
+	 *
+	 * @param args
+	 *            from the command line.
+	 */
+	public static void main(String[] args) {
+		if (args.length > 1) {
+			try {
+				final int size = Integer.parseInt(args[0]);
+				final int dimension = Integer.parseInt(args[1]);
+				final int clusters = args.length > 2 ? Integer
+						.parseInt(args[2]) : 1000;
+				final int queries = args.length > 3 ? Integer
+						.parseInt(args[3]) : 1000;
+				final Random random = new Random(42);
+
+				final double[][] centers = new double[clusters][dimension];
+				for (final double[] center : centers) {
+					for (int i = 0; i < dimension; i++) {
+						center[i] = random.nextGaussian();
+					}
+				}
+
+				final PhraseIndex index = new PhraseIndex(dimension);
+				final double[][] vectors = new double[size][];
+				long begin = System.nanoTime();
+				for (int id = 0; id < size; id++) {
+					vectors[id] = PhraseIndexTester.draw(random,
+							centers[random.nextInt(clusters)]);
+					index.add("phrase " + id, new SimpleMatrix(dimension, 1,
+							true, vectors[id]));
+				}
+				System.out.println(String.format(
+						"%d vectors of %d dimensions in %d clusters, %.1f s",
+						index.size(), dimension, clusters,
+						(System.nanoTime() - begin) / 1e9));
+
+				final double[][] query = new double[queries][];
+				final List<Set<Integer>> expected = new ArrayList<Set<Integer>>();
+				begin = System.nanoTime();
+				for (int q = 0; q < queries; q++) {
+					query[q] = PhraseIndexTester.draw(random,
+							centers[random.nextInt(clusters)]);
+					expected.add(PhraseIndexTester.exact(vectors, query[q]));
+				}
+				System.out.println(String.format(
+						"brute force : %.3f ms per query",
+						(System.nanoTime() - begin) / 1e6 / queries));
+
+				for (final int ef : PhraseIndexTester.EFS) {
+					index.setEf(ef);
+					int hits = 0;
+					begin = System.nanoTime();
+					for (int q = 0; q < queries; q++) {
+						for (final Neighbor neighbor : index.search(
+								new SimpleMatrix(dimension, 1, true, query[q]),
+								PhraseIndexTester.K)) {
+							if (expected.get(q).contains(neighbor.getId())) {
+								hits++;
+							}
+						}
+					}
+					System.out.println(String.format(
+							"ef %4d : recall@%d %.4f, %.3f ms per query", ef,
+							PhraseIndexTester.K, (double) hits
+									/ (queries * PhraseIndexTester.K),
+							(System.nanoTime() - begin) / 1e6 / queries));
+				}
+			} catch (final Exception e) {
+				e.printStackTrace();
+			}
+		} else {
+			System.out
+					.println("USAGE: java -cp [JAR FILE] kr.ac.kaist.ir.test.PhraseIndexTester [NUMBER OF VECTORS] [DIMENSION] ([NUMBER OF CLUSTERS]) ([NUMBER OF QUERIES])");
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+import kr.ac.kaist.ir.urae.NPNStructure;
+import kr.ac.kaist.ir.urae.Result;
+import kr.ac.kaist.ir.urae.StanfordWrapper;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * <p>
+ * Isolation of results served from the sentence cache of
+ * {@link StanfordWrapper}.
+ * </p>
+ * <p>
+ * Each sentence of the given file is analyzed twice, so that the second is a
+ * cache hit. Between them, every vector returned by the first is overwritten.
+ * A vector of the second which differs from the first before overwriting is
+ * reported as a failure, since the cached entry shared it with the caller.
+ * The cache is enabled with 1000 sentences, unless
+ * {@value StanfordWrapper#SENTENCE_CACHE_PROPERTY} is given.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public class SentenceCacheTester {
+	/**
+	 * Vectors of a structure, in a fixed order.
+	 *
+	 * @param structure
+	 *            to read vectors of
+	 * @return List of vectors, with null for vectors not computed.
+	 */
+	private static List<SimpleMatrix> vectorsOf(NPNStructure structure) {
+		final List<SimpleMatrix> vectors = new ArrayList<SimpleMatrix>();
+		vectors.add(structure.getMatrixOfSentence());
+		for (final Result result : structure.getResults()) {
+			vectors.add(result.getMatrixOfNP1());
+			vectors.add(result.getMatrixOfPP());
+			vectors.add(result.getMatrixOfNP2());
+			vectors.add(result.getMatrixOfSentence());
+		}
+		return vectors;
+	}
+
+	/**
+	 * Main method for run.
+	 *
+	 * @param args
+	 *            from the command line.
+	 */
+	public static void main(String[] args) {
+		if (args.length > 0) {
+			try {
+				if (System.getProperty(StanfordWrapper.SENTENCE_CACHE_PROPERTY) == null) {
+					System.setProperty(StanfordWrapper.SENTENCE_CACHE_PROPERTY,
+							"1000");
+				}
+				final StanfordWrapper instance = StanfordWrapper.getInstance();
+				final Scanner scan = new Scanner(new File(args[0]));
+				int lineNo = 0;
+				int failures = 0;
+
+				while (scan.hasNextLine()) {
+					final String line = scan.nextLine().trim();
+					if (line.length() == 0) {
+						continue;
+					}
+					lineNo++;
+
+					final List<SimpleMatrix> first = SentenceCacheTester
+							.vectorsOf(instance.getNPNStructureOf(line, 0,
+									Result.Field.DEFAULTS));
+					final List<SimpleMatrix> expected = new ArrayList<SimpleMatrix>();
+					for (final SimpleMatrix vector : first) {
+						expected.add(vector != null ? vector.copy() : null);
+						if (vector != null) {
+							for (int i = 0; i < vector.getNumElements(); i++) {
+								vector.set(i, Double.NaN);
+							}
+						}
+					}
+
+					final List<SimpleMatrix> second = SentenceCacheTester
+							.vectorsOf(instance.getNPNStructureOf(line, 0,
+									Result.Field.DEFAULTS));
+					if (second.size() != expected.size()) {
+						failures++;
+						System.out.println(String.format(
+								"%5d line : %d vectors, not %d", lineNo,
+								second.size(), expected.size()));
+						continue;
+					}
+					for (int v = 0; v < expected.size(); v++) {
+						final SimpleMatrix a = expected.get(v);
+						final SimpleMatrix b = second.get(v);
+						boolean same = (a == null) == (b == null);
+						for (int i = 0; same && (a != null)
+								&& (i < a.getNumElements()); i++) {
+							same = a.get(i) == b.get(i);
+						}
+						if (!same) {
+							failures++;
+							System.out.println(String.format(
+									"%5d line : vector %d changed by caller",
+									lineNo, v));
+						}
+					}
+				}
+				scan.close();
+
+				System.out.println(String.format(
+						"%d sentences, %d failures, %s", lineNo, failures,
+						instance.getSentenceCache()));
+			} catch (final Exception e) {
+				e.printStackTrace();
+			}
+		} else {
+			System.out
+					.println("USAGE: java -cp [JAR FILE] kr.ac.kaist.ir.test.SentenceCacheTester [SENTENCES FILE]");
+		}
+	}
+}
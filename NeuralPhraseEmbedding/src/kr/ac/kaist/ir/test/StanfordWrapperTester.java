@@ -4,8 +4,13 @@
 package kr.ac.kaist.ir.test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
+import kr.ac.kaist.ir.urae.Parameters;
+import kr.ac.kaist.ir.urae.PhraseEncoder;
+import kr.ac.kaist.ir.urae.Precision;
 import kr.ac.kaist.ir.urae.StanfordWrapper;
 
 import org.ejml.simple.SimpleMatrix;
@@ -23,6 +28,10 @@ import edu.stanford.nlp.trees.Tree;
  * <b>higher than 3.4</b>, and set serialized model as <b>englishRNN.ser.gz</b>.
  * Otherwise, the result may not be agreed.
  * </p>
+ * <p>
+ * With <tt>precision</tt> as the third argument, this reports accuracy and
+ * memory of each {@link Precision} instead, against the same MatLab output.
+ * </p>
  *
  * @author 김부근
  *
@@ -44,6 +53,79 @@ public class StanfordWrapperTester {
 		return new SimpleMatrix(data);
 	}
 
+	/**
+	 * Cosine similarity of two column vectors.
+	 *
+	 * @param a
+	 *            vector
+	 * @param b
+	 *            vector
+	 * @return cosine similarity
+	 */
+	private static double cosine(SimpleMatrix a, SimpleMatrix b) {
+		return a.dot(b) / (a.normF() * b.normF());
+	}
+
+	/**
+	 * Report accuracy of each precision. Every phrase is parsed once, and
+	 * encoded with parameters of each precision.
+	 *
+	 * @param phrases
+	 *            file of phrases
+	 * @param outputs
+	 *            file of MatLab output vectors
+	 * @throws Exception
+	 *             when failed to read files.
+	 */
+	private static void reportPrecision(String phrases, String outputs)
+			throws Exception {
+		final Scanner scan = new Scanner(new File(phrases));
+		final Scanner vectors = new Scanner(new File(outputs));
+		final StanfordWrapper instance = StanfordWrapper.getInstance();
+		final List<Tree> trees = new ArrayList<Tree>();
+		final List<SimpleMatrix> expected = new ArrayList<SimpleMatrix>();
+		while (scan.hasNextLine()) {
+			final String line = scan.nextLine();
+			if (line.trim().length() > 0) {
+				trees.add(instance.parseTree(line));
+				expected.add(StanfordWrapperTester
+						.constructColumnVector(vectors.nextLine()));
+			}
+		}
+		vectors.close();
+		scan.close();
+
+		System.out.println(String.format("%-8s %10s %14s %14s %14s",
+				"", "Embeddings", "Mean max diff", "Max diff",
+				"Min cos(DOUBLE)"));
+		final List<SimpleMatrix> reference = new ArrayList<SimpleMatrix>();
+		for (final Precision precision : Precision.values()) {
+			final Parameters param = Parameters.load(precision);
+			final PhraseEncoder encoder = new PhraseEncoder(param);
+			double sum = 0, max = 0, minCos = 1;
+			for (int i = 0; i < trees.size(); i++) {
+				final SimpleMatrix matrix = encoder.encode(trees.get(i));
+				final double diff = expected.get(i).minus(matrix)
+						.elementMaxAbs();
+				sum += diff;
+				max = Math.max(max, diff);
+
+				// Compare with DOUBLE, which comes first.
+				if (precision == Precision.DOUBLE) {
+					reference.add(matrix);
+				} else {
+					minCos = Math.min(minCos, StanfordWrapperTester.cosine(
+							reference.get(i), matrix));
+				}
+			}
+
+			System.out.println(String.format(
+					"%-8s %8.1fMB %14.6f %14.6f %14.6f", precision, param
+							.getEmbeddingTable().getBytes() / 1048576.0, sum
+							/ trees.size(), max, minCos));
+		}
+	}
+
 	/**
 	 * Main method for run.
 	 *
@@ -51,7 +133,13 @@ public class StanfordWrapperTester {
 	 *            from the command line.
 	 */
 	public static void main(String[] args) {
-		if (args.length > 0) {
+		if (args.length > 2 && "precision".equalsIgnoreCase(args[2])) {
+			try {
+				StanfordWrapperTester.reportPrecision(args[0], args[1]);
+			} catch (final Exception e) {
+				e.printStackTrace();
+			}
+		} else if (args.length > 0) {
 			try {
 				// Since phrases.txt and outVectors.txt has same number of
 				// lines, read together.
@@ -105,7 +193,7 @@ public class StanfordWrapperTester {
 			}
 		} else {
 			System.out
-					.println("USAGE: java -jar [JAR FILE] [PHRASES FILE] [URAE OUTPUT FILE]");
+					.println("USAGE: java -jar [JAR FILE] [PHRASES FILE] [URAE OUTPUT FILE] (precision)");
 		}
 	}
 }
@@ -0,0 +1,236 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.urae;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.ops.CommonOps;
+import org.ejml.simple.SimpleMatrix;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * <p>
+ * URAE phrase encoder for many trees at once, scheduled by height.
+ * </p>
+ * <p>
+ * Every tree is flattened into binary merges, following the association rule
+ * of {@link PhraseEncoder}. A merge depends only on merges of lower height,
+ * so all merges of the same height, across every tree in the batch, are
+ * computed by one matrix-matrix product [W1 W2 b1]·[C1; C2; 1]. This gives
+ * higher FLOP efficiency than a matrix-vector product per node.
+ * </p>
+ * <p>
+ * Results are equal to {@link PhraseEncoder} up to rounding, since the order
+ * of summation in the product is different. An instance can be shared by
+ * many threads.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public final class BatchPhraseEncoder {
+	/**
+	 * Flattened batch. A slot is either a word (leaf) or a merge of two
+	 * slots.
+	 */
+	private static final class Schedule {
+		/** Left and right child slot of merges; -1 for words **/
+		private int[] left = new int[64], right = new int[64];
+		/** Height of slots; 0 for words **/
+		private int[] height = new int[64];
+		/** Row of word embedding, for words **/
+		private int[] word = new int[64];
+		/** Number of slots **/
+		private int size;
+		/** Number of merges **/
+		private int merges;
+		/** Maximum height of merges **/
+		private int maxHeight;
+
+		/**
+		 * Add new slot.
+		 *
+		 * @param l
+		 *            left child slot, or -1
+		 * @param r
+		 *            right child slot, or -1
+		 * @param h
+		 *            height
+		 * @param w
+		 *            row of word, or -1
+		 * @return index of new slot
+		 */
+		int add(int l, int r, int h, int w) {
+			if (this.size == this.left.length) {
+				final int capacity = this.size * 2;
+				this.left = Arrays.copyOf(this.left, capacity);
+				this.right = Arrays.copyOf(this.right, capacity);
+				this.height = Arrays.copyOf(this.height, capacity);
+				this.word = Arrays.copyOf(this.word, capacity);
+			}
+
+			this.left[this.size] = l;
+			this.right[this.size] = r;
+			this.height[this.size] = h;
+			this.word[this.size] = w;
+			if (h > 0) {
+				this.merges++;
+				this.maxHeight = Math.max(this.maxHeight, h);
+			}
+			return this.size++;
+		}
+	}
+
+	/** Parameters for URAE **/
+	private final Parameters param;
+	/** Word embeddings **/
+	private final EmbeddingTable table;
+	/** Fused parameter [W1 W2 b1] **/
+	private final DenseMatrix64F fused;
+	/** Dimension of vectors **/
+	private final int dim;
+
+	/**
+	 * Construct encoder with given parameters.
+	 *
+	 * @param param
+	 *            Trained parameters of URAE
+	 */
+	public BatchPhraseEncoder(Parameters param) {
+		this.param = param;
+		this.table = param.getEmbeddingTable();
+		this.dim = this.table.getDimension();
+		this.fused = DenseMatrix64F.wrap(this.dim, (2 * this.dim) + 1,
+				param.getFusedWeights());
+	}
+
+	/**
+	 * Calculate URAE vectors of given trees.
+	 *
+	 * @param trees
+	 *            for compute phrase vectors.
+	 * @return List of phrase vectors (column vectors), in the same order with
+	 *         trees. An element is null if the tree has no word.
+	 */
+	public List<SimpleMatrix> encode(List<Tree> trees) {
+		final Schedule schedule = new Schedule();
+		final int[] roots = new int[trees.size()];
+		for (int t = 0; t < roots.length; t++) {
+			roots[t] = this.flatten(trees.get(t), schedule);
+		}
+
+		final int dim = this.dim;
+		final double[] values = new double[schedule.size * dim];
+
+		// Fill words, and sort merges by height (counting sort).
+		final int[] start = new int[schedule.maxHeight + 2];
+		for (int s = 0; s < schedule.size; s++) {
+			if (schedule.height[s] == 0) {
+				this.table.copyRow(schedule.word[s], values, s * dim);
+			} else {
+				start[schedule.height[s] + 1]++;
+			}
+		}
+		for (int h = 1; h < start.length; h++) {
+			start[h] += start[h - 1];
+		}
+		final int[] order = new int[schedule.merges];
+		final int[] fill = Arrays.copyOf(start, start.length);
+		for (int s = 0; s < schedule.size; s++) {
+			if (schedule.height[s] > 0) {
+				order[fill[schedule.height[s]]++] = s;
+			}
+		}
+
+		// Compute each level by one product.
+		final int rows = (2 * dim) + 1;
+		final DenseMatrix64F input = new DenseMatrix64F(rows, 1);
+		final DenseMatrix64F output = new DenseMatrix64F(dim, 1);
+		for (int h = 1; h <= schedule.maxHeight; h++) {
+			final int from = start[h], count = start[h + 1] - from;
+			if (count == 0) {
+				continue;
+			}
+
+			// Build [C1; C2; 1], each column is a merge.
+			input.reshape(rows, count, false);
+			output.reshape(dim, count, false);
+			final double[] x = input.getData();
+			for (int k = 0; k < count; k++) {
+				final int slot = order[from + k];
+				final int c1 = schedule.left[slot] * dim;
+				final int c2 = schedule.right[slot] * dim;
+				for (int i = 0; i < dim; i++) {
+					x[(i * count) + k] = values[c1 + i];
+					x[((dim + i) * count) + k] = values[c2 + i];
+				}
+				x[(2 * dim * count) + k] = 1;
+			}
+
+			CommonOps.mult(this.fused, input, output);
+
+			final double[] y = output.getData();
+			for (int k = 0; k < count; k++) {
+				final int offset = order[from + k] * dim;
+				for (int i = 0; i < dim; i++) {
+					values[offset + i] = Math.tanh(y[(i * count) + k]);
+				}
+			}
+		}
+
+		final List<SimpleMatrix> result = new ArrayList<SimpleMatrix>(
+				roots.length);
+		for (final int root : roots) {
+			if (root < 0) {
+				result.add(null);
+			} else {
+				final double[] vector = Arrays.copyOfRange(values, root * dim,
+						(root + 1) * dim);
+				result.add(SimpleMatrix.wrap(DenseMatrix64F
+						.wrap(dim, 1, vector)));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Flatten subtree into slots of schedule. For nodes that have more than 2
+	 * children, merges follow URAE's association rule which gives highest
+	 * priority to right-most one.
+	 *
+	 * @param subtree
+	 *            to be flattened
+	 * @param schedule
+	 *            to add slots
+	 * @return slot of the subtree, or -1 if subtree has no word.
+	 */
+	private int flatten(Tree subtree, Schedule schedule) {
+		if (!subtree.isPreTerminal() && (subtree.numChildren() > 1)) {
+			final Tree[] children = subtree.children();
+			int prev = -1;
+			for (int i = children.length - 1; i >= 0; i--) {
+				final int curr = this.flatten(children[i], schedule);
+				if (prev < 0) {
+					prev = curr;
+				} else if (curr >= 0) {
+					final int height = 1 + Math.max(schedule.height[curr],
+							schedule.height[prev]);
+					prev = schedule.add(curr, prev, height, -1);
+				}
+			}
+			return prev;
+		} else if (subtree.isPreTerminal()) {
+			final String word = subtree.getChild(0).value();
+			return schedule.add(-1, -1, 0, this.param.getWordIndexOf(word));
+		} else if (subtree.numChildren() == 1) {
+			return this.flatten(subtree.getChild(0), schedule);
+		} else {
+			return -1;
+		}
+	}
+}
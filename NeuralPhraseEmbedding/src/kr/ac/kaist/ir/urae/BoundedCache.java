@@ -0,0 +1,333 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.urae;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * Thread-safe LRU cache, bounded by number of entries and by estimated size
+ * in bytes. Least recently used entries are evicted first when either bound
+ * is exceeded.
+ * </p>
+ * <p>
+ * Cache can be split into stripes by hash of keys, each with its own lock, so
+ * that threads looking up different keys rarely wait for each other. The
+ * bounds are divided among stripes and enforced per stripe: shares differ by
+ * at most one entry or byte and sum to the configured bounds. Each stripe
+ * evicts its own least recently used entries, so the order of eviction is LRU
+ * only approximately, and a stripe may evict while others have room. An entry
+ * larger than the byte share of its stripe is not cached at all.
+ * </p>
+ * <p>
+ * Cache records hit, miss and eviction counts, so that its size can be tuned.
+ * </p>
+ *
+ * @author 김부근
+ *
+ * @param <K>
+ *            Type of keys
+ * @param <V>
+ *            Type of values
+ */
+public final class BoundedCache<K, V> {
+	/**
+	 * Estimates size of an entry.
+	 *
+	 * @param <K>
+	 *            Type of keys
+	 * @param <V>
+	 *            Type of values
+	 */
+	public interface Weigher<K, V> {
+		/**
+		 * Estimate size of an entry.
+		 *
+		 * @param key
+		 *            of the entry
+		 * @param value
+		 *            of the entry
+		 * @return estimated size in bytes
+		 */
+		long weigh(K key, V value);
+	}
+
+	/**
+	 * Part of cache, guarded by itself.
+	 *
+	 * @param <K>
+	 *            Type of keys
+	 * @param <V>
+	 *            Type of values
+	 */
+	private static final class Stripe<K, V> {
+		/** Entries, in access order **/
+		private final LinkedHashMap<K, V> entries = new LinkedHashMap<K, V>(16,
+				0.75f, true);
+		/** Maximum number of entries of this stripe **/
+		private final int maxEntries;
+		/** Maximum sum of estimated sizes of this stripe **/
+		private final long maxBytes;
+		/** Sum of estimated sizes **/
+		private long bytes;
+
+		/**
+		 * Construct an empty stripe.
+		 *
+		 * @param maxEntries
+		 *            Maximum number of entries of this stripe
+		 * @param maxBytes
+		 *            Maximum sum of estimated sizes of this stripe
+		 */
+		private Stripe(int maxEntries, long maxBytes) {
+			this.maxEntries = maxEntries;
+			this.maxBytes = maxBytes;
+		}
+	}
+
+	/**
+	 * Default number of stripes: a power of 2, at least twice the number of
+	 * available processors.
+	 *
+	 * @return number of stripes
+	 */
+	public static int defaultStripes() {
+		return Integer.highestOneBit(Math.max(1, Runtime.getRuntime()
+				.availableProcessors() * 2 - 1)) << 1;
+	}
+
+	/** Stripes, by hash of keys **/
+	private final Stripe<K, V>[] stripes;
+	/** Maximum number of entries **/
+	private final int maxEntries;
+	/** Maximum sum of estimated sizes **/
+	private final long maxBytes;
+	/** Size estimator **/
+	private final Weigher<K, V> weigher;
+	/** Counters **/
+	private final LongAdder hits = new LongAdder(), misses = new LongAdder(),
+			evictions = new LongAdder();
+
+	/**
+	 * Construct an empty cache of one stripe, which evicts in exact LRU
+	 * order.
+	 *
+	 * @param maxEntries
+	 *            Maximum number of entries
+	 * @param maxBytes
+	 *            Maximum sum of estimated sizes of entries
+	 * @param weigher
+	 *            to estimate size of an entry
+	 */
+	public BoundedCache(int maxEntries, long maxBytes, Weigher<K, V> weigher) {
+		this(maxEntries, maxBytes, weigher, 1);
+	}
+
+	/**
+	 * Construct an empty cache of given number of stripes. Each stripe holds
+	 * at most its share of the bounds, so the bounds are per stripe: the
+	 * cache never exceeds them in total, but may evict before reaching them.
+	 * Stripes are at most as many as maxEntries, so that every stripe can
+	 * hold an entry.
+	 *
+	 * @param maxEntries
+	 *            Maximum number of entries
+	 * @param maxBytes
+	 *            Maximum sum of estimated sizes of entries
+	 * @param weigher
+	 *            to estimate size of an entry
+	 * @param stripes
+	 *            number of stripes, rounded up to a power of 2 and limited
+	 *            to maxEntries. See {@link #defaultStripes()}.
+	 */
+	@SuppressWarnings("unchecked")
+	public BoundedCache(int maxEntries, long maxBytes, Weigher<K, V> weigher,
+			int stripes) {
+		final int limit = Integer.highestOneBit(Math.max(1, maxEntries));
+		int count = 1;
+		while ((count < stripes) && (count < limit)) {
+			count <<= 1;
+		}
+
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.weigher = weigher;
+		this.stripes = new Stripe[count];
+		for (int i = 0; i < count; i++) {
+			// Spread remainders over the first stripes, so shares sum to bounds.
+			this.stripes[i] = new Stripe<K, V>(Math.max(1, (maxEntries / count)
+					+ (i < (maxEntries % count) ? 1 : 0)), (maxBytes / count)
+					+ (i < (maxBytes % count) ? 1 : 0));
+		}
+	}
+
+	/**
+	 * Remove every entry. Counters are not reset.
+	 */
+	public void clear() {
+		for (final Stripe<K, V> stripe : this.stripes) {
+			synchronized (stripe) {
+				stripe.entries.clear();
+				stripe.bytes = 0;
+			}
+		}
+	}
+
+	/**
+	 * Find cached value, and mark it as recently used.
+	 *
+	 * @param key
+	 *            to find
+	 * @return cached value, or null if not cached.
+	 */
+	public V get(K key) {
+		final Stripe<K, V> stripe = this.stripeOf(key);
+		final V value;
+		synchronized (stripe) {
+			value = stripe.entries.get(key);
+		}
+		if (value != null) {
+			this.hits.increment();
+		} else {
+			this.misses.increment();
+		}
+		return value;
+	}
+
+	/**
+	 * Sum of estimated sizes of entries.
+	 *
+	 * @return size in bytes
+	 */
+	public long getByteSize() {
+		long bytes = 0;
+		for (final Stripe<K, V> stripe : this.stripes) {
+			synchronized (stripe) {
+				bytes += stripe.bytes;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Number of evicted entries so far.
+	 *
+	 * @return eviction count
+	 */
+	public long getEvictionCount() {
+		return this.evictions.sum();
+	}
+
+	/**
+	 * Number of hits so far.
+	 *
+	 * @return hit count
+	 */
+	public long getHitCount() {
+		return this.hits.sum();
+	}
+
+	/**
+	 * Ratio of hits among lookups so far.
+	 *
+	 * @return hit rate between 0 and 1
+	 */
+	public double getHitRate() {
+		final long hits = this.hits.sum();
+		final long lookups = hits + this.misses.sum();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	/**
+	 * Number of misses so far.
+	 *
+	 * @return miss count
+	 */
+	public long getMissCount() {
+		return this.misses.sum();
+	}
+
+	/**
+	 * Store value, and evict least recently used entries of its stripe if the
+	 * stripe is full. An entry larger than the byte share of its stripe is not
+	 * stored, and does not evict anything.
+	 *
+	 * @param key
+	 *            of the entry
+	 * @param value
+	 *            of the entry
+	 */
+	public void put(K key, V value) {
+		final long weight = this.weigher.weigh(key, value);
+		final Stripe<K, V> stripe = this.stripeOf(key);
+		if (weight > stripe.maxBytes) {
+			return;
+		}
+
+		synchronized (stripe) {
+			final V old = stripe.entries.put(key, value);
+			if (old != null) {
+				stripe.bytes -= this.weigher.weigh(key, old);
+			}
+			stripe.bytes += weight;
+
+			final Iterator<Map.Entry<K, V>> eldest = stripe.entries.entrySet()
+					.iterator();
+			while ((stripe.entries.size() > stripe.maxEntries || stripe.bytes > stripe.maxBytes)
+					&& eldest.hasNext()) {
+				final Map.Entry<K, V> entry = eldest.next();
+				stripe.bytes -= this.weigher.weigh(entry.getKey(),
+						entry.getValue());
+				eldest.remove();
+				this.evictions.increment();
+			}
+		}
+	}
+
+	/**
+	 * Number of entries.
+	 *
+	 * @return number of cached entries
+	 */
+	public int size() {
+		int size = 0;
+		for (final Stripe<K, V> stripe : this.stripes) {
+			synchronized (stripe) {
+				size += stripe.entries.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Stripe of a key.
+	 *
+	 * @param key
+	 *            of an entry
+	 * @return stripe which holds the key
+	 */
+	private Stripe<K, V> stripeOf(K key) {
+		final int hash = key.hashCode();
+		return this.stripes[(hash ^ (hash >>> 16)) & (this.stripes.length - 1)];
+	}
+
+	/**
+	 * Summary of cache counters.
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format(
+				"BoundedCache[entries=%d/%d, bytes=%d/%d, stripes=%d, hits=%d, "
+						+ "misses=%d, evictions=%d, hitRate=%.1f%%]",
+				this.size(), this.maxEntries, this.getByteSize(),
+				this.maxBytes, this.stripes.length, this.getHitCount(),
+				this.getMissCount(), this.getEvictionCount(),
+				this.getHitRate() * 100);
+	}
+}
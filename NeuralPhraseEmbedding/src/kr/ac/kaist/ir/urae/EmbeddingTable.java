@@ -0,0 +1,325 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.urae;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * <p>
+ * Word embedding table, stored as a single contiguous row-major slab of
+ * (vocabulary size × dimension) values.
+ * </p>
+ * <p>
+ * The slab is either a heap array (when loaded from JSON) or a memory-mapped
+ * block of {@link ParameterStore}. Accessors in this class do not allocate,
+ * except {@link #getVectorOf(int)} which makes a copy.
+ * </p>
+ * <p>
+ * The slab can be stored in lower {@link Precision}, by
+ * {@link #convert(Precision)}. FLOAT32 slab has floats, and INT8 slab has
+ * bytes with a scale per row, which is (max absolute value of row) / 127.
+ * Values are converted back to double when read.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public final class EmbeddingTable {
+	/** Vocabulary of rows **/
+	private final Vocabulary vocabulary;
+	/** Precision of slab **/
+	private final Precision precision;
+	/** Contiguous embedding slab, if DOUBLE **/
+	private final DoubleBuffer slab;
+	/** Contiguous embedding slab, if FLOAT32 **/
+	private final FloatBuffer floats;
+	/** Contiguous embedding slab, if INT8 **/
+	private final byte[] bytes;
+	/** Scale of each row, if INT8 **/
+	private final float[] scales;
+	/** Dimension of each row **/
+	private final int dimension;
+
+	/**
+	 * Construct table over given slab.
+	 *
+	 * @param vocabulary
+	 *            of rows
+	 * @param slab
+	 *            of (vocabulary size × dimension) values, row-major.
+	 * @param dimension
+	 *            of each row
+	 */
+	EmbeddingTable(Vocabulary vocabulary, DoubleBuffer slab, int dimension) {
+		if (slab.capacity() != vocabulary.size() * dimension) {
+			throw new IllegalArgumentException(
+					"Slab size does not match with vocabulary");
+		}
+
+		this.vocabulary = vocabulary;
+		this.precision = Precision.DOUBLE;
+		this.slab = slab;
+		this.floats = null;
+		this.bytes = null;
+		this.scales = null;
+		this.dimension = dimension;
+	}
+
+	/**
+	 * Construct table over given FLOAT32 slab.
+	 *
+	 * @param vocabulary
+	 *            of rows
+	 * @param floats
+	 *            of (vocabulary size × dimension) values, row-major.
+	 * @param dimension
+	 *            of each row
+	 */
+	private EmbeddingTable(Vocabulary vocabulary, FloatBuffer floats,
+			int dimension) {
+		this.vocabulary = vocabulary;
+		this.precision = Precision.FLOAT32;
+		this.slab = null;
+		this.floats = floats;
+		this.bytes = null;
+		this.scales = null;
+		this.dimension = dimension;
+	}
+
+	/**
+	 * Construct table over given INT8 slab.
+	 *
+	 * @param vocabulary
+	 *            of rows
+	 * @param bytes
+	 *            of (vocabulary size × dimension) values, row-major.
+	 * @param scales
+	 *            of each row
+	 * @param dimension
+	 *            of each row
+	 */
+	private EmbeddingTable(Vocabulary vocabulary, byte[] bytes, float[] scales,
+			int dimension) {
+		this.vocabulary = vocabulary;
+		this.precision = Precision.INT8;
+		this.slab = null;
+		this.floats = null;
+		this.bytes = bytes;
+		this.scales = scales;
+		this.dimension = dimension;
+	}
+
+	/**
+	 * Make a copy of this table in given precision, on heap. INT8 rounds each
+	 * value to the nearest multiple of the row scale.
+	 *
+	 * @param target
+	 *            precision of the copy
+	 * @return converted table, or this if already in the precision.
+	 */
+	public EmbeddingTable convert(Precision target) {
+		if (target == this.precision) {
+			return this;
+		}
+
+		final int size = this.size();
+		final double[] row = new double[this.dimension];
+		switch (target) {
+		case FLOAT32:
+			final float[] floats = new float[size * this.dimension];
+			for (int r = 0; r < size; r++) {
+				this.copyRow(r, row, 0);
+				for (int i = 0; i < this.dimension; i++) {
+					floats[(r * this.dimension) + i] = (float) row[i];
+				}
+			}
+			return new EmbeddingTable(this.vocabulary,
+					FloatBuffer.wrap(floats), this.dimension);
+		case INT8:
+			final byte[] bytes = new byte[size * this.dimension];
+			final float[] scales = new float[size];
+			for (int r = 0; r < size; r++) {
+				this.copyRow(r, row, 0);
+				double max = 0;
+				for (int i = 0; i < this.dimension; i++) {
+					max = Math.max(max, Math.abs(row[i]));
+				}
+				scales[r] = (float) (max / 127);
+				for (int i = 0; i < this.dimension; i++) {
+					bytes[(r * this.dimension) + i] = (byte) (max == 0 ? 0
+							: Math.round(row[i] / scales[r]));
+				}
+			}
+			return new EmbeddingTable(this.vocabulary, bytes, scales,
+					this.dimension);
+		default:
+			final double[] doubles = new double[size * this.dimension];
+			for (int r = 0; r < size; r++) {
+				this.copyRow(r, doubles, r * this.dimension);
+			}
+			return new EmbeddingTable(this.vocabulary,
+					DoubleBuffer.wrap(doubles), this.dimension);
+		}
+	}
+
+	/**
+	 * Copy embedding of given row into array.
+	 *
+	 * @param row
+	 *            index of the word
+	 * @param dest
+	 *            to be copied into
+	 * @param offset
+	 *            of the destination array
+	 */
+	public void copyRow(int row, double[] dest, int offset) {
+		int index = this.offsetOf(row);
+		switch (this.precision) {
+		case FLOAT32:
+			for (int i = 0; i < this.dimension; i++) {
+				dest[offset + i] = this.floats.get(index++);
+			}
+			break;
+		case INT8:
+			final double scale = this.scales[row];
+			for (int i = 0; i < this.dimension; i++) {
+				dest[offset + i] = this.bytes[index++] * scale;
+			}
+			break;
+		default:
+			for (int i = 0; i < this.dimension; i++) {
+				dest[offset + i] = this.slab.get(index++);
+			}
+		}
+	}
+
+	/**
+	 * Returns an element of the slab.
+	 *
+	 * @param row
+	 *            index of the word
+	 * @param column
+	 *            index of the dimension
+	 * @return value
+	 */
+	public double get(int row, int column) {
+		final int index = this.offsetOf(row) + column;
+		switch (this.precision) {
+		case FLOAT32:
+			return this.floats.get(index);
+		case INT8:
+			return this.bytes[index] * (double) this.scales[row];
+		default:
+			return this.slab.get(index);
+		}
+	}
+
+	/**
+	 * Estimated bytes of the slab.
+	 *
+	 * @return size of slab in bytes, including scales of INT8.
+	 */
+	public long getBytes() {
+		final long values = (long) this.size() * this.dimension
+				* this.precision.getBytes();
+		return this.precision == Precision.INT8 ? values + (4L * this.size())
+				: values;
+	}
+
+	/**
+	 * Dimension of each embedding.
+	 *
+	 * @return dimension
+	 */
+	public int getDimension() {
+		return this.dimension;
+	}
+
+	/**
+	 * Precision of the slab.
+	 *
+	 * @return precision
+	 */
+	public Precision getPrecision() {
+		return this.precision;
+	}
+
+	/**
+	 * Returns read-only view of given row. If the slab is not in DOUBLE, this
+	 * is a view of a converted copy.
+	 *
+	 * @param row
+	 *            index of the word
+	 * @return DoubleBuffer of the row, with dimension elements.
+	 */
+	public DoubleBuffer getRow(int row) {
+		if (this.precision != Precision.DOUBLE) {
+			final double[] copy = new double[this.dimension];
+			this.copyRow(row, copy, 0);
+			return DoubleBuffer.wrap(copy).asReadOnlyBuffer();
+		}
+
+		final DoubleBuffer view = this.slab.asReadOnlyBuffer();
+		view.position(this.offsetOf(row));
+		view.limit(this.offsetOf(row) + this.dimension);
+		return view.slice();
+	}
+
+	/**
+	 * Returns copy of given row, as a column vector.
+	 *
+	 * @param row
+	 *            index of the word
+	 * @return SimpleMatrix of the row (dimension × 1).
+	 */
+	public SimpleMatrix getVectorOf(int row) {
+		final double[] data = new double[this.dimension];
+		this.copyRow(row, data, 0);
+		return SimpleMatrix.wrap(DenseMatrix64F.wrap(this.dimension, 1, data));
+	}
+
+	/**
+	 * Vocabulary of this table.
+	 *
+	 * @return vocabulary
+	 */
+	public Vocabulary getVocabulary() {
+		return this.vocabulary;
+	}
+
+	/**
+	 * Returns row index of given word.
+	 *
+	 * @param word
+	 *            to be found
+	 * @return row index, or -1 if not exists.
+	 */
+	public int indexOf(String word) {
+		return this.vocabulary.indexOf(word);
+	}
+
+	/**
+	 * Returns offset of given row in the slab.
+	 *
+	 * @param row
+	 *            index of the word
+	 * @return offset of the first element of the row.
+	 */
+	public int offsetOf(int row) {
+		return row * this.dimension;
+	}
+
+	/**
+	 * Returns number of rows.
+	 *
+	 * @return vocabulary size
+	 */
+	public int size() {
+		return this.vocabulary.size();
+	}
+}
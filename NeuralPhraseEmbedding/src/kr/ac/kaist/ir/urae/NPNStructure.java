@@ -0,0 +1,70 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.urae;
+
+import java.util.LinkedList;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * NPN structures of a sentence, with the phrase vector of the sentence. The
+ * vector is kept apart from {@link Result}s, so that it is available even if
+ * the sentence has no NPN structure.
+ *
+ * @author 김부근
+ *
+ */
+public final class NPNStructure {
+	/** NPN structures of sentence **/
+	private final LinkedList<Result> results;
+	/** Phrase vector of sentence, or null if not requested **/
+	private final SimpleMatrix sentMatx;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param results
+	 *            NPN structures of sentence
+	 * @param sentMatx
+	 *            phrase vector of sentence, or null if not requested
+	 */
+	public NPNStructure(LinkedList<Result> results, SimpleMatrix sentMatx) {
+		this.results = results;
+		this.sentMatx = sentMatx;
+	}
+
+	/**
+	 * Copy of this structure with copies of every vector. Cached structures
+	 * are copied when stored and when returned, since SimpleMatrix is mutable
+	 * and a caller may change what it is given.
+	 *
+	 * @return copy of this structure
+	 */
+	NPNStructure copy() {
+		final SimpleMatrix sent = Result.copyOf(this.sentMatx);
+		final LinkedList<Result> copied = new LinkedList<Result>();
+		for (final Result result : this.results) {
+			copied.add(result.copy(sent));
+		}
+		return new NPNStructure(copied, sent);
+	}
+
+	/**
+	 * Returns NPN structures of sentence.
+	 *
+	 * @return LinkedList of Result instances.
+	 */
+	public LinkedList<Result> getResults() {
+		return this.results;
+	}
+
+	/**
+	 * Returns Sentence's Word Embedding
+	 *
+	 * @return Phrase Embedding of Sentence, or null if not requested.
+	 */
+	public SimpleMatrix getMatrixOfSentence() {
+		return this.sentMatx;
+	}
+}
@@ -24,4 +24,69 @@ public class NeuralNetwork {
 
 		return vector;
 	}
+
+	/**
+	 * <p>
+	 * Compute URAE composition tanh(W1·c1 + W2·c2 + b1) of two child vectors
+	 * with a single pass over fused weight [W1 W2 b1], into given array
+	 * without any allocation.
+	 * </p>
+	 * <p>
+	 * Input x is the concatenation [c1; c2] of child vectors, and the bias is
+	 * the augmented last column of each row (multiplied by implicit 1). Two
+	 * rows are computed at once, so each element of x is loaded once per two
+	 * rows. Partial sums of c1 and c2 are kept separately, in the same order
+	 * with <code>tanh(W1.mult(c1).plus(W2.mult(c2)).plus(b1))</code> of EJML,
+	 * so the result is bit-compatible with it.
+	 * </p>
+	 *
+	 * @param fused
+	 *            row-major (dim × (2·dim + 1)) weight [W1 W2 b1]
+	 * @param x
+	 *            concatenated child vectors [c1; c2] (2·dim)
+	 * @param out
+	 *            array to store the result. Should not be x.
+	 * @param offset
+	 *            of the result in out
+	 * @param dim
+	 *            dimension of vectors
+	 */
+	static void compose(double[] fused, double[] x, double[] out, int offset,
+			int dim) {
+		final int stride = (2 * dim) + 1;
+		final double x0 = x[0], xd = x[dim];
+		int i = 0;
+
+		for (; i + 1 < dim; i += 2) {
+			final int r0 = i * stride, r1 = r0 + stride;
+			double s10 = fused[r0] * x0, s11 = fused[r1] * x0;
+			double s20 = fused[r0 + dim] * xd, s21 = fused[r1 + dim] * xd;
+			for (int j = 1; j < dim; j++) {
+				final double c1 = x[j];
+				s10 += fused[r0 + j] * c1;
+				s11 += fused[r1 + j] * c1;
+			}
+			for (int j = dim + 1; j < 2 * dim; j++) {
+				final double c2 = x[j];
+				s20 += fused[r0 + j] * c2;
+				s21 += fused[r1 + j] * c2;
+			}
+			out[offset + i] = Math.tanh((s10 + s20) + fused[r0 + 2 * dim]);
+			out[offset + i + 1] = Math.tanh((s11 + s21) + fused[r1 + 2 * dim]);
+		}
+
+		// Remaining row, if dimension is odd.
+		for (; i < dim; i++) {
+			final int r0 = i * stride;
+			double s1 = fused[r0] * x0;
+			double s2 = fused[r0 + dim] * xd;
+			for (int j = 1; j < dim; j++) {
+				s1 += fused[r0 + j] * x[j];
+			}
+			for (int j = dim + 1; j < 2 * dim; j++) {
+				s2 += fused[r0 + j] * x[j];
+			}
+			out[offset + i] = Math.tanh((s1 + s2) + fused[r0 + 2 * dim]);
+		}
+	}
 }
\ No newline at end of file
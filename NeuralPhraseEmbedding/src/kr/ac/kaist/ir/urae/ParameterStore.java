@@ -0,0 +1,406 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.urae;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+/**
+ * <p>
+ * Memory-mapped binary store of URAE parameters and word embeddings.
+ * </p>
+ * <p>
+ * The file consists of four blocks, all in little-endian byte order:
+ * </p>
+ * <ol>
+ * <li>Header: magic, version, bytes per element, vocabulary size, dimension,
+ * and offsets of the following blocks.</li>
+ * <li>Vocabulary table: for each row, UTF-8 length (unsigned short) and bytes
+ * of the word.</li>
+ * <li>Embedding block: (vocabulary size × dimension) values, row-major. Row
+ * <i>i</i> is the embedding of the <i>i</i>-th word in the vocabulary
+ * table.</li>
+ * <li>Weight block: W1 and W2 (dimension × dimension, row-major), then b1
+ * (dimension).</li>
+ * </ol>
+ * <p>
+ * Because the file is mapped read-only, the embeddings are not copied into
+ * heap, and JVMs on the same host share them through the page cache.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public final class ParameterStore {
+	/**
+	 * Convert JSON resources into a binary store.
+	 *
+	 * @param args
+	 *            [OUTPUT FILE] ([WORDS JSON] [PARAMS JSON]). If JSON files are
+	 *            not given, resources in the class path are used.
+	 */
+	public static void main(String[] args) {
+		if (args.length != 1 && args.length != 3) {
+			System.out
+					.println("USAGE: java -cp [JAR FILE] kr.ac.kaist.ir.urae.ParameterStore [OUTPUT FILE] ([WORDS JSON] [PARAMS JSON])");
+			return;
+		}
+
+		try {
+			final JsonObject words, params;
+			if (args.length == 3) {
+				words = ParameterStore.readJson(new FileInputStream(args[1]));
+				params = ParameterStore.readJson(new FileInputStream(args[2]));
+			} else {
+				words = ParameterStore.readJson(ClassLoader
+						.getSystemResourceAsStream(ParameterStore.WORDS_RESOURCE));
+				params = ParameterStore.readJson(ClassLoader
+						.getSystemResourceAsStream(ParameterStore.PARAMS_RESOURCE));
+			}
+
+			ParameterStore.write(new File(args[0]), words, params);
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Open binary store file and map it on memory.
+	 *
+	 * @param file
+	 *            to be opened
+	 * @return ParameterStore instance mapped on given file
+	 * @throws IOException
+	 *             when file cannot be read, or file is not a valid store.
+	 */
+	public static ParameterStore open(File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Store is too large to be mapped : "
+						+ file);
+			}
+
+			final MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			return new ParameterStore(buffer);
+		} finally {
+			// Mapping remains valid after the channel is closed.
+			raf.close();
+		}
+	}
+
+	/**
+	 * Write binary store file from JSON resources.
+	 *
+	 * @param file
+	 *            to be written
+	 * @param words
+	 *            JSON object of word embeddings, e.g. {"word":[Numbers...]}
+	 * @param params
+	 *            JSON object of parameters, e.g. {"W1":[[...]], "W2":[[...]],
+	 *            "b1":[[...]]}
+	 * @throws IOException
+	 *             when failed to write.
+	 */
+	public static void write(File file, JsonObject words, JsonObject params)
+			throws IOException {
+		final int size = words.size();
+		final int dim = params.getJsonArray("W1").size();
+
+		// Encode vocabulary first, to compute offsets of the blocks.
+		final byte[][] vocabulary = new byte[size][];
+		long vocabBytes = 0;
+		int row = 0;
+		for (final String word : words.keySet()) {
+			vocabulary[row] = word.getBytes(ParameterStore.UTF8);
+			if (vocabulary[row].length > 0xFFFF) {
+				throw new IOException("Word is too long : " + word);
+			}
+			vocabBytes += 2 + vocabulary[row].length;
+			row++;
+		}
+
+		final long vocabOffset = ParameterStore.HEADER_SIZE;
+		final long embeddingOffset = ParameterStore.align(vocabOffset
+				+ vocabBytes);
+		final long weightOffset = embeddingOffset
+				+ ((long) size * dim * ParameterStore.FLOAT64);
+
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(
+					ByteOrder.LITTLE_ENDIAN);
+
+			// Header
+			buffer.putInt(ParameterStore.MAGIC);
+			buffer.putInt(ParameterStore.VERSION);
+			buffer.putInt(ParameterStore.FLOAT64);
+			buffer.putInt(size);
+			buffer.putInt(dim);
+			buffer.putInt(0);
+			buffer.putLong(vocabOffset);
+			buffer.putLong(embeddingOffset);
+			buffer.putLong(weightOffset);
+
+			// Vocabulary table
+			for (final byte[] word : vocabulary) {
+				ParameterStore.ensure(channel, buffer, 2 + word.length);
+				buffer.putShort((short) word.length);
+				buffer.put(word);
+			}
+			while (channel.position() + buffer.position() < embeddingOffset) {
+				ParameterStore.ensure(channel, buffer, 1);
+				buffer.put((byte) 0);
+			}
+
+			// Embedding block, in the same order with vocabulary.
+			for (final String word : words.keySet()) {
+				final JsonArray vector = words.getJsonArray(word);
+				if (vector.size() != dim) {
+					throw new IOException("Dimension of word '" + word
+							+ "' is not " + dim);
+				}
+				for (int i = 0; i < dim; i++) {
+					ParameterStore.ensure(channel, buffer,
+							ParameterStore.FLOAT64);
+					buffer.putDouble(vector.getJsonNumber(i).doubleValue());
+				}
+			}
+
+			// Weight block
+			ParameterStore.putMatrix(channel, buffer,
+					params.getJsonArray("W1"), dim, dim);
+			ParameterStore.putMatrix(channel, buffer,
+					params.getJsonArray("W2"), dim, dim);
+			ParameterStore.putMatrix(channel, buffer,
+					params.getJsonArray("b1"), dim, 1);
+
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Round up given offset to the multiple of element size.
+	 *
+	 * @param offset
+	 *            to be aligned
+	 * @return aligned offset
+	 */
+	private static long align(long offset) {
+		final long mask = ParameterStore.FLOAT64 - 1;
+		return (offset + mask) & ~mask;
+	}
+
+	/**
+	 * Flush buffer into channel, if buffer has no room for given bytes.
+	 *
+	 * @param channel
+	 *            to be written
+	 * @param buffer
+	 *            to be flushed
+	 * @param bytes
+	 *            required room
+	 * @throws IOException
+	 *             when failed to write.
+	 */
+	private static void ensure(FileChannel channel, ByteBuffer buffer,
+			int bytes) throws IOException {
+		if (buffer.remaining() < bytes) {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Write two dimensional JSON array (array of rows) in row-major order.
+	 *
+	 * @param channel
+	 *            to be written
+	 * @param buffer
+	 *            for writing
+	 * @param array
+	 *            to be written
+	 * @param rows
+	 *            expected number of rows
+	 * @param cols
+	 *            expected number of columns
+	 * @throws IOException
+	 *             when failed to write, or dimension is not matched.
+	 */
+	private static void putMatrix(FileChannel channel, ByteBuffer buffer,
+			JsonArray array, int rows, int cols) throws IOException {
+		if (array.size() != rows) {
+			throw new IOException("Matrix should have " + rows + " rows");
+		}
+
+		for (int r = 0; r < rows; r++) {
+			final JsonArray row = array.getJsonArray(r);
+			if (row.size() != cols) {
+				throw new IOException("Matrix should have " + cols
+						+ " columns");
+			}
+			for (int c = 0; c < cols; c++) {
+				ParameterStore.ensure(channel, buffer, ParameterStore.FLOAT64);
+				buffer.putDouble(row.getJsonNumber(c).doubleValue());
+			}
+		}
+	}
+
+	/**
+	 * Read JSON object from stream.
+	 *
+	 * @param stream
+	 *            to be read
+	 * @return JsonObject read.
+	 */
+	private static JsonObject readJson(InputStream stream) {
+		final JsonReader reader = Json.createReader(stream);
+		try {
+			return reader.readObject();
+		} finally {
+			reader.close();
+		}
+	}
+
+	/** Resource path of word embeddings **/
+	static final String WORDS_RESOURCE = "kr/ac/kaist/ir/resource/words.json";
+	/** Resource path of RAE parameters **/
+	static final String PARAMS_RESOURCE = "kr/ac/kaist/ir/resource/params.json";
+	/** Magic number of the store, "NPE1" **/
+	private static final int MAGIC = 0x3145504E;
+	/** Version of the store format **/
+	private static final int VERSION = 1;
+	/** Bytes per element (double precision) **/
+	private static final int FLOAT64 = 8;
+	/** Size of header in bytes **/
+	private static final int HEADER_SIZE = 48;
+	/** Charset of vocabulary table **/
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Dimension of embeddings **/
+	private final int dimension;
+	/** Embedding table over the mapped embedding block **/
+	private final EmbeddingTable embeddings;
+	/** View of weight block **/
+	private final DoubleBuffer weights;
+
+	/**
+	 * Read header and vocabulary of given mapped buffer.
+	 *
+	 * @param buffer
+	 *            mapped on store file
+	 * @throws IOException
+	 *             when buffer is not a valid store.
+	 */
+	private ParameterStore(ByteBuffer buffer) throws IOException {
+		if (buffer.capacity() < ParameterStore.HEADER_SIZE
+				|| buffer.getInt(0) != ParameterStore.MAGIC) {
+			throw new IOException("Not a parameter store");
+		}
+		if (buffer.getInt(4) != ParameterStore.VERSION
+				|| buffer.getInt(8) != ParameterStore.FLOAT64) {
+			throw new IOException("Unsupported store version "
+					+ buffer.getInt(4));
+		}
+
+		final int size = buffer.getInt(12);
+		this.dimension = buffer.getInt(16);
+		final int vocabOffset = (int) buffer.getLong(24);
+		final int embeddingOffset = (int) buffer.getLong(32);
+		final int weightOffset = (int) buffer.getLong(40);
+
+		// Read vocabulary table.
+		final String[] words = new String[size];
+		final ByteBuffer table = buffer.duplicate();
+		table.order(ByteOrder.LITTLE_ENDIAN);
+		table.position(vocabOffset);
+		final byte[] bytes = new byte[0xFFFF];
+		for (int row = 0; row < size; row++) {
+			final int length = table.getShort() & 0xFFFF;
+			table.get(bytes, 0, length);
+			words[row] = new String(bytes, 0, length, ParameterStore.UTF8);
+		}
+
+		this.embeddings = new EmbeddingTable(new Vocabulary(words),
+				ParameterStore.slice(buffer, embeddingOffset, size
+						* this.dimension), this.dimension);
+		this.weights = ParameterStore.slice(buffer, weightOffset,
+				(2 * this.dimension * this.dimension) + this.dimension);
+	}
+
+	/**
+	 * Make a view of double values in the buffer.
+	 *
+	 * @param buffer
+	 *            original buffer
+	 * @param offset
+	 *            in bytes
+	 * @param length
+	 *            number of doubles
+	 * @return DoubleBuffer view
+	 */
+	private static DoubleBuffer slice(ByteBuffer buffer, int offset, int length) {
+		final ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		view.limit(offset + (length * ParameterStore.FLOAT64));
+		return view.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+	}
+
+	/**
+	 * Dimension of word embedding, which is also dimension of phrase vector.
+	 *
+	 * @return dimension
+	 */
+	public int getDimension() {
+		return this.dimension;
+	}
+
+	/**
+	 * Copy weight block into array. W1 occupies [0, d*d), W2 occupies [d*d,
+	 * 2*d*d), and b1 occupies [2*d*d, 2*d*d+d).
+	 *
+	 * @return array of weight block
+	 */
+	double[] copyWeights() {
+		final double[] data = new double[this.weights.capacity()];
+		this.weights.duplicate().get(data);
+		return data;
+	}
+
+	/**
+	 * Embedding table, which reads the mapped embedding block directly.
+	 *
+	 * @return EmbeddingTable of the store
+	 */
+	public EmbeddingTable getEmbeddings() {
+		return this.embeddings;
+	}
+}
@@ -3,7 +3,10 @@
  */
 package kr.ac.kaist.ir.urae;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.json.Json;
@@ -14,39 +17,93 @@ import javax.json.JsonReader;
 import org.ejml.simple.SimpleMatrix;
 
 /**
+ * Trained parameters and word embeddings of URAE.
+ * <p>
+ * Once constructed, an instance is never modified. So every read accessor is
+ * thread-safe without locking, including word lookups.
+ * </p>
+ *
  * @author 김부근
  *
  */
 public class Parameters {
+	/**
+	 * Lazy holder of singleton instance. JVM initializes this class exactly
+	 * once, on the first call of {@link Parameters#getInstance()}, and
+	 * publishes the instance safely to every thread.
+	 */
+	private static final class Holder {
+		/** Singleton instance **/
+		private static final Parameters INSTANCE = new Parameters(
+				Precision.getConfigured());
+	}
+
 	/**
 	 * <p>
 	 * Get instance of Parameters. Automatically load parameters on singleton
 	 * construction.
 	 * </p>
+	 * <p>
+	 * This is thread-safe. Parameters are loaded only once, even when many
+	 * threads call this at the same time. Precision of the instance is set by
+	 * {@value Precision#PROPERTY}.
+	 * </p>
 	 *
 	 * @return singleton instance of Parameters class.
 	 */
 	public static Parameters getInstance() {
-		if (Parameters.instance == null) {
-			Parameters.instance = new Parameters();
-		}
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Load another instance of Parameters in given precision. This loads
+	 * parameters again, so use {@link #getInstance()} unless you need to
+	 * compare precisions.
+	 *
+	 * @param precision
+	 *            of parameters and word embeddings
+	 * @return new instance of Parameters class.
+	 */
+	public static Parameters load(Precision precision) {
+		return new Parameters(precision);
+	}
 
-		return Parameters.instance;
+	/**
+	 * Round every element of matrix to float.
+	 *
+	 * @param matrix
+	 *            to be rounded
+	 * @return SimpleMatrix of rounded elements.
+	 */
+	private static SimpleMatrix roundToFloat(SimpleMatrix matrix) {
+		final SimpleMatrix rounded = matrix.copy();
+		for (int i = rounded.getNumElements() - 1; i >= 0; i--) {
+			rounded.set(i, (float) rounded.get(i));
+		}
+		return rounded;
 	}
 
 	/** Constant denotes UNKNOWN word **/
 	private static final String UNKNOWN = "*UNKNOWN*";
-	/** Singleton instance **/
-	private static volatile Parameters instance;
+	/**
+	 * System property for the path of binary parameter store. If set,
+	 * parameters are loaded from {@link ParameterStore} instead of JSON
+	 * resources.
+	 **/
+	public static final String STORE_PROPERTY = "npe.store";
 
 	/** Logger **/
 	private final Logger logger = Logger.getAnonymousLogger();
 	/** Neural Network Matrix Parameters in (Socher et al., NIPS 2011). **/
 	private SimpleMatrix W1, W2, b1;
-	/** Cache for mapping : word \to embedding **/
-	private HashMap<String, SimpleMatrix> wordCache;
-	/** Stored resource for whole word embedding (50002 items). **/
-	private JsonObject words;
+	/** Fused row-major matrix [W1 W2 b1] **/
+	private double[] fused;
+	/** Whole word embedding (50002 items), as a contiguous table. **/
+	private EmbeddingTable embeddings;
+	/** Row index of UNKNOWN word **/
+	private int unknown;
+	/** Precision of parameters **/
+	private final Precision precision;
 
 	/**
 	 * <p>
@@ -54,13 +111,23 @@ public class Parameters {
 	 * parameters.
 	 * </p>
 	 *
+	 * @param precision
+	 *            of parameters and word embeddings
 	 */
-	private Parameters() {
-		this.logger.info("LOADING RNN PARAMETERS...");
-		this.loadParams();
-		this.logger.info("LOADING WORD EMBEDDINGS...");
-		this.loadWordMap();
-		this.logger.info("DONE.");
+	private Parameters(Precision precision) {
+		this.precision = precision;
+		this.load();
+		if (precision != Precision.DOUBLE) {
+			this.logger.info("CONVERTING TO " + precision + "...");
+			// Weights are small; only embeddings are quantized in INT8.
+			this.W1 = Parameters.roundToFloat(this.W1);
+			this.W2 = Parameters.roundToFloat(this.W2);
+			this.b1 = Parameters.roundToFloat(this.b1);
+			this.setEmbeddings(this.embeddings.convert(precision));
+		}
+		this.fuseParams();
+		this.logger.info("DONE. Embeddings use "
+				+ (this.embeddings.getBytes() >> 20) + "MB.");
 	}
 
 	/**
@@ -93,28 +160,21 @@ public class Parameters {
 	}
 
 	/**
-	 * <p>
-	 * Construct a column vector from one dimensional JSON array.
-	 * </p>
-	 * <p>
-	 * JSON array formed as array of rows. That is, [1, 2, 3, 4] is a matrix
-	 * with a column (1 2 3 4).
-	 * </p>
-	 *
-	 * @param array
-	 *            to be converted to SimpleMatrix
-	 * @return converted SimpleMatrix.
+	 * Precompute fused matrix [W1 W2 b1] for single pass composition.
 	 */
-	private SimpleMatrix constructVector(JsonArray array) {
-		final int rows = array.size();
-		final double[][] data = new double[rows][1];
+	private void fuseParams() {
+		final int dim = this.W1.numRows();
+		final int stride = (2 * dim) + 1;
+		this.fused = new double[dim * stride];
 
-		// read rows in the array, store it into the matrix.
-		for (int r = 0; r < rows; r++) {
-			data[r][0] = array.getJsonNumber(r).doubleValue();
+		for (int r = 0; r < dim; r++) {
+			final int offset = r * stride;
+			for (int c = 0; c < dim; c++) {
+				this.fused[offset + c] = this.W1.get(r, c);
+				this.fused[offset + dim + c] = this.W2.get(r, c);
+			}
+			this.fused[offset + (2 * dim)] = this.b1.get(r, 0);
 		}
-
-		return new SimpleMatrix(data);
 	}
 
 	/**
@@ -126,6 +186,17 @@ public class Parameters {
 		return this.b1;
 	}
 
+	/**
+	 * Pass fused matrix [W1 W2 b1], with b1 as augmented column. That is,
+	 * [W1 W2 b1]·[c1; c2; 1] = W1·c1 + W2·c2 + b1.
+	 *
+	 * @return row-major array of (d × (2d + 1)) matrix. Should not be
+	 *         modified.
+	 **/
+	public double[] getFusedWeights() {
+		return this.fused;
+	}
+
 	/**
 	 * Pass Trained W1 (parameter of word1) matrix of (Socher et al., NIPS 2011)
 	 *
@@ -144,6 +215,38 @@ public class Parameters {
 		return this.W2;
 	}
 
+	/**
+	 * Returns the word embedding table.
+	 *
+	 * @return EmbeddingTable of whole words
+	 **/
+	public EmbeddingTable getEmbeddingTable() {
+		return this.embeddings;
+	}
+
+	/**
+	 * Precision of parameters and word embeddings.
+	 *
+	 * @return precision
+	 */
+	public Precision getPrecision() {
+		return this.precision;
+	}
+
+	/**
+	 * Returns row index of given word in the embedding table. If word does
+	 * not exists in the mapping, returns index of "*UNKNOWN*" word (by
+	 * default).
+	 *
+	 * @param word
+	 *            to be found in word embedding map
+	 * @return row index of the word
+	 **/
+	public int getWordIndexOf(String word) {
+		final int row = this.embeddings.indexOf(word.toLowerCase());
+		return row < 0 ? this.unknown : row;
+	}
+
 	/**
 	 * Returns a word embedding vector of given word. If word does not exists in
 	 * the mapping, returns "*UNKNOWN*" word embedding (by default).
@@ -151,23 +254,34 @@ public class Parameters {
 	 * @param word
 	 *            to be found in word embedding map
 	 * @return SimpleMatrix representing word (100-dimension <b>column
-	 *         vector</b>)
+	 *         vector</b>). This is a copy, so modifying it does not affect the
+	 *         embedding table.
 	 **/
 	public SimpleMatrix getWordVectorOf(String word) {
-		word = word.toLowerCase();
-		if (this.wordCache.containsKey(word)) {
-			// if it is found in the cache, return.
-			return this.wordCache.get(word);
-		} else if (this.words.containsKey(word)) {
-			// if it is found not in cache but in entire embedding set, convert,
-			// store and return.
-			this.wordCache.put(word,
-					this.constructVector(this.words.getJsonArray(word)));
-			return this.wordCache.get(word);
-		} else {
-			// otherwise return UNKNOWN.
-			return this.wordCache.get(Parameters.UNKNOWN);
+		return this.embeddings.getVectorOf(this.getWordIndexOf(word));
+	}
+
+	/**
+	 * Load parameters and word embeddings in DOUBLE, from the parameter store
+	 * if set, or from JSON resources.
+	 */
+	private void load() {
+		final String path = System.getProperty(Parameters.STORE_PROPERTY);
+		if (path != null) {
+			try {
+				this.logger.info("MAPPING PARAMETER STORE " + path + "...");
+				this.loadStore(new File(path));
+				return;
+			} catch (final IOException e) {
+				this.logger.log(Level.WARNING,
+						"Failed to map parameter store. Fall back to JSON.", e);
+			}
 		}
+
+		this.logger.info("LOADING RNN PARAMETERS...");
+		this.loadParams();
+		this.logger.info("LOADING WORD EMBEDDINGS...");
+		this.loadWordMap();
 	}
 
 	/**
@@ -175,9 +289,8 @@ public class Parameters {
 	 *
 	 */
 	private void loadParams() {
-		final JsonReader reader = Json
-				.createReader(ClassLoader
-						.getSystemResourceAsStream("kr/ac/kaist/ir/resource/params.json"));
+		final JsonReader reader = Json.createReader(ClassLoader
+				.getSystemResourceAsStream(ParameterStore.PARAMS_RESOURCE));
 		final JsonObject obj = reader.readObject();
 
 		this.W1 = this.constructMatrix(obj.getJsonArray("W1"));
@@ -188,20 +301,74 @@ public class Parameters {
 
 	/**
 	 * Load normalized Word embedding of (Collobert & Weston, 2008) in (Socher
-	 * et al, NIPS 2011).
+	 * et al, NIPS 2011). Embeddings are copied into a single array, and JSON
+	 * object is discarded after loading.
 	 *
 	 */
 	private void loadWordMap() {
-		final JsonReader reader = Json
-				.createReader(ClassLoader
-						.getSystemResourceAsStream("kr/ac/kaist/ir/resource/words.json"));
-		// Store the words as JSON object. We convert it on demand.
-		this.words = reader.readObject();
-		this.wordCache = new HashMap<String, SimpleMatrix>();
-
-		// Store the UNKNOWN word for the convenience.
-		this.wordCache.put(Parameters.UNKNOWN, this.constructVector(this.words
-				.getJsonArray(Parameters.UNKNOWN)));
+		final JsonReader reader = Json.createReader(ClassLoader
+				.getSystemResourceAsStream(ParameterStore.WORDS_RESOURCE));
+		final JsonObject words = reader.readObject();
 		reader.close();
+
+		final int size = words.size();
+		final int dim = words.getJsonArray(Parameters.UNKNOWN).size();
+		final String[] vocabulary = new String[size];
+		final double[] slab = new double[size * dim];
+
+		int row = 0;
+		for (final String word : words.keySet()) {
+			final JsonArray vector = words.getJsonArray(word);
+			final int offset = row * dim;
+			for (int i = 0; i < dim; i++) {
+				slab[offset + i] = vector.getJsonNumber(i).doubleValue();
+			}
+			vocabulary[row++] = word;
+		}
+
+		this.setEmbeddings(new EmbeddingTable(new Vocabulary(vocabulary),
+				DoubleBuffer.wrap(slab), dim));
+	}
+
+	/**
+	 * Load parameters and word embeddings from memory-mapped binary store.
+	 * Only parameters are copied into heap; embeddings are read from the
+	 * mapped file directly.
+	 *
+	 * @param file
+	 *            of binary store, generated by {@link ParameterStore}.
+	 * @throws IOException
+	 *             when failed to map the store.
+	 */
+	private void loadStore(File file) throws IOException {
+		final ParameterStore mapped = ParameterStore.open(file);
+		final int dim = mapped.getDimension();
+		if (mapped.getEmbeddings().indexOf(Parameters.UNKNOWN) < 0) {
+			throw new IOException("Store does not contain " + Parameters.UNKNOWN);
+		}
+
+		final double[] weights = mapped.copyWeights();
+		final double[] w1 = new double[dim * dim];
+		final double[] w2 = new double[dim * dim];
+		final double[] b = new double[dim];
+		System.arraycopy(weights, 0, w1, 0, w1.length);
+		System.arraycopy(weights, w1.length, w2, 0, w2.length);
+		System.arraycopy(weights, w1.length + w2.length, b, 0, b.length);
+
+		this.W1 = new SimpleMatrix(dim, dim, true, w1);
+		this.W2 = new SimpleMatrix(dim, dim, true, w2);
+		this.b1 = new SimpleMatrix(dim, 1, true, b);
+		this.setEmbeddings(mapped.getEmbeddings());
+	}
+
+	/**
+	 * Set embedding table, and store the UNKNOWN word for the convenience.
+	 *
+	 * @param table
+	 *            of word embeddings
+	 */
+	private void setEmbeddings(EmbeddingTable table) {
+		this.embeddings = table;
+		this.unknown = table.indexOf(Parameters.UNKNOWN);
 	}
 }
@@ -0,0 +1,78 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.urae;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * <p>
+ * Thrown when a sentence is not parsed within the limits of
+ * {@link StanfordWrapper}: it has too many tokens, or its parse did not finish
+ * in time.
+ * </p>
+ * <p>
+ * The exception carries a flat tree of the tokens, which callers may encode
+ * instead of the parse. URAE associates children of a node from the right, so
+ * the flat tree is encoded as a right-branching tree.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public class ParseLimitException extends RuntimeException {
+	/**
+	 * Limit which was exceeded.
+	 */
+	public enum Reason {
+		/** Sentence has more tokens than the limit **/
+		TOO_LONG,
+		/** Parse did not finish before the deadline **/
+		TIMEOUT
+	}
+
+	/** Serial version UID **/
+	private static final long serialVersionUID = -2951364180273467182L;
+
+	/** Limit which was exceeded **/
+	private final Reason reason;
+	/** Flat tree of the tokens **/
+	private final transient Tree fallback;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param reason
+	 *            limit which was exceeded
+	 * @param message
+	 *            detail message
+	 * @param fallback
+	 *            flat tree of the tokens
+	 * @param cause
+	 *            failure of the parser, or null
+	 */
+	public ParseLimitException(Reason reason, String message, Tree fallback,
+			Throwable cause) {
+		super(message, cause);
+		this.reason = reason;
+		this.fallback = fallback;
+	}
+
+	/**
+	 * Flat tree of the tokens, to be encoded instead of the parse.
+	 *
+	 * @return tree of <tt>(ROOT (X (XX w1) (XX w2) ...))</tt> form
+	 */
+	public Tree getFallbackTree() {
+		return this.fallback;
+	}
+
+	/**
+	 * Limit which was exceeded.
+	 *
+	 * @return reason
+	 */
+	public Reason getReason() {
+		return this.reason;
+	}
+}
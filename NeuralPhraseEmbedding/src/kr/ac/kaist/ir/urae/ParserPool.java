@@ -0,0 +1,308 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.urae;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
+
+/**
+ * <p>
+ * Bounded pool of {@link LexicalizedParser} copies. A thread borrows a parser,
+ * parses, and returns it, so that parsing runs in parallel up to the size of
+ * the pool.
+ * </p>
+ * <p>
+ * Copies are made lazily by
+ * {@link LexicalizedParser#copyLexicalizedParser(LexicalizedParser)}, only
+ * when every existing copy is in use. Copies share the reranker of the
+ * prototype, so every member gives the same parse. The pool also records
+ * wait time and utilization.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public final class ParserPool {
+	/**
+	 * System property for the size of the pool. Default is the number of
+	 * available processors.
+	 **/
+	public static final String SIZE_PROPERTY = "npe.parser.pool";
+
+	/**
+	 * Returns configured size of the pool.
+	 *
+	 * @return value of {@value #SIZE_PROPERTY}, or number of available
+	 *         processors if not set.
+	 */
+	public static int getConfiguredSize() {
+		return Math.max(1, Integer.getInteger(ParserPool.SIZE_PROPERTY, Runtime
+				.getRuntime().availableProcessors()));
+	}
+
+	/** Parser to be copied **/
+	private final LexicalizedParser prototype;
+	/** Idle parsers **/
+	private final BlockingQueue<LexicalizedParser> idle;
+	/** Maximum number of parsers **/
+	private final int capacity;
+	/** Number of parsers made so far **/
+	private final AtomicInteger created = new AtomicInteger();
+	/** Number of borrows **/
+	private final AtomicLong borrows = new AtomicLong();
+	/** Number of borrows which had to wait **/
+	private final AtomicLong waits = new AtomicLong();
+	/** Sum of waiting time, in nanoseconds **/
+	private final AtomicLong waitNanos = new AtomicLong();
+	/** Maximum waiting time, in nanoseconds **/
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	/** Lock for utilization accounting **/
+	private final Object accounting = new Object();
+	/** Number of parsers in use **/
+	private int inUse;
+	/** Integral of inUse over time, in nanoseconds **/
+	private long busyNanos;
+	/** Last time when inUse changed **/
+	private long lastChange;
+	/** Time when pool was created **/
+	private final long startTime;
+
+	/**
+	 * Construct a pool with given parser as the first member.
+	 *
+	 * @param prototype
+	 *            parser to be copied.
+	 * @param capacity
+	 *            maximum number of parsers.
+	 */
+	public ParserPool(LexicalizedParser prototype, int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity should be positive");
+		}
+
+		this.prototype = prototype;
+		this.capacity = capacity;
+		this.idle = new ArrayBlockingQueue<LexicalizedParser>(capacity);
+		this.idle.add(prototype);
+		this.created.set(1);
+		this.startTime = this.lastChange = System.nanoTime();
+	}
+
+	/**
+	 * Update utilization with the change of parsers in use.
+	 *
+	 * @param delta
+	 *            +1 on borrow, -1 on release
+	 */
+	private void account(int delta) {
+		final long now = System.nanoTime();
+		synchronized (this.accounting) {
+			this.busyNanos += this.inUse * (now - this.lastChange);
+			this.lastChange = now;
+			this.inUse += delta;
+		}
+	}
+
+	/**
+	 * Borrow a parser. If every parser is in use and the pool is full, wait
+	 * until some parser is returned.
+	 *
+	 * <b>Borrowed parser must be returned by {@link #release(LexicalizedParser)}
+	 * .</b>
+	 *
+	 * @return parser for exclusive use.
+	 * @throws InterruptedException
+	 *             when interrupted while waiting.
+	 */
+	public LexicalizedParser borrow() throws InterruptedException {
+		return this.take(-1);
+	}
+
+	/**
+	 * Borrow a parser, waiting at most the given time.
+	 *
+	 * <b>Borrowed parser must be returned by {@link #release(LexicalizedParser)}
+	 * .</b>
+	 *
+	 * @param timeout
+	 *            maximum time to wait
+	 * @param unit
+	 *            of timeout
+	 * @return parser for exclusive use, or null if no parser is returned in
+	 *         time.
+	 * @throws InterruptedException
+	 *             when interrupted while waiting.
+	 */
+	public LexicalizedParser borrow(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return this.take(Math.max(0, unit.toNanos(timeout)));
+	}
+
+	/**
+	 * Return borrowed parser to the pool.
+	 *
+	 * @param parser
+	 *            borrowed by {@link #borrow()}
+	 */
+	public void release(LexicalizedParser parser) {
+		this.account(-1);
+		this.idle.add(parser);
+	}
+
+	/**
+	 * Average waiting time of borrows which had to wait.
+	 *
+	 * @return average waiting time in milliseconds
+	 */
+	public double getAverageWaitMillis() {
+		final long count = this.waits.get();
+		return count == 0 ? 0 : (this.waitNanos.get() / 1e6) / count;
+	}
+
+	/**
+	 * Number of borrows so far.
+	 *
+	 * @return borrow count
+	 */
+	public long getBorrowCount() {
+		return this.borrows.get();
+	}
+
+	/**
+	 * Maximum number of parsers.
+	 *
+	 * @return capacity
+	 */
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * Number of parsers made so far.
+	 *
+	 * @return number of parsers
+	 */
+	public int getCreatedCount() {
+		return this.created.get();
+	}
+
+	/**
+	 * Number of parsers currently in use.
+	 *
+	 * @return number of borrowed parsers
+	 */
+	public int getInUseCount() {
+		synchronized (this.accounting) {
+			return this.inUse;
+		}
+	}
+
+	/**
+	 * Maximum waiting time of a borrow.
+	 *
+	 * @return maximum waiting time in milliseconds
+	 */
+	public double getMaxWaitMillis() {
+		return this.maxWaitNanos.get() / 1e6;
+	}
+
+	/**
+	 * Ratio of parser time in use since the pool was created, i.e. average
+	 * number of parsers in use divided by capacity.
+	 *
+	 * @return utilization between 0 and 1
+	 */
+	public double getUtilization() {
+		final long now = System.nanoTime();
+		synchronized (this.accounting) {
+			final long busy = this.busyNanos
+					+ (this.inUse * (now - this.lastChange));
+			final long elapsed = now - this.startTime;
+			return elapsed == 0 ? 0 : (double) busy
+					/ ((double) elapsed * this.capacity);
+		}
+	}
+
+	/**
+	 * Number of borrows which had to wait.
+	 *
+	 * @return wait count
+	 */
+	public long getWaitCount() {
+		return this.waits.get();
+	}
+
+	/**
+	 * Summary of pool metrics.
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format(
+				"ParserPool[size=%d/%d, inUse=%d, borrows=%d, waits=%d, "
+						+ "avgWait=%.2fms, maxWait=%.2fms, utilization=%.1f%%]",
+				this.getCreatedCount(), this.capacity, this.getInUseCount(),
+				this.getBorrowCount(), this.getWaitCount(),
+				this.getAverageWaitMillis(), this.getMaxWaitMillis(),
+				this.getUtilization() * 100);
+	}
+
+	/**
+	 * Take an idle parser, or make a new copy if the pool is not full.
+	 *
+	 * @param timeoutNanos
+	 *            maximum time to wait, or negative to wait forever
+	 * @return parser, or null if timed out.
+	 * @throws InterruptedException
+	 *             when interrupted while waiting.
+	 */
+	private LexicalizedParser take(long timeoutNanos)
+			throws InterruptedException {
+		LexicalizedParser parser = this.idle.poll();
+
+		// Make a new copy if pool is not full.
+		while (parser == null) {
+			final int count = this.created.get();
+			if (count >= this.capacity) {
+				break;
+			}
+			if (this.created.compareAndSet(count, count + 1)) {
+				parser = LexicalizedParser
+						.copyLexicalizedParser(this.prototype);
+				// Copy does not carry the SU-RNN reranker. It keeps no state
+				// between queries, so copies share the one of prototype.
+				parser.reranker = this.prototype.reranker;
+			}
+		}
+
+		if (parser == null) {
+			final long begin = System.nanoTime();
+			parser = timeoutNanos < 0 ? this.idle.take() : this.idle.poll(
+					timeoutNanos, TimeUnit.NANOSECONDS);
+			final long waited = System.nanoTime() - begin;
+
+			this.waits.incrementAndGet();
+			this.waitNanos.addAndGet(waited);
+			long max;
+			while ((max = this.maxWaitNanos.get()) < waited
+					&& !this.maxWaitNanos.compareAndSet(max, waited)) {
+				// retry until maximum is updated.
+			}
+			if (parser == null) {
+				return null;
+			}
+		}
+
+		this.borrows.incrementAndGet();
+		this.account(1);
+		return parser;
+	}
+}
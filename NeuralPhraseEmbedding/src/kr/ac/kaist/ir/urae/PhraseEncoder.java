@@ -0,0 +1,369 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.urae;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.simple.SimpleMatrix;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * <p>
+ * URAE phrase encoder of (Socher et al., NIPS 2011) over parse trees.
+ * </p>
+ * <p>
+ * Intermediate vectors are computed into per-thread scratch buffers, so
+ * encoding a tree allocates only its output vector. An instance can be shared
+ * by many threads.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public final class PhraseEncoder {
+	/**
+	 * Per-thread scratch buffers. Each depth of the tree has its own frame,
+	 * since a frame is in use while its children are encoded. A frame holds
+	 * two concatenation buffers [c1; c2], used alternately: composition reads
+	 * one and writes into the c2 part of the other.
+	 */
+	private static final class Workspace {
+		/** Frames by depth. **/
+		private final ArrayList<double[][]> frames = new ArrayList<double[][]>();
+		/** Builder for subtree signatures **/
+		private final StringBuilder builder = new StringBuilder();
+		/** Dimension of vectors **/
+		private final int dim;
+
+		/**
+		 * Construct empty workspace.
+		 *
+		 * @param dim
+		 *            dimension of vectors
+		 */
+		Workspace(int dim) {
+			this.dim = dim;
+		}
+
+		/**
+		 * Returns frame of given depth. Allocates it on first use only.
+		 *
+		 * @param depth
+		 *            of the node
+		 * @return frame of two concatenation buffers
+		 */
+		double[][] frame(int depth) {
+			while (this.frames.size() <= depth) {
+				this.frames.add(new double[2][2 * this.dim]);
+			}
+			return this.frames.get(depth);
+		}
+	}
+
+	/**
+	 * System property for maximum number of subtrees in the subtree cache.
+	 * The cache is disabled if this is not set or 0.
+	 **/
+	public static final String SUBTREE_CACHE_PROPERTY = "npe.cache.subtrees";
+	/**
+	 * System property for maximum estimated bytes of the subtree cache.
+	 * Default is 64MB.
+	 **/
+	public static final String SUBTREE_CACHE_BYTES_PROPERTY = "npe.cache.subtrees.bytes";
+	/**
+	 * System property for minimum number of words of subtrees looked up in
+	 * the subtree cache. Smaller subtrees are computed without the cache,
+	 * which is cheaper than a lookup. Default is 3.
+	 **/
+	public static final String SUBTREE_MIN_WORDS_PROPERTY = "npe.cache.subtrees.minwords";
+
+	/**
+	 * Make subtree cache, if configured.
+	 *
+	 * @param dim
+	 *            dimension of phrase vectors
+	 * @return BoundedCache of subtree vectors, or null if disabled.
+	 */
+	public static BoundedCache<String, double[]> createSubtreeCache(
+			final int dim) {
+		final int entries = Integer.getInteger(
+				PhraseEncoder.SUBTREE_CACHE_PROPERTY, 0);
+		if (entries <= 0) {
+			return null;
+		}
+
+		final long bytes = Long.getLong(
+				PhraseEncoder.SUBTREE_CACHE_BYTES_PROPERTY, 64L << 20);
+		return new BoundedCache<String, double[]>(entries, bytes,
+				new BoundedCache.Weigher<String, double[]>() {
+					@Override
+					public long weigh(String key, double[] value) {
+						return 96 + (2L * key.length()) + (8L * dim);
+					}
+				}, BoundedCache.defaultStripes());
+	}
+
+	/**
+	 * Append canonical signature of subtree. Since URAE vector depends only
+	 * on the words and the shape of merges, labels and unary nodes are
+	 * omitted; e.g. "(NP (DT the) (NN company))" becomes "(the company)".
+	 *
+	 * @param subtree
+	 *            for signature
+	 * @param builder
+	 *            to append signature
+	 * @return number of words in subtree
+	 */
+	private static int appendSignature(Tree subtree, StringBuilder builder) {
+		if (!subtree.isPreTerminal() && (subtree.numChildren() > 1)) {
+			int words = 0;
+			builder.append('(');
+			final Tree[] children = subtree.children();
+			for (int i = 0; i < children.length; i++) {
+				if (i > 0) {
+					builder.append(' ');
+				}
+				words += PhraseEncoder.appendSignature(children[i], builder);
+			}
+			builder.append(')');
+			return words;
+		} else if (subtree.isPreTerminal()) {
+			builder.append(subtree.getChild(0).value().toLowerCase());
+			return 1;
+		} else if (subtree.numChildren() == 1) {
+			return PhraseEncoder.appendSignature(subtree.getChild(0), builder);
+		} else {
+			return 0;
+		}
+	}
+
+	/** Parameters for URAE **/
+	private final Parameters param;
+	/** Word embeddings **/
+	private final EmbeddingTable table;
+	/** Row-major fused parameter [W1 W2 b1] **/
+	private final double[] fused;
+	/** Dimension of vectors **/
+	private final int dim;
+	/** Cache : subtree signature \to vector, or null if disabled **/
+	private final BoundedCache<String, double[]> subtrees;
+	/** Minimum number of words of subtrees looked up in the cache **/
+	private final int minWords;
+	/** Scratch buffers per thread **/
+	private final ThreadLocal<Workspace> workspace = new ThreadLocal<Workspace>() {
+		@Override
+		protected Workspace initialValue() {
+			return new Workspace(PhraseEncoder.this.dim);
+		}
+	};
+
+	/**
+	 * Construct encoder with given parameters, without subtree cache.
+	 *
+	 * @param param
+	 *            Trained parameters of URAE
+	 */
+	public PhraseEncoder(Parameters param) {
+		this(param, null);
+	}
+
+	/**
+	 * Construct encoder with given parameters and subtree cache. Before
+	 * computing a phrase, the encoder looks up the cache by canonical
+	 * signature of the subtree, and skips the whole subtree on hit.
+	 *
+	 * @param param
+	 *            Trained parameters of URAE
+	 * @param subtrees
+	 *            Cache of subtree vectors, or null to disable. See
+	 *            {@link #createSubtreeCache(int)}.
+	 */
+	public PhraseEncoder(Parameters param,
+			BoundedCache<String, double[]> subtrees) {
+		this.param = param;
+		this.table = param.getEmbeddingTable();
+		this.fused = param.getFusedWeights();
+		this.dim = this.table.getDimension();
+		this.subtrees = subtrees;
+		this.minWords = Integer.getInteger(
+				PhraseEncoder.SUBTREE_MIN_WORDS_PROPERTY, 3);
+	}
+
+	/**
+	 * Cache of subtree vectors. Use this to monitor hit rate.
+	 *
+	 * @return BoundedCache of subtree vectors, or null if disabled.
+	 */
+	public BoundedCache<String, double[]> getSubtreeCache() {
+		return this.subtrees;
+	}
+
+	/**
+	 * Dimension of phrase vectors.
+	 *
+	 * @return dimension
+	 */
+	public int getDimension() {
+		return this.dim;
+	}
+
+	/**
+	 * Calculate URAE vector of given tree.
+	 *
+	 * @param tree
+	 *            for compute phrase vector.
+	 * @return SimpleMatrix of phrase vector (column vector), or null if tree
+	 *         has no word.
+	 */
+	public SimpleMatrix encode(Tree tree) {
+		final double[] out = new double[this.dim];
+		if (this.encode(tree, out, 0, 0, this.workspace.get(), null)) {
+			return SimpleMatrix.wrap(DenseMatrix64F.wrap(this.dim, 1, out));
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Calculate URAE vector of given tree, and record vectors of every node
+	 * in the tree (including pre-terminals) into given map. Each node is
+	 * encoded exactly once, so vectors of subtrees can be read from the map
+	 * instead of encoding them again.
+	 *
+	 * @param tree
+	 *            for compute phrase vector.
+	 * @param record
+	 *            map to store vectors, keyed by node. Use IdentityHashMap,
+	 *            since distinct nodes may be equal as trees. A node of unary
+	 *            chain shares vector instance with its child; vectors should
+	 *            not be modified.
+	 * @return SimpleMatrix of phrase vector (column vector), or null if tree
+	 *         has no word.
+	 */
+	public SimpleMatrix encode(Tree tree, Map<Tree, SimpleMatrix> record) {
+		final double[] out = new double[this.dim];
+		if (this.encode(tree, out, 0, 0, this.workspace.get(), record)) {
+			return record.get(tree);
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Record copy of computed vector.
+	 *
+	 * @param record
+	 *            map to store vectors, or null if not recording.
+	 * @param node
+	 *            of the vector
+	 * @param vector
+	 *            array which contains the vector
+	 * @param offset
+	 *            of the vector in array
+	 */
+	private void record(Map<Tree, SimpleMatrix> record, Tree node,
+			double[] vector, int offset) {
+		if (record != null) {
+			final double[] copy = Arrays.copyOfRange(vector, offset, offset
+					+ this.dim);
+			record.put(node, SimpleMatrix.wrap(DenseMatrix64F.wrap(this.dim,
+					1, copy)));
+		}
+	}
+
+	/**
+	 * Calculate URAE vector from subtree. Since URAE requires computation must
+	 * be done by ordered way(lowest-level, next lowest-level, and so on...), we
+	 * compute children first. Also for nodes that have more than 2 children,
+	 * we followed URAE's association rule which gives highest priority to
+	 * right-most one.
+	 *
+	 * @param subtree
+	 *            for compute phrase vector.
+	 * @param out
+	 *            array to store the vector
+	 * @param offset
+	 *            of the vector in out
+	 * @param depth
+	 *            of the subtree, used for selecting scratch frame
+	 * @param ws
+	 *            workspace of current thread
+	 * @param record
+	 *            map to store vectors of every node, or null.
+	 * @return true if the vector is computed, false if subtree has no word.
+	 */
+	private boolean encode(Tree subtree, double[] out, int offset, int depth,
+			Workspace ws, Map<Tree, SimpleMatrix> record) {
+		if (!subtree.isPreTerminal() && (subtree.numChildren() > 1)) {
+			// Look up subtree cache first. A hit prunes the whole subtree.
+			// Small subtrees are cheaper to compute than to look up.
+			String signature = null;
+			if (this.subtrees != null) {
+				final StringBuilder builder = ws.builder;
+				builder.setLength(0);
+				if (PhraseEncoder.appendSignature(subtree, builder) >= this.minWords) {
+					signature = builder.toString();
+				}
+			}
+			if (signature != null) {
+				final double[] cached = this.subtrees.get(signature);
+				if (cached != null) {
+					System.arraycopy(cached, 0, out, offset, this.dim);
+					this.record(record, subtree, out, offset);
+					return true;
+				}
+			}
+
+			final Tree[] children = subtree.children();
+			final double[][] frame = ws.frame(depth);
+			// x = [curr; prev]. Composition result is written into prev part
+			// of y, then x and y are swapped.
+			double[] x = frame[0];
+			double[] y = frame[1];
+			boolean computed = false;
+
+			for (int i = children.length - 1; i >= 0; i--) {
+				if (!computed) {
+					computed = this.encode(children[i], x, this.dim, depth + 1,
+							ws, record);
+				} else if (this.encode(children[i], x, 0, depth + 1, ws, record)) {
+					NeuralNetwork.compose(this.fused, x, y, this.dim, this.dim);
+					final double[] swap = x;
+					x = y;
+					y = swap;
+				}
+			}
+
+			if (computed) {
+				System.arraycopy(x, this.dim, out, offset, this.dim);
+				this.record(record, subtree, out, offset);
+				if (signature != null) {
+					this.subtrees.put(signature, Arrays.copyOfRange(out,
+							offset, offset + this.dim));
+				}
+			}
+			return computed;
+		} else if (subtree.isPreTerminal()) {
+			final String word = subtree.getChild(0).value();
+			this.table.copyRow(this.param.getWordIndexOf(word), out, offset);
+			this.record(record, subtree, out, offset);
+			return true;
+		} else if (subtree.numChildren() == 1) {
+			// Unary node does not use its frame; pass through.
+			final Tree child = subtree.getChild(0);
+			final boolean computed = this.encode(child, out, offset, depth,
+					ws, record);
+			if (computed && record != null) {
+				record.put(subtree, record.get(child));
+			}
+			return computed;
+		} else {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.urae;
+
+/**
+ * <p>
+ * Precision of stored parameters and word embeddings. Lower precision saves
+ * memory, at the cost of accuracy. Computation is always done in double, so
+ * only the stored values are rounded.
+ * </p>
+ * <p>
+ * Run {@link kr.ac.kaist.ir.test.StanfordWrapperTester} to measure the
+ * difference of each precision from the original MatLab implementation.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public enum Precision {
+	/** 64-bit floating point, as trained. **/
+	DOUBLE(8),
+	/** 32-bit floating point, for both weights and embeddings. **/
+	FLOAT32(4),
+	/**
+	 * 8-bit integer embeddings, with a float32 scale per word; weights are in
+	 * float32.
+	 **/
+	INT8(1);
+
+	/**
+	 * System property for precision of {@link Parameters#getInstance()}. One
+	 * of double (default), float32 and int8.
+	 **/
+	public static final String PROPERTY = "npe.precision";
+
+	/**
+	 * Precision configured by {@value #PROPERTY}.
+	 *
+	 * @return configured precision, or DOUBLE if not set.
+	 */
+	public static Precision getConfigured() {
+		return Precision.valueOf(System.getProperty(Precision.PROPERTY,
+				"double").toUpperCase());
+	}
+
+	/** Bytes per embedding value **/
+	private final int bytes;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param bytes
+	 *            per embedding value
+	 */
+	private Precision(int bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Bytes per embedding value, excluding the scale of INT8.
+	 *
+	 * @return size of value in bytes
+	 */
+	public int getBytes() {
+		return this.bytes;
+	}
+}
@@ -4,23 +4,53 @@
 package kr.ac.kaist.ir.urae;
 
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 import org.ejml.simple.SimpleMatrix;
 
 import edu.stanford.nlp.trees.Tree;
 
 /**
- * NPN structure wrapper for ParserServer - Client communication
+ * NPN structure wrapper for ParserServer - Client communication. Parts which
+ * are not in the requested {@link Field}s are not computed, and are null.
  *
  * @author 김부근
  *
  */
 public class Result implements Serializable {
+	/**
+	 * Part of Result, which can be requested separately.
+	 */
+	public enum Field {
+		/** Strings of NP1, PP and NP2 **/
+		STRINGS,
+		/** Phrase vectors of NP1 and NP2 **/
+		NP_VECTORS,
+		/** Word vector of prep **/
+		PP_VECTOR,
+		/** Phrase vector of sentence **/
+		SENTENCE_VECTOR,
+		/**
+		 * Syntactic score vector of PP node in SU-RNN parser, which is chosen
+		 * by the categories of its children.
+		 **/
+		SYNTACTIC;
+
+		/** Fields computed unless requested otherwise **/
+		public static final Set<Field> DEFAULTS = Collections
+				.unmodifiableSet(EnumSet.of(Field.STRINGS, Field.NP_VECTORS,
+						Field.PP_VECTOR, Field.SENTENCE_VECTOR));
+	}
+
 	/** Serial ID **/
 	private static final long serialVersionUID = -7697818199190864663L;
 	/** Phrase Embeddings **/
 	private final SimpleMatrix np1Matx, ppMatx, np2Matx, sentMatx;
+	/** Syntactic score vector of PP, or null **/
+	private final SimpleMatrix syntactic;
 	/** Phrase Strings **/
 	private final String np1Str, ppStr, np2Str;
 
@@ -38,22 +68,135 @@ public class Result implements Serializable {
 	 *            for sentence pharse matrix
 	 */
 	public Result(Tree np1, Tree pp, Tree np2, SimpleMatrix sent) {
-		final StanfordWrapper instance = StanfordWrapper.getInstance();
+		this(np1, pp, np2, StanfordWrapper.getInstance()
+				.getPhraseVectorOf(np1), StanfordWrapper.getInstance()
+				.getWordVectorOf(pp.firstChild().value()), StanfordWrapper
+				.getInstance().getPhraseVectorOf(np2), sent, null, true);
+	}
+
+	/**
+	 * Constructor with already computed phrase embeddings. This is used when
+	 * vectors of subtrees were recorded while encoding the sentence.
+	 *
+	 * @param np1
+	 *            for 1st NP phrase
+	 * @param pp
+	 *            for intermediate prep phrase
+	 * @param np2
+	 *            for 2nd NP phrase
+	 * @param np1Matx
+	 *            Phrase embedding of 1st NP, or null
+	 * @param ppMatx
+	 *            Word embedding of prep, or null
+	 * @param np2Matx
+	 *            Phrase embedding of 2nd NP, or null
+	 * @param sent
+	 *            for sentence pharse matrix, or null
+	 * @param syntactic
+	 *            Syntactic score vector of PP, or null
+	 * @param strings
+	 *            whether to make strings of phrases
+	 */
+	Result(Tree np1, Tree pp, Tree np2, SimpleMatrix np1Matx,
+			SimpleMatrix ppMatx, SimpleMatrix np2Matx, SimpleMatrix sent,
+			SimpleMatrix syntactic, boolean strings) {
+		this(strings ? Result.getStringOf(np1) : null, strings ? pp
+				.firstChild().value() : null, strings ? Result
+				.getStringOf(np2) : null, np1Matx, ppMatx, np2Matx, sent,
+				syntactic);
+	}
 
-		this.np1Str = this.getStringOf(np1);
-		this.np2Str = this.getStringOf(np2);
-		this.ppStr = pp.firstChild().value();
+	/**
+	 * Constructor with strings and embeddings. This is used when a result is
+	 * received from server.
+	 *
+	 * @param np1
+	 *            String of 1st NP phrase
+	 * @param pp
+	 *            String of prep
+	 * @param np2
+	 *            String of 2nd NP phrase
+	 * @param np1Matx
+	 *            Phrase embedding of 1st NP
+	 * @param ppMatx
+	 *            Word embedding of prep
+	 * @param np2Matx
+	 *            Phrase embedding of 2nd NP
+	 * @param sent
+	 *            for sentence pharse matrix
+	 */
+	public Result(String np1, String pp, String np2, SimpleMatrix np1Matx,
+			SimpleMatrix ppMatx, SimpleMatrix np2Matx, SimpleMatrix sent) {
+		this(np1, pp, np2, np1Matx, ppMatx, np2Matx, sent, null);
+	}
 
-		this.np1Matx = instance.getPhraseVectorOf(np1);
-		this.np2Matx = instance.getPhraseVectorOf(np2);
-		this.ppMatx = instance.getWordVectorOf(this.ppStr);
+	/**
+	 * Constructor with strings, embeddings and syntactic score vector. Parts
+	 * which were not requested are null.
+	 *
+	 * @param np1
+	 *            String of 1st NP phrase
+	 * @param pp
+	 *            String of prep
+	 * @param np2
+	 *            String of 2nd NP phrase
+	 * @param np1Matx
+	 *            Phrase embedding of 1st NP
+	 * @param ppMatx
+	 *            Word embedding of prep
+	 * @param np2Matx
+	 *            Phrase embedding of 2nd NP
+	 * @param sent
+	 *            for sentence pharse matrix
+	 * @param syntactic
+	 *            Syntactic score vector of PP
+	 */
+	public Result(String np1, String pp, String np2, SimpleMatrix np1Matx,
+			SimpleMatrix ppMatx, SimpleMatrix np2Matx, SimpleMatrix sent,
+			SimpleMatrix syntactic) {
+		this.np1Str = np1;
+		this.np2Str = np2;
+		this.ppStr = pp;
+
+		this.np1Matx = np1Matx;
+		this.np2Matx = np2Matx;
+		this.ppMatx = ppMatx;
 		this.sentMatx = sent;
+		this.syntactic = syntactic;
+	}
+
+	/**
+	 * Copy of matrix, or null.
+	 *
+	 * @param matrix
+	 *            to be copied, or null
+	 * @return copy of matrix, or null
+	 */
+	static SimpleMatrix copyOf(SimpleMatrix matrix) {
+		return matrix != null ? matrix.copy() : null;
+	}
+
+	/**
+	 * Copy of this result with copies of its vectors, so that the copy can be
+	 * changed without changing this one. Strings are shared, since they are
+	 * immutable.
+	 *
+	 * @param sent
+	 *            sentence vector of the copy, shared by results of a sentence
+	 * @return copy of this result
+	 */
+	Result copy(SimpleMatrix sent) {
+		return new Result(this.np1Str, this.ppStr, this.np2Str,
+				Result.copyOf(this.np1Matx), Result.copyOf(this.ppMatx),
+				Result.copyOf(this.np2Matx), sent,
+				Result.copyOf(this.syntactic));
 	}
 
 	/**
 	 * Returns 1st NP phrase's Word Embedding
 	 *
-	 * @return Phrase Embedding of 1st NP
+	 * @return Phrase Embedding of 1st NP, or null if not requested by
+	 *         {@link Field#NP_VECTORS}.
 	 */
 	public SimpleMatrix getMatrixOfNP1() {
 		return this.np1Matx;
@@ -62,7 +205,8 @@ public class Result implements Serializable {
 	/**
 	 * Returns 2nd NP phrase's Word Embedding
 	 *
-	 * @return Phrase Embedding of 2nd NP
+	 * @return Phrase Embedding of 2nd NP, or null if not requested by
+	 *         {@link Field#NP_VECTORS}.
 	 */
 	public SimpleMatrix getMatrixOfNP2() {
 		return this.np2Matx;
@@ -71,7 +215,8 @@ public class Result implements Serializable {
 	/**
 	 * Returns PP phrase's Word Embedding
 	 *
-	 * @return Phrase Embedding of PP
+	 * @return Phrase Embedding of PP, or null if not requested by
+	 *         {@link Field#PP_VECTOR}.
 	 */
 	public SimpleMatrix getMatrixOfPP() {
 		return this.ppMatx;
@@ -80,30 +225,68 @@ public class Result implements Serializable {
 	/**
 	 * Returns Sentence's Word Embedding
 	 *
-	 * @return Phrase Embedding of Sentence
+	 * @return Phrase Embedding of Sentence, or null if not requested by
+	 *         {@link Field#SENTENCE_VECTOR}.
 	 */
 	public SimpleMatrix getMatrixOfSentence() {
 		return this.sentMatx;
 	}
 
+	/**
+	 * Returns 1st NP String
+	 *
+	 * @return String of 1st NP, or null if not requested by
+	 *         {@link Field#STRINGS}.
+	 */
+	public String getNP1String() {
+		return this.np1Str;
+	}
+
+	/**
+	 * Returns 2nd NP String
+	 *
+	 * @return String of 2nd NP, or null if not requested by
+	 *         {@link Field#STRINGS}.
+	 */
+	public String getNP2String() {
+		return this.np2Str;
+	}
+
 	/**
 	 * Returns Entire NP1-PP-NP2 String
 	 *
-	 * @return Phrase String
+	 * @return Phrase String, or null if not requested by
+	 *         {@link Field#STRINGS}.
 	 */
 	public String getPhraseString() {
+		if ((this.np1Str == null) || (this.ppStr == null)
+				|| (this.np2Str == null)) {
+			return null;
+		}
 		return this.np1Str + " " + this.ppStr + " " + this.np2Str;
 	}
 
 	/**
 	 * Returns Prep String
 	 *
-	 * @return String of prep
+	 * @return String of prep, or null if not requested by
+	 *         {@link Field#STRINGS}.
 	 */
 	public String getPPString() {
 		return this.ppStr;
 	}
 
+	/**
+	 * Returns syntactic score vector of PP node, from SU-RNN parser. Refer to
+	 * (Socher et al., ACL 2013)
+	 *
+	 * @return Score vector of 25 dimension, or null if not requested by
+	 *         {@link Field#SYNTACTIC}.
+	 */
+	public SimpleMatrix getSyntacticVector() {
+		return this.syntactic;
+	}
+
 	/**
 	 * Generate String for given Tree
 	 *
@@ -111,7 +294,7 @@ public class Result implements Serializable {
 	 *            for string generation
 	 * @return generated string
 	 */
-	private String getStringOf(Tree tree) {
+	private static String getStringOf(Tree tree) {
 		final List<Tree> leaves = tree.getLeaves();
 		final StringBuffer strbuf = new StringBuffer();
 		for (int i = 0; i < leaves.size(); i++) {
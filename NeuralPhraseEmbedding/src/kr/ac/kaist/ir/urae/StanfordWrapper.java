@@ -3,22 +3,40 @@
  */
 package kr.ac.kaist.ir.urae;
 
+import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import org.ejml.simple.SimpleMatrix;
 
 import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.ling.HasWord;
 import edu.stanford.nlp.parser.dvparser.DVModel;
 import edu.stanford.nlp.parser.dvparser.DVParser;
 import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
 import edu.stanford.nlp.process.CoreLabelTokenFactory;
+import edu.stanford.nlp.process.DocumentPreprocessor;
 import edu.stanford.nlp.process.PTBTokenizer;
 import edu.stanford.nlp.process.Tokenizer;
 import edu.stanford.nlp.process.TokenizerFactory;
+import edu.stanford.nlp.trees.LabeledScoredTreeFactory;
+import edu.stanford.nlp.trees.PennTreeReader;
 import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeFactory;
 
 /**
  * Wrapper of Stanford SU-RNN CVG parser &amp; URAE phrase embedding. This
@@ -32,26 +50,32 @@ public class StanfordWrapper {
 	 * For multi-threading only.
 	 *
 	 * @return another instance of Embedding Wrapper.
+	 * @deprecated {@link #parseTree(String)} borrows a parser from the shared
+	 *             {@link ParserPool}, so the singleton from
+	 *             {@link #getInstance()} can be used by many threads.
 	 */
+	@Deprecated
 	public static StanfordWrapper getAnotherInstance() {
-		if (StanfordWrapper.instance == null) {
-			StanfordWrapper.instance = new StanfordWrapper();
-		}
-
-		return new StanfordWrapper(StanfordWrapper.instance);
+		return new StanfordWrapper(StanfordWrapper.getInstance());
 	}
 
 	/**
-	 * Generates singleton instance and pass it to caller.
+	 * Generates singleton instance and pass it to caller. This is
+	 * thread-safe; the parser model is loaded only once.
 	 *
 	 * @return Singleton instance of Embedding Wrapper.
 	 */
 	public static StanfordWrapper getInstance() {
-		if (StanfordWrapper.instance == null) {
-			StanfordWrapper.instance = new StanfordWrapper();
-		}
+		return Holder.INSTANCE;
+	}
 
-		return StanfordWrapper.instance;
+	/**
+	 * Lazy holder of singleton instance. JVM initializes this class exactly
+	 * once, on the first call of {@link StanfordWrapper#getInstance()}.
+	 */
+	private static final class Holder {
+		/** Singleton instance **/
+		private static final StanfordWrapper INSTANCE = new StanfordWrapper();
 	}
 
 	/**
@@ -76,17 +100,229 @@ public class StanfordWrapper {
 		scan.close();
 	}
 
-	/** Singleton instance **/
-	private static volatile StanfordWrapper instance;
+	/**
+	 * Parsed sentence and its NPN structures, stored in the sentence cache.
+	 */
+	private static final class CachedSentence {
+		/** Parse tree **/
+		private final Tree tree;
+		/** NPN structures, or null if not computed yet **/
+		private final NPNStructure structure;
+		/** Fields computed in structure, or null **/
+		private final Set<Result.Field> fields;
+
+		/**
+		 * Construct cache entry.
+		 *
+		 * @param tree
+		 *            Parse tree
+		 * @param structure
+		 *            NPN structures, or null
+		 * @param fields
+		 *            computed in structure, or null
+		 */
+		CachedSentence(Tree tree, NPNStructure structure,
+				Set<Result.Field> fields) {
+			this.tree = tree;
+			this.structure = structure;
+			this.fields = fields;
+		}
+	}
+
+	/**
+	 * Interrupt of a thread at the deadline of its parse. A parser which
+	 * checks interrupts gives up the sentence; one which does not finishes it,
+	 * and its tree is used. See {@link kr.ac.kaist.ir.test.ParseDeadlineTester}.
+	 */
+	private static final class Alarm implements Runnable {
+		/** Timer of alarms **/
+		private static final ScheduledThreadPoolExecutor TIMER = Alarm
+				.createTimer();
+
+		/**
+		 * Make timer of alarms, on a daemon thread.
+		 *
+		 * @return ScheduledThreadPoolExecutor with one thread
+		 */
+		private static ScheduledThreadPoolExecutor createTimer() {
+			final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(
+					1, new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							final Thread thread = Executors
+									.defaultThreadFactory().newThread(runnable);
+							thread.setName("parser-deadline");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			// Most alarms are cancelled; do not keep them until their time.
+			timer.setRemoveOnCancelPolicy(true);
+			return timer;
+		}
+
+		/** Thread to be interrupted **/
+		private final Thread thread = Thread.currentThread();
+		/** Scheduled interrupt **/
+		private final ScheduledFuture<?> future;
+		/** Whether the parse is still running. Guarded by this. **/
+		private boolean armed = true;
+		/** Whether the thread is interrupted. Guarded by this. **/
+		private boolean fired;
+
+		/**
+		 * Set an alarm for the current thread.
+		 *
+		 * @param nanos
+		 *            time until the deadline
+		 */
+		Alarm(long nanos) {
+			this.future = Alarm.TIMER.schedule(this, nanos,
+					TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * Cancel the alarm. If it is fired, interrupt status of the current
+		 * thread is cleared, so that it does not leak into the caller.
+		 *
+		 * @return true if the alarm was fired.
+		 */
+		boolean cancel() {
+			this.future.cancel(false);
+			synchronized (this) {
+				this.armed = false;
+				if (this.fired) {
+					Thread.interrupted();
+				}
+				return this.fired;
+			}
+		}
+
+		@Override
+		public synchronized void run() {
+			if (this.armed) {
+				this.fired = true;
+				this.thread.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * System property for maximum number of sentences in the cache. The cache
+	 * is disabled if this is not set or 0.
+	 **/
+	public static final String SENTENCE_CACHE_PROPERTY = "npe.cache.sentences";
+	/**
+	 * System property for maximum estimated bytes of the sentence cache.
+	 * Default is 64MB.
+	 **/
+	public static final String SENTENCE_CACHE_BYTES_PROPERTY = "npe.cache.sentences.bytes";
+	/**
+	 * System property for maximum number of tokens of a sentence to be
+	 * parsed. Longer sentences are not parsed, and {@link ParseLimitException}
+	 * is thrown. No limit if this is not set or 0.
+	 **/
+	public static final String MAX_TOKENS_PROPERTY = "npe.parser.maxtokens";
+	/**
+	 * System property for maximum time of parsing a sentence, in
+	 * milliseconds, including the wait for a parser. When exceeded,
+	 * {@link ParseLimitException} is thrown. No limit if this is not set or 0.
+	 * The parse itself is stopped only if the parser checks interrupts.
+	 **/
+	public static final String TIMEOUT_PROPERTY = "npe.parser.timeout";
+	/** Pattern of whitespaces, for normalizing sentences **/
+	private static final Pattern WHITESPACES = Pattern.compile("\\s+");
+
+	/**
+	 * Make sentence cache, if configured.
+	 *
+	 * @param dim
+	 *            dimension of phrase vectors
+	 * @return BoundedCache of sentences, or null if disabled.
+	 */
+	private static BoundedCache<String, CachedSentence> createSentenceCache(
+			final int dim) {
+		final int entries = Integer.getInteger(
+				StanfordWrapper.SENTENCE_CACHE_PROPERTY, 0);
+		if (entries <= 0) {
+			return null;
+		}
+
+		final long bytes = Long.getLong(
+				StanfordWrapper.SENTENCE_CACHE_BYTES_PROPERTY, 64L << 20);
+		return new BoundedCache<String, CachedSentence>(entries, bytes,
+				new BoundedCache.Weigher<String, CachedSentence>() {
+					@Override
+					public long weigh(String key, CachedSentence value) {
+						// Rough estimation: key, tree nodes, and vectors of
+						// results (three vectors each, plus sentence vector).
+						long size = 64 + (2L * key.length())
+								+ (96L * value.tree.size());
+						if (value.structure != null) {
+							final long vector = 32 + (8L * dim);
+							size += vector
+									+ (value.structure.getResults().size() * (160 + (3 * vector)));
+						}
+						return size;
+					}
+				}, BoundedCache.defaultStripes());
+	}
+
+	/**
+	 * Make a flat tree of tokens, <tt>(ROOT (X (XX w1) (XX w2) ...))</tt>.
+	 * URAE associates children from the right, so this is encoded as a
+	 * right-branching tree.
+	 *
+	 * @param words
+	 *            tokens of sentence
+	 * @return flat tree
+	 */
+	private static Tree flatTree(List<CoreLabel> words) {
+		final TreeFactory factory = new LabeledScoredTreeFactory();
+		final List<Tree> children = new ArrayList<Tree>(words.size());
+		for (final CoreLabel word : words) {
+			children.add(factory.newTreeNode("XX",
+					Collections.singletonList(factory.newLeaf(word.word()))));
+		}
+		return factory.newTreeNode("ROOT",
+				Collections.singletonList(factory.newTreeNode("X", children)));
+	}
+
+	/**
+	 * Normalize sentence for the key of sentence cache.
+	 *
+	 * @param sentence
+	 *            to be normalized
+	 * @return trimmed sentence, whose whitespaces are collapsed into a space.
+	 */
+	private static String normalize(String sentence) {
+		return StanfordWrapper.WHITESPACES.matcher(sentence.trim())
+				.replaceAll(" ");
+	}
+
 	/** Stanford Parser **/
 	private final LexicalizedParser parser;
+	/** Pool of parser copies for concurrent parsing **/
+	private final ParserPool parsers;
 
 	/** Model of SU-RNN Parser **/
 	private final DVModel model;
 	/** Tokenizer in Stanford Parser Package **/
 	private final TokenizerFactory<CoreLabel> tokenizerFactory;
+	/** Tokenizer factory which keeps character offsets, for splitting **/
+	private final TokenizerFactory<CoreLabel> splitterFactory;
 	/** Parameters for URAE encoder **/
-	public Parameters param;
+	public final Parameters param;
+	/** URAE encoder **/
+	private final PhraseEncoder encoder;
+	/** URAE encoder for bulk encoding **/
+	private final BatchPhraseEncoder batchEncoder;
+	/** Cache of parsed sentences, or null if disabled **/
+	private final BoundedCache<String, CachedSentence> sentences;
+	/** Maximum number of tokens to parse, or 0 for no limit **/
+	private final int maxTokens;
+	/** Maximum time of parsing in milliseconds, or 0 for no limit **/
+	private final long timeout;
 
 	/**
 	 * Hidden constructor. This is hidden to avoid multiple load action of
@@ -98,75 +334,236 @@ public class StanfordWrapper {
 				.loadModel("edu/stanford/nlp/models/lexparser/englishRNN.ser.gz");
 		// Extract RNN model from the Parser
 		this.model = DVParser.getModelFromLexicalizedParser(this.parser);
+		// Make pool of parsers, sized to the number of cores by default.
+		this.parsers = new ParserPool(this.parser, ParserPool.getConfiguredSize());
 		// Initialize tokenizer.
 		this.tokenizerFactory = PTBTokenizer.factory(
 				new CoreLabelTokenFactory(), "");
+		this.splitterFactory = PTBTokenizer.factory(
+				new CoreLabelTokenFactory(), "invertible=true");
 		// Load URAE parameters.
 		this.param = Parameters.getInstance();
+		this.encoder = new PhraseEncoder(this.param,
+				PhraseEncoder.createSubtreeCache(this.param
+						.getEmbeddingTable().getDimension()));
+		this.batchEncoder = new BatchPhraseEncoder(this.param);
+		this.sentences = StanfordWrapper.createSentenceCache(this.encoder
+				.getDimension());
+		this.maxTokens = Math.max(0,
+				Integer.getInteger(StanfordWrapper.MAX_TOKENS_PROPERTY, 0));
+		this.timeout = Math.max(0,
+				Long.getLong(StanfordWrapper.TIMEOUT_PROPERTY, 0));
 	}
 
 	/**
-	 * Copy instance to new one. Copy the models, token factory and so on.
+	 * Copy instance to new one. Share the models, token factory, parser pool
+	 * and so on with the original.
 	 *
 	 * @param wrapper
 	 *            to be copied.
 	 */
 	private StanfordWrapper(StanfordWrapper wrapper) {
-		this.parser = LexicalizedParser.copyLexicalizedParser(wrapper.parser);
+		this.parser = wrapper.parser;
+		this.parsers = wrapper.parsers;
 		this.model = wrapper.model;
 		this.tokenizerFactory = wrapper.tokenizerFactory;
+		this.splitterFactory = wrapper.splitterFactory;
 		this.param = wrapper.param;
+		this.encoder = wrapper.encoder;
+		this.batchEncoder = wrapper.batchEncoder;
+		this.sentences = wrapper.sentences;
+		this.maxTokens = wrapper.maxTokens;
+		this.timeout = wrapper.timeout;
 	}
 
 	/**
 	 * Calculate URAE vector from subtree. Since URAE requires computation must
 	 * be done by ordered way(lowest-level, next lowest-level, and so on...), we
-	 * compute this by BFS. Also for nodes that have more than 2 children, we
-	 * followed URAE's association rule which gives highest priority to
-	 * right-most one. This is recursive, but not tail-recursive.
+	 * compute children first. Also for nodes that have more than 2 children,
+	 * we followed URAE's association rule which gives highest priority to
+	 * right-most one. Computation is done by {@link PhraseEncoder}, which
+	 * allocates only the output vector.
 	 *
 	 * @param subtree
 	 *            for compute phrase vector.
 	 * @return SimpleMatrix of phrase vector.
 	 */
 	private SimpleMatrix calculateBFS(Tree subtree) {
-		if (!subtree.isPreTerminal() && (subtree.numChildren() > 1)) {
-			final Tree[] children = subtree.children();
-			SimpleMatrix prev = null;
-			for (int i = children.length - 1; i >= 0; i--) {
-				final SimpleMatrix curr = this.calculateBFS(children[i]);
-				if (prev != null) {
-					final SimpleMatrix W1c1 = this.param.getW1().mult(curr);
-					final SimpleMatrix W2c2 = this.param.getW2().mult(prev);
-					prev = NeuralNetwork.tanh(W1c1.plus(W2c2).plus(
-							this.param.getb1()));
-				} else {
-					prev = curr;
-				}
-			}
-
-			return prev;
-		} else if (subtree.isPreTerminal()) {
-			final String word = subtree.getChild(0).value();
-			return this.param.getWordVectorOf(word);
-		} else if (subtree.numChildren() == 1) {
-			return this.calculateBFS(subtree.getChild(0));
-		} else {
-			return null;
-		}
+		return this.encoder.encode(subtree);
 	}
 
 	/**
-	 * Find NP-PP(IN-NP) structure from the given tree, with DFS.
+	 * Find NP-PP(IN-NP) structure from the given tree, with DFS. If sentence
+	 * cache is enabled and the sentence is cached, parsing and encoding are
+	 * skipped.
 	 *
 	 * @param sentence
 	 *            for top-level sentence.
 	 * @return LinkedList of Result instances.
+	 * @throws ParseLimitException
+	 *             when the sentence exceeds {@value #MAX_TOKENS_PROPERTY} or
+	 *             {@value #TIMEOUT_PROPERTY}.
 	 */
 	public LinkedList<Result> findNPNStructure(String sentence) {
-		final Tree tree = this.parseTree(sentence);
-		final SimpleMatrix matx = this.getPhraseVectorOf(tree);
-		return this.findNPNStructure(tree, new LinkedList<Result>(), matx);
+		return this.findNPNStructure(sentence, 0);
+	}
+
+	/**
+	 * Find NP-PP(IN-NP) structure from the given tree, with DFS, parsing
+	 * within the given time. If sentence cache is enabled and the sentence is
+	 * cached, parsing and encoding are skipped.
+	 *
+	 * @param sentence
+	 *            for top-level sentence.
+	 * @param timeoutMillis
+	 *            time left for parsing, in milliseconds; 0 for no limit other
+	 *            than {@value #TIMEOUT_PROPERTY}, and negative if no time is
+	 *            left.
+	 * @return LinkedList of Result instances.
+	 * @throws ParseLimitException
+	 *             when the sentence exceeds {@value #MAX_TOKENS_PROPERTY}, or
+	 *             is not parsed in time.
+	 */
+	public LinkedList<Result> findNPNStructure(String sentence,
+			long timeoutMillis) {
+		return this.findNPNStructure(sentence, timeoutMillis,
+				Result.Field.DEFAULTS);
+	}
+
+	/**
+	 * Find NP-PP(IN-NP) structure from the given tree, with DFS, computing
+	 * only the given fields of results. If sentence cache is enabled and the
+	 * sentence is cached with the fields, parsing and encoding are skipped;
+	 * cached results may have more fields than requested. Otherwise the
+	 * fields cached before are computed again along with the requested ones,
+	 * and cached together.
+	 *
+	 * @param sentence
+	 *            for top-level sentence.
+	 * @param timeoutMillis
+	 *            time left for parsing, in milliseconds; 0 for no limit other
+	 *            than {@value #TIMEOUT_PROPERTY}, and negative if no time is
+	 *            left.
+	 * @param fields
+	 *            of results to compute
+	 * @return LinkedList of Result instances.
+	 * @throws ParseLimitException
+	 *             when the sentence exceeds {@value #MAX_TOKENS_PROPERTY}, or
+	 *             is not parsed in time.
+	 */
+	public LinkedList<Result> findNPNStructure(String sentence,
+			long timeoutMillis, Set<Result.Field> fields) {
+		return this.getNPNStructureOf(sentence, timeoutMillis, fields)
+				.getResults();
+	}
+
+	/**
+	 * Find NP-PP(IN-NP) structure from the given sentence, as
+	 * {@link #findNPNStructure(String, long, Set)} does, with the phrase
+	 * vector of the sentence even if it has no NPN structure.
+	 *
+	 * @param sentence
+	 *            for top-level sentence.
+	 * @param timeoutMillis
+	 *            time left for parsing, in milliseconds; 0 for no limit other
+	 *            than {@value #TIMEOUT_PROPERTY}, and negative if no time is
+	 *            left.
+	 * @param fields
+	 *            of results to compute
+	 * @return NPN structures and phrase vector of the sentence.
+	 * @throws ParseLimitException
+	 *             when the sentence exceeds {@value #MAX_TOKENS_PROPERTY}, or
+	 *             is not parsed in time.
+	 */
+	public NPNStructure getNPNStructureOf(String sentence,
+			long timeoutMillis, Set<Result.Field> fields) {
+		if (this.sentences == null) {
+			return this.getNPNStructureOf(this.parse(sentence, timeoutMillis),
+					fields);
+		}
+
+		final String key = StanfordWrapper.normalize(sentence);
+		final CachedSentence cached = this.sentences.get(key);
+		if (cached != null && cached.structure != null
+				&& cached.fields.containsAll(fields)) {
+			return cached.structure.copy();
+		}
+
+		final Tree tree = cached != null ? cached.tree : this.parse(sentence,
+				timeoutMillis);
+		// Keep fields cached before, so that requests for different fields
+		// do not replace each other's entry.
+		final Set<Result.Field> union = EnumSet.noneOf(Result.Field.class);
+		union.addAll(fields);
+		if (cached != null && cached.fields != null) {
+			union.addAll(cached.fields);
+		}
+		final NPNStructure structure = this.getNPNStructureOf(tree, union);
+		this.sentences.put(key, new CachedSentence(tree, structure.copy(),
+				union));
+		return structure;
+	}
+
+	/**
+	 * Find NP-PP(IN-NP) structure from the given parse tree, with DFS. The
+	 * sentence is encoded once, recording vectors of every node, and Results
+	 * read vectors of their phrases from the record.
+	 *
+	 * @param tree
+	 *            Parse tree of top-level sentence.
+	 * @return LinkedList of Result instances.
+	 */
+	public LinkedList<Result> findNPNStructure(Tree tree) {
+		return this.findNPNStructure(tree, Result.Field.DEFAULTS);
+	}
+
+	/**
+	 * Find NP-PP(IN-NP) structure from the given parse tree, with DFS,
+	 * computing only the given fields of results. The sentence is encoded
+	 * only if phrase vectors of NPs or sentence are requested, and vectors
+	 * of nodes are recorded only for NPs.
+	 *
+	 * @param tree
+	 *            Parse tree of top-level sentence.
+	 * @param fields
+	 *            of results to compute
+	 * @return LinkedList of Result instances.
+	 */
+	public LinkedList<Result> findNPNStructure(Tree tree,
+			Set<Result.Field> fields) {
+		return this.getNPNStructureOf(tree, fields).getResults();
+	}
+
+	/**
+	 * Find NP-PP(IN-NP) structure from the given parse tree, as
+	 * {@link #findNPNStructure(Tree, Set)} does, with the phrase vector of
+	 * the sentence even if it has no NPN structure.
+	 *
+	 * @param tree
+	 *            Parse tree of top-level sentence.
+	 * @param fields
+	 *            of results to compute
+	 * @return NPN structures and phrase vector of the sentence.
+	 */
+	public NPNStructure getNPNStructureOf(Tree tree, Set<Result.Field> fields) {
+		final IdentityHashMap<Tree, SimpleMatrix> vectors = fields
+				.contains(Result.Field.NP_VECTORS) ? new IdentityHashMap<Tree, SimpleMatrix>()
+				: null;
+		SimpleMatrix matx = null;
+		if (vectors != null || fields.contains(Result.Field.SENTENCE_VECTOR)) {
+			final long start = Trace.now();
+			matx = vectors != null ? this.encoder.encode(tree, vectors)
+					: this.encoder.encode(tree);
+			Trace.record(Trace.Stage.ENCODE, start);
+		}
+
+		final SimpleMatrix sentence = fields
+				.contains(Result.Field.SENTENCE_VECTOR) ? matx : null;
+		final long start = Trace.now();
+		final LinkedList<Result> results = this.findNPNStructure(tree,
+				new LinkedList<Result>(), sentence, vectors, fields);
+		Trace.record(Trace.Stage.NPN, start);
+		return new NPNStructure(results, sentence);
 	}
 
 	/**
@@ -177,27 +574,44 @@ public class StanfordWrapper {
 	 * @param result
 	 *            LinkedList to be accumulated into.
 	 * @param sentence
-	 *            for top-level sentence.
+	 *            for top-level sentence, or null
+	 * @param vectors
+	 *            recorded vectors of nodes, or null if NP vectors are not
+	 *            requested
+	 * @param fields
+	 *            of results to compute
 	 * @return LinkedList of Result instances.
 	 */
 	private LinkedList<Result> findNPNStructure(Tree tree,
-			LinkedList<Result> result, SimpleMatrix sentence) {
+			LinkedList<Result> result, SimpleMatrix sentence,
+			IdentityHashMap<Tree, SimpleMatrix> vectors,
+			Set<Result.Field> fields) {
 		if (!tree.isLeaf() && !tree.isPreTerminal() && (tree.numChildren() > 0)) {
 			final int length = tree.numChildren();
 
 			for (int i = 1; i < length; i++) {
 				if (tree.getChild(i - 1).value().equalsIgnoreCase("NP")
 						&& tree.getChild(i).value().equalsIgnoreCase("PP")) {
-					result.add(new Result(tree.getChild(i - 1), tree
-							.getChild(i).firstChild(), tree.getChild(i)
-							.lastChild(), sentence));
+					final Tree np1 = tree.getChild(i - 1);
+					final Tree pp = tree.getChild(i).firstChild();
+					final Tree np2 = tree.getChild(i).lastChild();
+					result.add(new Result(np1, pp, np2, vectors != null ? this
+							.vectorOf(np1, vectors) : null, fields
+							.contains(Result.Field.PP_VECTOR) ? this
+							.getWordVectorOf(pp.firstChild().value()) : null,
+							vectors != null ? this.vectorOf(np2, vectors)
+									: null, sentence, fields
+									.contains(Result.Field.SYNTACTIC) ? this
+									.syntacticOf(tree.getChild(i)) : null,
+							fields.contains(Result.Field.STRINGS)));
 				}
 			}
 
 			for (int i = 0; i < length; i++) {
 				final Tree child = tree.getChild(i);
 				if (!child.isLeaf() && !child.isPreTerminal()) {
-					this.findNPNStructure(child, result, sentence);
+					this.findNPNStructure(child, result, sentence, vectors,
+							fields);
 				}
 			}
 		}
@@ -205,6 +619,98 @@ public class StanfordWrapper {
 		return result;
 	}
 
+	/**
+	 * Syntactic score vector of a node, if the parser has one for it.
+	 *
+	 * @param node
+	 *            to be scored
+	 * @return score vector, or null if the node is not unary or binary.
+	 */
+	private SimpleMatrix syntacticOf(Tree node) {
+		final int children = node.numChildren();
+		return children == 1 || children == 2 ? this
+				.getSyntaticScoreVectorOf(node) : null;
+	}
+
+	/**
+	 * Returns recorded vector of given node. If not recorded, encode it.
+	 *
+	 * @param node
+	 *            to find its vector
+	 * @param vectors
+	 *            recorded vectors of nodes
+	 * @return phrase vector of node
+	 */
+	private SimpleMatrix vectorOf(Tree node,
+			IdentityHashMap<Tree, SimpleMatrix> vectors) {
+		final SimpleMatrix vector = vectors.get(node);
+		return vector != null ? vector : this.calculateBFS(node);
+	}
+
+	/**
+	 * Cache of parsed sentences, used by {@link #parseTree(String)} and
+	 * {@link #findNPNStructure(String)}. Use this to monitor hit rate.
+	 *
+	 * @return BoundedCache of sentences, or null if the cache is disabled by
+	 *         {@value #SENTENCE_CACHE_PROPERTY}.
+	 */
+	public BoundedCache<?, ?> getSentenceCache() {
+		return this.sentences;
+	}
+
+	/**
+	 * Cache of subtree vectors, used while encoding phrases. Use this to
+	 * monitor hit rate, and tune its size for the corpus.
+	 *
+	 * @return BoundedCache of subtree vectors, or null if the cache is
+	 *         disabled by {@value PhraseEncoder#SUBTREE_CACHE_PROPERTY}.
+	 */
+	public BoundedCache<?, ?> getSubtreeCache() {
+		return this.encoder.getSubtreeCache();
+	}
+
+	/**
+	 * Get Phrase vector of given phrase, without parsing. Words are composed
+	 * by the same URAE parameters as {@link #getPhraseVectorOf(Tree)}, along
+	 * a right-branching tree from {@link #getFlatTree(String)} instead of the
+	 * parse. This is orders of magnitude faster than parsing, for callers
+	 * which need a vector at once rather than the best structure.
+	 *
+	 * @param phrase
+	 *            to be encoded
+	 * @return SimpleMatrix of phrase vector
+	 */
+	public SimpleMatrix getFastPhraseVectorOf(String phrase) {
+		return this.getPhraseVectorOf(this.getFlatTree(phrase));
+	}
+
+	/**
+	 * Flat tree of a sentence, without parsing. This is the tree of
+	 * {@link ParseLimitException#getFallbackTree()}, for sentences which are
+	 * not worth parsing.
+	 *
+	 * @param sentence
+	 *            to be tokenized
+	 * @return tree of <tt>(ROOT (X (XX w1) (XX w2) ...))</tt> form
+	 */
+	public Tree getFlatTree(String sentence) {
+		final long start = Trace.now();
+		final List<CoreLabel> words = this.tokenizerFactory.getTokenizer(
+				new StringReader(sentence)).tokenize();
+		Trace.record(Trace.Stage.TOKENIZE, start);
+		return StanfordWrapper.flatTree(words);
+	}
+
+	/**
+	 * Pool of parsers used by {@link #parseTree(String)}. Use this to monitor
+	 * wait time and utilization of parsers.
+	 *
+	 * @return ParserPool instance
+	 */
+	public ParserPool getParserPool() {
+		return this.parsers;
+	}
+
 	/**
 	 * Get Phrase vector of given tree.
 	 *
@@ -213,7 +719,24 @@ public class StanfordWrapper {
 	 * @return SimpleMatrix of phrae vector
 	 **/
 	public SimpleMatrix getPhraseVectorOf(Tree tree) {
-		return this.calculateBFS(tree);
+		final long start = Trace.now();
+		final SimpleMatrix vector = this.calculateBFS(tree);
+		Trace.record(Trace.Stage.ENCODE, start);
+		return vector;
+	}
+
+	/**
+	 * Get Phrase vectors of given trees at once. Merges of the same height in
+	 * every tree are computed together by a matrix-matrix product, so this is
+	 * faster than calling {@link #getPhraseVectorOf(Tree)} for each tree when
+	 * encoding in bulk. Results are equal up to rounding.
+	 *
+	 * @param trees
+	 *            to be scored
+	 * @return List of phrase vectors, in the same order with trees.
+	 **/
+	public List<SimpleMatrix> getPhraseVectorsOf(List<Tree> trees) {
+		return this.batchEncoder.encode(trees);
 	}
 
 	/**
@@ -269,17 +792,209 @@ public class StanfordWrapper {
 	}
 
 	/**
-	 * Method for parsing.
+	 * Method for parsing. This borrows a parser from the pool, so that
+	 * several threads can parse at the same time. If sentence cache is
+	 * enabled and the sentence is cached, the parser is skipped.
 	 *
 	 * @param sentence
 	 *            to be parsed
 	 * @return Tree instance which contains parse tree. (Not dependency tree)
+	 * @throws ParseLimitException
+	 *             when the sentence exceeds {@value #MAX_TOKENS_PROPERTY} or
+	 *             {@value #TIMEOUT_PROPERTY}.
 	 */
 	public Tree parseTree(String sentence) {
+		return this.parseTree(sentence, 0);
+	}
+
+	/**
+	 * Method for parsing within the given time. Parser is interrupted at the
+	 * deadline, and gives up the sentence if it checks interrupts; otherwise
+	 * only the wait for a free parser is bounded, and
+	 * {@value #MAX_TOKENS_PROPERTY} is the guard against long sentences.
+	 *
+	 * @param sentence
+	 *            to be parsed
+	 * @param timeoutMillis
+	 *            time left for parsing, in milliseconds; 0 for no limit other
+	 *            than {@value #TIMEOUT_PROPERTY}, and negative if no time is
+	 *            left.
+	 * @return Tree instance which contains parse tree. (Not dependency tree)
+	 * @throws ParseLimitException
+	 *             when the sentence exceeds {@value #MAX_TOKENS_PROPERTY}, or
+	 *             is not parsed in time.
+	 */
+	public Tree parseTree(String sentence, long timeoutMillis) {
+		if (this.sentences == null) {
+			return this.parse(sentence, timeoutMillis);
+		}
+
+		final String key = StanfordWrapper.normalize(sentence);
+		final CachedSentence cached = this.sentences.get(key);
+		if (cached != null) {
+			// Cached tree is shared; give a copy to the caller.
+			return cached.tree.deepCopy();
+		}
+
+		final Tree tree = this.parse(sentence, timeoutMillis);
+		this.sentences.put(key,
+				new CachedSentence(tree.deepCopy(), null, null));
+		return tree;
+	}
+
+	/**
+	 * Parse sentence with a parser borrowed from the pool, within the limits.
+	 *
+	 * @param sentence
+	 *            to be parsed
+	 * @param timeoutMillis
+	 *            time left, 0 for no limit, and negative if no time is left.
+	 * @return Tree instance which contains parse tree.
+	 * @throws ParseLimitException
+	 *             when a limit is exceeded.
+	 */
+	private Tree parse(String sentence, long timeoutMillis) {
+		final long start = Trace.now();
 		final Tokenizer<CoreLabel> tokens = this.tokenizerFactory
 				.getTokenizer(new StringReader(sentence));
 		final List<CoreLabel> words = tokens.tokenize();
-		final Tree tree = this.parser.apply(words);
+		Trace.record(Trace.Stage.TOKENIZE, start);
+
+		if ((this.maxTokens > 0) && (words.size() > this.maxTokens)) {
+			throw new ParseLimitException(ParseLimitException.Reason.TOO_LONG,
+					"Sentence has " + words.size() + " tokens, more than "
+							+ this.maxTokens, StanfordWrapper.flatTree(words),
+					null);
+		} else if (timeoutMillis < 0) {
+			throw new ParseLimitException(ParseLimitException.Reason.TIMEOUT,
+					"No time left for parsing",
+					StanfordWrapper.flatTree(words), null);
+		}
+
+		long limit = this.timeout;
+		if ((timeoutMillis > 0) && ((limit == 0) || (timeoutMillis < limit))) {
+			limit = timeoutMillis;
+		}
+
+		final long parse = Trace.now();
+		final LexicalizedParser borrowed;
+		try {
+			borrowed = limit > 0 ? this.parsers.borrow(limit,
+					TimeUnit.MILLISECONDS) : this.parsers.borrow();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(
+					"Interrupted while waiting for a parser", e);
+		}
+
+		final long left = TimeUnit.MILLISECONDS.toNanos(limit)
+				- (Trace.now() - parse);
+		if ((borrowed == null) || ((limit > 0) && (left <= 0))) {
+			if (borrowed != null) {
+				this.parsers.release(borrowed);
+			}
+			throw new ParseLimitException(ParseLimitException.Reason.TIMEOUT,
+					"No parser is free within " + limit + " ms",
+					StanfordWrapper.flatTree(words), null);
+		}
+
+		final Alarm alarm = limit > 0 ? new Alarm(left) : null;
+		Tree tree = null;
+		RuntimeException failure = null;
+		try {
+			tree = borrowed.apply(words);
+		} catch (final RuntimeException e) {
+			failure = e;
+		} finally {
+			this.parsers.release(borrowed);
+		}
+		Trace.record(Trace.Stage.PARSE, parse);
+
+		// Interrupted parser throws, or gives up with an (X ...) tree. A
+		// parser which finished anyway is used, as the time is already spent.
+		if ((alarm != null) && alarm.cancel()
+				&& ((tree == null) || "X".equals(tree.value()))) {
+			throw new ParseLimitException(ParseLimitException.Reason.TIMEOUT,
+					"Parse did not finish within " + limit + " ms",
+					StanfordWrapper.flatTree(words), failure);
+		} else if (failure != null) {
+			throw failure;
+		}
 		return tree;
 	}
+
+	/**
+	 * Read a parse tree in Penn Treebank format, as <tt>(ROOT (S (NP ...)
+	 * ...))</tt>. The parser is not used, so this is much faster than
+	 * {@link #parseTree(String)} when the tree is already known. The tree can
+	 * be passed to {@link #getPhraseVectorOf(Tree)} or
+	 * {@link #findNPNStructure(Tree)}.
+	 *
+	 * @param penn
+	 *            bracketed tree string
+	 * @return Tree instance
+	 * @throws IllegalArgumentException
+	 *             when the string is not a tree.
+	 */
+	public Tree readTree(String penn) {
+		final long start = Trace.now();
+		final PennTreeReader reader = new PennTreeReader(new StringReader(
+				penn), new LabeledScoredTreeFactory());
+		final Tree tree;
+		try {
+			tree = reader.readTree();
+			reader.close();
+		} catch (final IOException | RuntimeException e) {
+			throw new IllegalArgumentException("Not a tree : " + penn, e);
+		}
+
+		if (tree == null) {
+			throw new IllegalArgumentException("Not a tree : " + penn);
+		}
+		Trace.record(Trace.Stage.PARSE, start);
+		return tree;
+	}
+
+	/**
+	 * Split document into sentences, with Stanford DocumentPreprocessor.
+	 * Sentences are split lazily while iterating, so that processing of the
+	 * first sentences can start before the whole document is split.
+	 *
+	 * @param document
+	 *            to be split
+	 * @return Iterable of sentences, each of which is the original text span
+	 *         in the document.
+	 */
+	public Iterable<String> splitSentences(final String document) {
+		final TokenizerFactory<CoreLabel> factory = this.splitterFactory;
+		return new Iterable<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				final DocumentPreprocessor splitter = new DocumentPreprocessor(
+						new StringReader(document));
+				splitter.setTokenizerFactory(factory);
+				final Iterator<List<HasWord>> sentences = splitter.iterator();
+
+				return new Iterator<String>() {
+					@Override
+					public boolean hasNext() {
+						return sentences.hasNext();
+					}
+
+					@Override
+					public String next() {
+						final List<HasWord> words = sentences.next();
+						if (words.isEmpty()) {
+							return "";
+						}
+						final CoreLabel first = (CoreLabel) words.get(0);
+						final CoreLabel last = (CoreLabel) words.get(words
+								.size() - 1);
+						return document.substring(first.beginPosition(),
+								last.endPosition());
+					}
+				};
+			}
+		};
+	}
 }
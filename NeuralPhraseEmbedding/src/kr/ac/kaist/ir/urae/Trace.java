@@ -0,0 +1,126 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.urae;
+
+/**
+ * <p>
+ * Time spent in each stage of processing a sentence on the current thread.
+ * {@link StanfordWrapper} records its stages into the trace of the current
+ * thread, if there is one; a server begins a trace before a sentence and
+ * reads it after.
+ * </p>
+ * <p>
+ * Without a trace, recording costs a lookup of thread local, so stages are
+ * timed always.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public final class Trace {
+	/**
+	 * Stage of processing.
+	 */
+	public enum Stage {
+		/** Splitting sentence into words **/
+		TOKENIZE,
+		/** Parsing words, or reading a given tree **/
+		PARSE,
+		/** Encoding phrase vectors **/
+		ENCODE,
+		/** Finding NPN structures **/
+		NPN,
+		/** Encoding response **/
+		SERIALIZE
+	}
+
+	/** Trace of each thread **/
+	private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<Trace>();
+	/** Number of stages **/
+	private static final int STAGES = Stage.values().length;
+
+	/**
+	 * Begin a trace on the current thread. Call {@link #end()} when finished.
+	 *
+	 * @return new trace
+	 */
+	public static Trace begin() {
+		final Trace trace = new Trace();
+		Trace.CURRENT.set(trace);
+		return trace;
+	}
+
+	/**
+	 * Start time of a stage.
+	 *
+	 * @return System.nanoTime()
+	 */
+	public static long now() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record a stage into the trace of the current thread, if any.
+	 *
+	 * @param stage
+	 *            finished
+	 * @param start
+	 *            time of the stage, from {@link #now()}
+	 */
+	public static void record(Stage stage, long start) {
+		final Trace trace = Trace.CURRENT.get();
+		if (trace != null) {
+			trace.add(stage, System.nanoTime() - start);
+		}
+	}
+
+	/** Nanoseconds of each stage **/
+	private final long[] nanos = new long[Trace.STAGES];
+	/** Number of times each stage ran **/
+	private final int[] counts = new int[Trace.STAGES];
+
+	/**
+	 * Add time of a stage.
+	 *
+	 * @param stage
+	 *            finished
+	 * @param nanos
+	 *            spent in the stage
+	 */
+	public void add(Stage stage, long nanos) {
+		this.nanos[stage.ordinal()] += nanos;
+		this.counts[stage.ordinal()]++;
+	}
+
+	/**
+	 * End the trace of the current thread.
+	 */
+	public void end() {
+		if (Trace.CURRENT.get() == this) {
+			Trace.CURRENT.remove();
+		}
+	}
+
+	/**
+	 * Time spent in a stage.
+	 *
+	 * @param stage
+	 *            to find
+	 * @return nanoseconds, summed if the stage ran many times.
+	 */
+	public long getNanos(Stage stage) {
+		return this.nanos[stage.ordinal()];
+	}
+
+	/**
+	 * Whether a stage ran. Stages skipped by caches do not run.
+	 *
+	 * @param stage
+	 *            to find
+	 * @return true if recorded
+	 */
+	public boolean has(Stage stage) {
+		return this.counts[stage.ordinal()] > 0;
+	}
+}
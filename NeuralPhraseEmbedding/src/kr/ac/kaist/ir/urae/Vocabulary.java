@@ -0,0 +1,115 @@
+/**
+ *
+ */
+package kr.ac.kaist.ir.urae;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Immutable mapping : word \to row index, with open addressing (linear
+ * probing).
+ * </p>
+ * <p>
+ * Unlike HashMap, this does not box indices nor allocate entry objects, so a
+ * lookup does not allocate anything.
+ * </p>
+ *
+ * @author 김부근
+ *
+ */
+public final class Vocabulary {
+	/** Words, in the order of rows **/
+	private final String[] words;
+	/** Hash table of words **/
+	private final String[] keys;
+	/** Row indices, parallel to keys **/
+	private final int[] rows;
+	/** Mask for table index **/
+	private final int mask;
+
+	/**
+	 * Build vocabulary from given words. Index of a word is its position in
+	 * the array.
+	 *
+	 * @param words
+	 *            to be indexed. Words should be distinct.
+	 */
+	public Vocabulary(String[] words) {
+		this.words = words.clone();
+
+		// Keep load factor under 0.5.
+		int capacity = 2;
+		while (capacity < words.length * 2) {
+			capacity <<= 1;
+		}
+		this.keys = new String[capacity];
+		this.rows = new int[capacity];
+		this.mask = capacity - 1;
+		Arrays.fill(this.rows, -1);
+
+		for (int row = 0; row < words.length; row++) {
+			int slot = Vocabulary.hash(words[row]) & this.mask;
+			while (this.keys[slot] != null) {
+				if (this.keys[slot].equals(words[row])) {
+					throw new IllegalArgumentException("Duplicated word : "
+							+ words[row]);
+				}
+				slot = (slot + 1) & this.mask;
+			}
+			this.keys[slot] = words[row];
+			this.rows[slot] = row;
+		}
+	}
+
+	/**
+	 * Spread bits of String hash code, since lower bits are used for slot.
+	 *
+	 * @param word
+	 *            to be hashed
+	 * @return hash value
+	 */
+	private static int hash(String word) {
+		final int h = word.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Returns row index of given word.
+	 *
+	 * @param word
+	 *            to be found
+	 * @return row index, or -1 if not exists.
+	 */
+	public int indexOf(String word) {
+		int slot = Vocabulary.hash(word) & this.mask;
+		String key;
+		while ((key = this.keys[slot]) != null) {
+			if (key.equals(word)) {
+				return this.rows[slot];
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns number of words.
+	 *
+	 * @return vocabulary size
+	 */
+	public int size() {
+		return this.words.length;
+	}
+
+	/**
+	 * Returns word of given row.
+	 *
+	 * @param row
+	 *            index
+	 * @return word in that row
+	 */
+	public String wordAt(int row) {
+		return this.words[row];
+	}
+}